@@ -35,7 +35,15 @@ public class OFSFileSystem extends FileSystem {
 
     @Override
     public boolean isReadOnly() {
-        return false;
+        return provider.isReadOnly();
+    }
+
+    /**
+     * Returns a consistent read-only view of this file system at the current moment. Reading the snapshot never
+     * blocks writers of this file system and vice versa. The snapshot must be closed when it is no longer needed.
+     */
+    public OFSFileSystem snapshot() throws IOException {
+        return provider.snapshot();
     }
 
     @Override
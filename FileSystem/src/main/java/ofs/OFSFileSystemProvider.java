@@ -1,11 +1,13 @@
 package ofs;
 
 import ofs.controller.OFSController;
+import ofs.blockimpl.BlockFileConfig;
 import ofs.blockimpl.BlockFileController;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -13,6 +15,7 @@ import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.*;
+import java.util.stream.Collectors;
 
 public class OFSFileSystemProvider extends FileSystemProvider {
     private OFSFileSystem fileSystem;
@@ -21,6 +24,24 @@ public class OFSFileSystemProvider extends FileSystemProvider {
     static final String ROOT = "]=";
     static final String SCHEME = "ofs";
 
+    public OFSFileSystemProvider() {}
+
+    private OFSFileSystemProvider(@NotNull OFSController controller) {
+        this.controller = controller;
+        this.fileSystem = new OFSFileSystem(this);
+    }
+
+    /**
+     * Creates a read-only file system, showing the current state of this one. See OFSController.snapshot().
+     */
+    OFSFileSystem snapshot() throws IOException {
+        return new OFSFileSystemProvider(controller.snapshot()).fileSystem;
+    }
+
+    public boolean isReadOnly() {
+        return controller.isReadOnly();
+    }
+
     public void close() throws IOException {
         controller.close();
     }
@@ -51,9 +72,21 @@ public class OFSFileSystemProvider extends FileSystemProvider {
             throw new IllegalArgumentException("Base path must be provided to deserialize fs");
         }
 
-        var baseFile = env.containsKey("basePath") ? (Path) env.get("basePath") : Files.createTempFile("ofs", "sfo");
+        // Several base paths stripe the container over them, see BlockFileConfig.setStripeWidth
+        var basePath = env.get("basePath");
+        List<Path> baseFiles;
+        if(basePath == null) {
+            baseFiles = List.of(Files.createTempFile("ofs", "sfo"));
+        } else if(basePath instanceof Path) {
+            baseFiles = List.of((Path) basePath);
+        } else if(basePath instanceof List && !((List<?>) basePath).isEmpty()
+                && ((List<?>) basePath).stream().allMatch(p -> p instanceof Path)) {
+            baseFiles = ((List<?>) basePath).stream().map(p -> (Path) p).collect(Collectors.toList());
+        } else {
+            throw new IllegalArgumentException("Wrong base path " + basePath);
+        }
 
-        controller = new BlockFileController(baseFile, shouldDeserialize);
+        controller = new BlockFileController(baseFiles, shouldDeserialize, BlockFileConfig.fromEnv(env));
         fileSystem = new OFSFileSystem(this);
 
         return fileSystem;
@@ -91,6 +124,14 @@ public class OFSFileSystemProvider extends FileSystemProvider {
         return controller.newByteChannel(path, options, attrs);
     }
 
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        if(!(path instanceof OFSPath))
+            throw new IllegalArgumentException();
+
+        return controller.newFileChannel(path, options, attrs);
+    }
+
     @Override
     public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
         if(!(dir instanceof OFSPath))
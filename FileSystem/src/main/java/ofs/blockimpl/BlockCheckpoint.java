@@ -0,0 +1,198 @@
+package ofs.blockimpl;
+
+import ofs.tree.OFSTree;
+import ofs.tree.OFSTreeNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+/**
+ * Compact copy of the namespace and the allocation bitmap, written on close into consecutive blocks,
+ * so that a cleanly closed container is mounted with a single sequential read instead of a tree walk.
+ *
+ * Layout: magic, epoch, the tree in pre-order (for every head: head blocks, name, byte count, isDirectory,
+ * flags of the content (bit 0 large blocks, bit 1 shared blocks, bit 2 compression, bit 3 checksums), data blocks,
+ * checksums and the number of children of a directory), then the words of the allocation bitmap.
+ * Blocks of the checkpoint itself are not in the bitmap, so they become free once it is loaded.
+ */
+class BlockCheckpoint {
+    private static final int MAGIC = 0x4f465343; // OFSC
+
+    /**
+     * Writes the checkpoint and records its location in the superblock. Does nothing if there is no run of
+     * free blocks large enough, the next mount will scan the tree then.
+     */
+    static void write(@NotNull FileChannel channel, @NotNull BlockManager blockManager,
+                      @NotNull OFSTree<BlockFileHead> tree, @NotNull BitSet reserved,
+                      @NotNull BlockSuperblock superblock) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(superblock.getEpoch());
+
+        var allocated = (BitSet) reserved.clone();
+        writeNode(out, tree.getRoot(), allocated, blockManager.getLargeBlockSpan());
+
+        var words = allocated.toLongArray();
+        out.writeInt(words.length);
+        for(var word : words) {
+            out.writeLong(word);
+        }
+        out.flush();
+
+        var content = bytes.toByteArray();
+        var blockSize = blockManager.getBlockSize();
+        var start = blockManager.allocateContiguous((content.length + blockSize - 1) / blockSize);
+        if(start.isEmpty())
+            return;
+
+        var buffer = ByteBuffer.wrap(content);
+        var position = (long) blockSize * start.get();
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        var crc = new CRC32();
+        crc.update(content);
+        superblock.markClean(start.get(), content.length, crc.getValue());
+    }
+
+    private static void writeNode(@NotNull DataOutputStream out, @NotNull OFSTreeNode<BlockFileHead> node,
+                                  @NotNull BitSet allocated, int largeBlockSpan) throws IOException {
+        var head = node.getFile();
+        writeBlocks(out, head.getFullAddress(), allocated, 1);
+
+        var name = head.getName().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(name.length);
+        out.write(name);
+        out.writeLong(head.getByteCount());
+        out.writeBoolean(head.isDirectory());
+        out.writeByte((head.isLargeBlocks() ? 1 : 0) | (head.isSharedBlocks() ? 2 : 0) | (head.isCompressed() ? 4 : 0)
+                | (head.hasChecksums() ? 8 : 0));
+        writeBlocks(out, head.getBlocks(), allocated, head.isLargeBlocks() ? largeBlockSpan : 1);
+        if(head.hasChecksums()) {
+            head.fitChecksums(largeBlockSpan);
+            out.writeInt(head.getChecksums().size());
+            for(var checksum : head.getChecksums()) {
+                out.writeInt(checksum);
+            }
+        }
+
+        if(node.isDirectory()) {
+            var children = node.getAllChildren();
+            out.writeInt(children.size());
+            for(var child : children) {
+                writeNode(out, child, allocated, largeBlockSpan);
+            }
+        }
+    }
+
+    private static void writeBlocks(@NotNull DataOutputStream out, @NotNull ArrayList<Integer> blocks,
+                                    @NotNull BitSet allocated, int span) throws IOException {
+        out.writeInt(blocks.size());
+        for(var block : blocks) {
+            out.writeInt(block);
+            if(block != BlockFileHead.HOLE)
+                allocated.set(block, block + span);
+        }
+    }
+
+    /**
+     * Reads the checkpoint the superblock points to and marks its allocated blocks as occupied.
+     * @return the tree or empty optional if there is no valid checkpoint of the current epoch.
+     */
+    static Optional<OFSTree<BlockFileHead>> read(@NotNull FileChannel channel, @NotNull BlockManager blockManager,
+                                                 @NotNull BlockSuperblock superblock) throws IOException {
+        if(!superblock.hasCheckpoint())
+            return Optional.empty();
+
+        var content = ByteBuffer.allocate(superblock.getCheckpointLength());
+        var position = (long) blockManager.getBlockSize() * superblock.getCheckpointBlock();
+        while(content.hasRemaining()) {
+            if(channel.read(content, position + content.position()) < 0)
+                return Optional.empty();
+        }
+
+        var crc = new CRC32();
+        crc.update(content.array());
+        if(crc.getValue() != superblock.getCheckpointChecksum())
+            return Optional.empty();
+
+        OFSTree<BlockFileHead> tree;
+        BitSet allocated;
+        try {
+            var in = new DataInputStream(new ByteArrayInputStream(content.array()));
+            if(in.readInt() != MAGIC || in.readLong() != superblock.getEpoch())
+                return Optional.empty();
+
+            tree = new OFSTree<>(readHead(in));
+            readChildren(in, tree.getRoot());
+
+            var words = new long[in.readInt()];
+            for(int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            allocated = BitSet.valueOf(words);
+        } catch (EOFException | IllegalArgumentException | NegativeArraySizeException e) {
+            return Optional.empty();
+        }
+
+        if(allocated.length() > blockManager.getMaxBlocks())
+            return Optional.empty();
+
+        allocated.stream().forEach(blockManager::occupyBlock);
+
+        return Optional.of(tree);
+    }
+
+    private static BlockFileHead readHead(@NotNull DataInputStream in) throws IOException {
+        var address = readBlocks(in);
+
+        var name = new byte[in.readInt()];
+        in.readFully(name);
+        var byteCount = in.readLong();
+        var isDirectory = in.readBoolean();
+        var contentFlags = in.readByte();
+        var blocks = readBlocks(in);
+
+        var head = new BlockFileHead(new String(name, StandardCharsets.UTF_8), address, byteCount, isDirectory,
+                (contentFlags & 1) != 0, blocks);
+        head.setSharedBlocks((contentFlags & 2) != 0);
+        head.setCompressed((contentFlags & 4) != 0);
+        if((contentFlags & 8) != 0)
+            head.setChecksums(readBlocks(in));
+
+        return head;
+    }
+
+    private static void readChildren(@NotNull DataInputStream in, @NotNull OFSTreeNode<BlockFileHead> dir) throws IOException {
+        var count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            var child = new OFSTreeNode<>(readHead(in));
+            dir.addChild(child);
+
+            if(child.isDirectory())
+                readChildren(in, child);
+        }
+    }
+
+    private static ArrayList<Integer> readBlocks(@NotNull DataInputStream in) throws IOException {
+        var count = in.readInt();
+        if(count < 0)
+            throw new IllegalArgumentException("Negative block count");
+
+        var blocks = new ArrayList<Integer>(Math.min(count, 1024));
+        for(int i = 0; i < count; i++) {
+            blocks.add(in.readInt());
+        }
+
+        return blocks;
+    }
+}
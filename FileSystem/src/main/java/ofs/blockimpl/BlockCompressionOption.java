@@ -0,0 +1,36 @@
+package ofs.blockimpl;
+
+import java.nio.file.OpenOption;
+import java.nio.file.attribute.FileAttribute;
+
+/**
+ * Makes a new file store its content deflated, see BlockFileSerializer. As an open option it applies to a file
+ * created by the open, as a file attribute of createDirectory to all files and directories created in the directory
+ * later. Existing files keep the way they are stored.
+ *
+ * <pre>
+ * Files.newByteChannel(path, Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, BlockCompressionOption.COMPRESS))
+ * Files.createDirectory(logs, BlockCompressionOption.COMPRESS)
+ * </pre>
+ */
+public final class BlockCompressionOption implements OpenOption, FileAttribute<Boolean> {
+    public static final BlockCompressionOption COMPRESS = new BlockCompressionOption();
+
+    private BlockCompressionOption() {
+    }
+
+    @Override
+    public String name() {
+        return "ofs:compression";
+    }
+
+    @Override
+    public Boolean value() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "COMPRESS";
+    }
+}
@@ -0,0 +1,122 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index of SHA-256 fingerprints of written blocks, used to store identical blocks once. A file writing a block
+ * that is already in the index gets a shared reference to the indexed block instead of its own copy.
+ *
+ * The index holds a reference to every indexed block, so the block is shared from the start: its owner never
+ * writes it in place and the fingerprint stays valid. The number of entries is bounded, the least recently used
+ * entry is dropped together with its reference. The index lives only in memory, a mount starts with an empty one.
+ */
+public class BlockDeduplicator {
+    private final BlockManager blockManager;
+    private final int maxEntries;
+    private final LinkedHashMap<ByteBuffer, Integer> index;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    BlockDeduplicator(@NotNull BlockManager blockManager, int maxEntries) {
+        this.blockManager = blockManager;
+        this.maxEntries = maxEntries;
+        this.index = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Integer> eldest) {
+                if(size() <= BlockDeduplicator.this.maxEntries)
+                    return false;
+
+                blockManager.freeBlock(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Number of written blocks that were found in the index.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Number of written blocks that weren't found in the index and were added to it.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Bytes that weren't written, because identical blocks were found.
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    public synchronized int getIndexSize() {
+        return index.size();
+    }
+
+    static ByteBuffer fingerprint(@NotNull ByteBuffer block) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            digest.update(block.duplicate());
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    /**
+     * Looks the fingerprint up and, if an identical block is indexed, adds a reference to it for the caller.
+     * @return the indexed block, which the caller uses instead of writing its own.
+     */
+    synchronized Optional<Integer> findShared(@NotNull ByteBuffer fingerprint) {
+        var block = index.get(fingerprint);
+        if(block == null) {
+            missCount.incrementAndGet();
+            return Optional.empty();
+        }
+
+        blockManager.shareBlock(block);
+        hitCount.incrementAndGet();
+        savedBytes.addAndGet(blockManager.getBlockSize());
+        return Optional.of(block);
+    }
+
+    /**
+     * Indexes a block that was just written with the given content.
+     */
+    synchronized void add(@NotNull ByteBuffer fingerprint, int block) {
+        if(index.containsKey(fingerprint))
+            return;
+
+        blockManager.shareBlock(block);
+        index.put(fingerprint, block);
+    }
+
+    /**
+     * Drops all entries and their references. Needed before anything that expects every occupied block
+     * to belong to a file, like fsck, shrink and the checkpoint.
+     */
+    synchronized void clear() {
+        for(var block : index.values()) {
+            blockManager.freeBlock(block);
+        }
+        index.clear();
+    }
+}
@@ -0,0 +1,310 @@
+package ofs.blockimpl;
+
+import ofs.tree.OFSTree;
+import ofs.tree.OFSTreeNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Moves the content of fragmented files into one contiguous run each. A run for the whole file is taken first,
+ * then the blocks are moved into it in small chunks. Every chunk is moved by a BlockRelocator and its heads are
+ * written in one journal transaction, so a crash leaves the file with either the old or the new blocks.
+ * Changes of the container wait only for a chunk: between chunks the lock is released and the defragmenter
+ * sleeps to stay under the given rate. Files with large blocks are left alone, their fragments are already large.
+ */
+public class BlockDefragmenter {
+    private static final int CHUNK_BLOCKS = 64;
+
+    /**
+     * Result of a run. Fragmentation score is the fraction of neighbouring parts of files that aren't
+     * neighbours in the container, 0 for a container whose files are all contiguous.
+     */
+    public static class Report {
+        private double scoreBefore = 0;
+        private double scoreAfter = 0;
+        private int filesDefragmented = 0;
+        private long blocksMoved = 0;
+        private boolean cancelled = false;
+
+        public double getScoreBefore() {
+            return scoreBefore;
+        }
+
+        public double getScoreAfter() {
+            return scoreAfter;
+        }
+
+        public int getFilesDefragmented() {
+            return filesDefragmented;
+        }
+
+        public long getBlocksMoved() {
+            return blocksMoved;
+        }
+
+        /**
+         * Whether the run was stopped before all files were visited, e.g. by close.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Fragmentation before: %.4f, after: %.4f, files defragmented: %d, blocks moved: %d%s",
+                    scoreBefore, scoreAfter, filesDefragmented, blocksMoved, cancelled ? ", cancelled" : ""
+            );
+        }
+    }
+
+    private static class Candidate {
+        final OFSTreeNode<BlockFileHead> node;
+        final OFSTreeNode<BlockFileHead> parent;
+
+        Candidate(OFSTreeNode<BlockFileHead> node, OFSTreeNode<BlockFileHead> parent) {
+            this.node = node;
+            this.parent = parent;
+        }
+    }
+
+    private final FileChannel channel;
+    private final BlockManager blockManager;
+    private final BlockFileSerializer serializer;
+    private final OFSTree<BlockFileHead> tree;
+    private final ReentrantReadWriteLock.WriteLock exclusiveLock;
+    private final long maxBytesPerSecond;
+    private final Report report = new Report();
+
+    // Never interrupted to stop: an interrupt during I/O would close the channel of the container
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    private long startNanos;
+    private long bytesMoved = 0;
+
+    BlockDefragmenter(@NotNull FileChannel channel, @NotNull BlockManager blockManager,
+                      @NotNull BlockFileSerializer serializer, @NotNull OFSTree<BlockFileHead> tree,
+                      @NotNull ReentrantReadWriteLock.WriteLock exclusiveLock, long maxBytesPerSecond) {
+        if(maxBytesPerSecond <= 0)
+            throw new IllegalArgumentException("Defragmentation rate must be positive");
+
+        this.channel = channel;
+        this.blockManager = blockManager;
+        this.serializer = serializer;
+        this.tree = tree;
+        this.exclusiveLock = exclusiveLock;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Stops the run after the current chunk. Already moved chunks stay moved.
+     */
+    void cancel() {
+        cancelled.countDown();
+    }
+
+    private boolean isCancelled() {
+        return cancelled.getCount() == 0;
+    }
+
+    Report run() throws IOException, InterruptedException {
+        startNanos = System.nanoTime();
+
+        var candidates = new ArrayList<Candidate>();
+        exclusiveLock.lock();
+        try {
+            report.scoreBefore = score(tree.getRoot());
+            collectCandidates(tree.getRoot(), candidates);
+        } finally {
+            exclusiveLock.unlock();
+        }
+
+        for(var candidate : candidates) {
+            if(isCancelled())
+                break;
+            if(defragment(candidate))
+                report.filesDefragmented++;
+        }
+
+        exclusiveLock.lock();
+        try {
+            report.scoreAfter = score(tree.getRoot());
+        } finally {
+            exclusiveLock.unlock();
+        }
+        report.blocksMoved = bytesMoved / blockManager.getBlockSize();
+        report.cancelled = isCancelled();
+
+        return report;
+    }
+
+    /**
+     * Fragmentation score of all files under the directory, see Report.
+     */
+    private double score(@NotNull OFSTreeNode<BlockFileHead> dir) {
+        var counts = new long[2]; // pairs, breaks
+        countBreaks(dir, counts);
+
+        return counts[0] == 0 ? 0 : (double) counts[1] / counts[0];
+    }
+
+    private void countBreaks(OFSTreeNode<BlockFileHead> dir, long[] counts) {
+        for(var child : dir.getAllChildren()) {
+            if(child.isDirectory()) {
+                countBreaks(child, counts);
+                continue;
+            }
+
+            var head = child.getFile();
+            var lock = head.getLock().readLock();
+            lock.lock();
+            try {
+                counts[0] += countParts(head) - 1;
+                counts[1] += countBreaks(head);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static int countParts(BlockFileHead head) {
+        var parts = 0;
+        for(var block : head.getBlocks()) {
+            if(block != BlockFileHead.HOLE)
+                parts++;
+        }
+
+        return Math.max(parts, 1);
+    }
+
+    /**
+     * Number of neighbouring parts of the file that aren't neighbours in the container. Holes keep their place.
+     */
+    private int countBreaks(BlockFileHead head) {
+        var blocks = head.getBlocks();
+        var span = head.isLargeBlocks() ? blockManager.getLargeBlockSpan() : 1;
+        var breaks = 0;
+        var previous = -1;
+        for(int i = 0; i < blocks.size(); i++) {
+            if(blocks.get(i) == BlockFileHead.HOLE)
+                continue;
+            if(previous >= 0) {
+                var expected = (long) blocks.get(previous) + (long) (i - previous) * span;
+                if(blocks.get(i) != expected)
+                    breaks++;
+            }
+            previous = i;
+        }
+
+        return breaks;
+    }
+
+    private void collectCandidates(OFSTreeNode<BlockFileHead> dir, List<Candidate> candidates) {
+        for(var child : dir.getAllChildren()) {
+            if(child.isDirectory()) {
+                collectCandidates(child, candidates);
+            } else if(!child.getFile().isLargeBlocks() && countBreaks(child.getFile()) > 0) {
+                candidates.add(new Candidate(child, dir));
+            }
+        }
+    }
+
+    /**
+     * Moves the blocks of the file into a new run, chunk by chunk.
+     * @return false if the file wasn't moved completely, e.g. because there is no free run for it, it is gone
+     * or a part of it is shared with a snapshot or another file.
+     */
+    private boolean defragment(Candidate candidate) throws IOException, InterruptedException {
+        var head = candidate.node.getFile();
+        var destination = -1;
+        var length = 0;
+        var used = new BitSet();
+        try {
+            for(int from = 0; !isCancelled(); from += CHUNK_BLOCKS) {
+                var chunkBytes = 0L;
+                exclusiveLock.lock();
+                try {
+                    if(!isAttached(candidate) || head.isLargeBlocks())
+                        return false;
+
+                    if(destination < 0) {
+                        if(countBreaks(head) == 0)
+                            return false;
+                        length = head.getBlocks().size();
+                        var run = blockManager.allocateContiguous(length);
+                        if(run.isEmpty())
+                            return false;
+                        destination = run.get();
+                    }
+
+                    var blocks = head.getBlocks();
+                    var to = Math.min(from + CHUNK_BLOCKS, Math.min(length, blocks.size()));
+                    if(from >= to)
+                        return true;
+
+                    var relocator = new BlockRelocator(channel, blockManager, serializer);
+                    relocator.index(candidate.node, candidate.parent);
+                    var pinned = false;
+                    for(int i = from; i < to && !pinned; i++) {
+                        var block = blocks.get(i);
+                        if(block == BlockFileHead.HOLE)
+                            continue;
+                        // A block shared with a snapshot or another file keeps the rest of the file where it is
+                        pinned = blockManager.isPinned(block) || blockManager.isShared(block);
+                        if(!pinned) {
+                            relocator.move(block, destination + i);
+                            used.set(i);
+                            chunkBytes += blockManager.getBlockSize();
+                        }
+                    }
+                    relocator.commit();
+                    if(pinned)
+                        return false;
+                } finally {
+                    exclusiveLock.unlock();
+                }
+
+                throttle(chunkBytes);
+            }
+
+            return false;
+        } finally {
+            if(destination >= 0)
+                freeUnused(destination, length, used);
+        }
+    }
+
+    private boolean isAttached(Candidate candidate) {
+        return candidate.parent.getAllChildren().contains(candidate.node);
+    }
+
+    private void freeUnused(int destination, int length, BitSet used) {
+        exclusiveLock.lock();
+        try {
+            for(int i = used.nextClearBit(0); i < length; i = used.nextClearBit(i + 1)) {
+                blockManager.freeBlock(destination + i);
+            }
+        } finally {
+            exclusiveLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the bytes moved so far fit into the rate or the run is cancelled.
+     */
+    private void throttle(long chunkBytes) throws InterruptedException {
+        bytesMoved += chunkBytes;
+
+        var dueNanos = (long) (bytesMoved * 1e9 / maxBytesPerSecond);
+        var aheadNanos = dueNanos - (System.nanoTime() - startNanos);
+        if(aheadNanos > 0)
+            cancelled.await(aheadNanos, TimeUnit.NANOSECONDS);
+    }
+}
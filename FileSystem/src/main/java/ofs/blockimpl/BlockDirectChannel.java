@@ -0,0 +1,265 @@
+package ofs.blockimpl;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base file opened for direct I/O, bypassing the OS page cache. Direct I/O accepts only requests whose position,
+ * length and buffer address are multiples of the block size of the file store. Such requests in direct buffers
+ * go to the file as they are, all others go through a per-thread bounce buffer: a direct buffer aligned to that
+ * size. Reads take the enclosing aligned range,
+ * writes that don't cover their first or last aligned unit read it first. Such writes lock the units they
+ * complete, so two of them can't undo each other. Container blocks are multiples of the usual alignment, so
+ * whole blocks are written without reading anything, only smaller writes like the superblock read first.
+ *
+ * Without the page cache nothing is read ahead and nothing is cached, the memory tier should be on.
+ */
+class BlockDirectChannel extends BlockPositionalChannel {
+    private static final int MAX_BOUNCE_BYTES = 1024 * 1024;
+    private static final int LOCK_STRIPES = 64;
+
+    private final FileChannel file;
+    private final int alignment;
+    private final ThreadLocal<ByteBuffer> bounce = new ThreadLocal<>();
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    private BlockDirectChannel(@NotNull FileChannel file, int alignment) {
+        this.file = file;
+        this.alignment = alignment;
+        for(int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @throws IOException if the file store doesn't support direct I/O, e.g. tmpfs.
+     */
+    static BlockDirectChannel open(@NotNull Path path, @NotNull Set<? extends OpenOption> options) throws IOException {
+        var directOptions = new HashSet<OpenOption>(options);
+        directOptions.add(ExtendedOpenOption.DIRECT);
+        try {
+            var alignment = (int) Files.getFileStore(path).getBlockSize();
+            if(alignment <= 0 || Integer.bitCount(alignment) != 1 || alignment > MAX_BOUNCE_BYTES / 4)
+                throw new IOException("Unsupported block size " + alignment + " of the file store of " + path);
+
+            return new BlockDirectChannel(FileChannel.open(path, directOptions), alignment);
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("Direct I/O isn't supported for " + path, e);
+        }
+    }
+
+    /**
+     * Aligned buffer of the thread, with at least length bytes between position and limit.
+     */
+    private ByteBuffer bounceBuffer(int length) {
+        var buffer = bounce.get();
+        if(buffer == null || buffer.capacity() < length) {
+            var capacity = Math.max(length, 64 * 1024);
+            buffer = ByteBuffer.allocateDirect(capacity + alignment).alignedSlice(alignment);
+            bounce.set(buffer);
+        }
+
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    /**
+     * Whether the request can skip the bounce buffer.
+     */
+    private boolean isAligned(ByteBuffer buffer, long position) {
+        return buffer.isDirect() && buffer.hasRemaining() && position % alignment == 0 && buffer.remaining() % alignment == 0
+                && buffer.alignmentOffset(buffer.position(), alignment) == 0;
+    }
+
+    private long alignDown(long position) {
+        return position & -alignment;
+    }
+
+    private long alignUp(long position) {
+        return alignDown(position + alignment - 1);
+    }
+
+    /**
+     * Reads the aligned range into the buffer, until it is full or the file ends.
+     */
+    private void readAligned(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            var read = file.read(buffer, position + buffer.position());
+            // A read up to an unaligned end leaves an unaligned position, nothing follows it anyway
+            if(read < 0 || buffer.position() % alignment != 0)
+                break;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if(position < 0)
+            throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+
+        if(isAligned(dst, position)) {
+            var total = 0;
+            while(dst.hasRemaining()) {
+                var read = file.read(dst, position + total);
+                if(read < 0)
+                    break;
+                total += read;
+                if(total % alignment != 0)
+                    break;
+            }
+            return total == 0 ? -1 : total;
+        }
+
+        var total = 0;
+        while(dst.hasRemaining()) {
+            var length = Math.min(dst.remaining(), MAX_BOUNCE_BYTES - 2 * alignment);
+            var start = alignDown(position);
+            var buffer = bounceBuffer((int) (alignUp(position + length) - start));
+            readAligned(buffer, start);
+
+            var available = buffer.position() - (int) (position - start);
+            if(available <= 0)
+                break;
+
+            var part = Math.min(available, length);
+            buffer.limit(buffer.position());
+            buffer.position((int) (position - start));
+            buffer.limit(buffer.position() + part);
+            dst.put(buffer);
+
+            total += part;
+            position += part;
+            if(part < length)
+                break;
+        }
+
+        return total == 0 && dst.hasRemaining() ? -1 : total;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        if(position < 0)
+            throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+
+        if(isAligned(src, position)) {
+            var total = src.remaining();
+            while(src.hasRemaining()) {
+                position += file.write(src, position);
+            }
+            return total;
+        }
+
+        var total = 0;
+        while(src.hasRemaining()) {
+            var length = Math.min(src.remaining(), MAX_BOUNCE_BYTES - 2 * alignment);
+            var start = alignDown(position);
+            var end = alignUp(position + length);
+            var completesHead = start != position;
+            var completesTail = end != position + length;
+
+            var firstLock = stripeOf(start);
+            var lastLock = stripeOf(end - alignment);
+            if(completesHead || completesTail)
+                lockPair(firstLock, lastLock);
+            try {
+                var buffer = bounceBuffer((int) (end - start));
+                if(completesHead)
+                    readUnit(buffer, 0, start);
+                if(completesTail && (end - alignment != start || !completesHead))
+                    readUnit(buffer, buffer.limit() - alignment, end - alignment);
+
+                var part = src.duplicate();
+                part.limit(part.position() + length);
+                buffer.position((int) (position - start));
+                buffer.put(part);
+                buffer.clear();
+                buffer.limit((int) (end - start));
+
+                while(buffer.hasRemaining()) {
+                    file.write(buffer, start + buffer.position());
+                }
+            } finally {
+                if(completesHead || completesTail)
+                    unlockPair(firstLock, lastLock);
+            }
+
+            src.position(src.position() + length);
+            total += length;
+            position += length;
+        }
+
+        return total;
+    }
+
+    /**
+     * Reads the aligned unit at position into the buffer at offset, zeros past the end of the file.
+     */
+    private void readUnit(ByteBuffer buffer, int offset, long position) throws IOException {
+        var unit = buffer.duplicate();
+        unit.position(offset);
+        unit.limit(offset + alignment);
+        unit = unit.slice();
+        readAligned(unit, position);
+        while(unit.hasRemaining()) {
+            unit.put((byte) 0);
+        }
+    }
+
+    private int stripeOf(long position) {
+        return (int) (position / alignment % LOCK_STRIPES);
+    }
+
+    private void lockPair(int first, int second) {
+        // Always in the order of the stripes, so two writers can't deadlock
+        locks[Math.min(first, second)].lock();
+        if(second != first)
+            locks[Math.max(first, second)].lock();
+    }
+
+    private void unlockPair(int first, int second) {
+        if(second != first)
+            locks[Math.max(first, second)].unlock();
+        locks[Math.min(first, second)].unlock();
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return file.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        ensureOpen();
+        file.truncate(size);
+        truncatePosition(size);
+        return this;
+    }
+
+    /**
+     * Writes bypass the page cache, but the device may still cache them, and metadata changes like a grown
+     * file need a sync either way.
+     */
+    @Override
+    public void force(boolean metaData) throws IOException {
+        ensureOpen();
+        file.force(metaData);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,52 @@
+package ofs.blockimpl;
+
+import ofs.tree.OFSTreeNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Lists children of a directory as they were at the moment the stream was opened.
+ */
+class BlockDirectoryStream implements DirectoryStream<Path> {
+    private final Path dir;
+    private final List<OFSTreeNode<BlockFileHead>> children;
+    private final Filter<? super Path> filter;
+    private boolean invoked = false;
+
+    BlockDirectoryStream(@NotNull Path dir, @NotNull OFSTreeNode<BlockFileHead> dirNode, @NotNull Filter<? super Path> filter) {
+        this.dir = dir;
+        this.children = new ArrayList<>(dirNode.getAllChildren());
+        this.filter = filter;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Path> iterator() {
+        if(invoked)
+            throw new IllegalStateException();
+
+        invoked = true;
+        var accepted = new ArrayList<Path>();
+        for(var child : children) {
+            var path = dir.resolve(child.getFile().getName());
+            try {
+                if(filter.accept(path))
+                    accepted.add(path);
+            } catch (IOException e) {
+                throw new DirectoryIteratorException(e);
+            }
+        }
+
+        return accepted.iterator();
+    }
+
+    @Override
+    public void close() {}
+}
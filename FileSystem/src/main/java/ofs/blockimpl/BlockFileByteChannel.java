@@ -1,27 +1,75 @@
 package ofs.blockimpl;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.locks.Lock;
 
 
-public class BlockFileByteChannel implements SeekableByteChannel {
+/**
+ * Reads take the read lock of the file, writes and truncation take the write lock, so channels of the same file
+ * may read concurrently. The channel's own position is guarded by the channel itself.
+ * Byte-range locks obtained by lock/tryLock are kept in the BlockFileRangeLocks of the file.
+ * Every change is made while holding the update guard of the controller, so that snapshots see either
+ * all or nothing of it. Channels without an update guard are read-only.
+ */
+public class BlockFileByteChannel extends FileChannel {
     private final BlockFileHead fileHead;
     private final BlockFileSerializer fileSerializer;
-    private boolean isOpen = true;
+    private final Lock updateGuard;
 
-    private int currentPosition = 0;
+    private long currentPosition = 0;
 
-    BlockFileByteChannel(BlockFileHead head, BlockFileSerializer fileSerializer) {
+    BlockFileByteChannel(BlockFileHead head, BlockFileSerializer fileSerializer, @Nullable Lock updateGuard) {
         this.fileHead = head;
         this.fileSerializer = fileSerializer;
+        this.updateGuard = updateGuard;
+    }
+
+    private int readAt(ByteBuffer dst, long position) throws IOException {
+        var lock = fileHead.getLock().readLock();
+        lock.lock();
+        try {
+            return fileSerializer.readAt(dst, fileHead, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int writeAt(ByteBuffer src, long position) throws IOException {
+        ensureIsWritable();
+
+        updateGuard.lock();
+        var lock = fileHead.getLock().writeLock();
+        lock.lock();
+        try {
+            fileSerializer.beginTransaction();
+            try {
+                return fileSerializer.writeAt(src, fileHead, position);
+            } finally {
+                fileSerializer.commitTransaction();
+            }
+        } finally {
+            lock.unlock();
+            updateGuard.unlock();
+        }
+    }
+
+    private static long checkPosition(long position) {
+        if(position < 0)
+            throw new IllegalArgumentException("Negative position");
+
+        return position;
     }
 
     @Override
-    public int read(ByteBuffer dst) throws IOException {
+    public synchronized int read(ByteBuffer dst) throws IOException {
         ensureIsOpen();
 
-        var bytesRead = fileSerializer.readAt(dst, fileHead, currentPosition);
+        var bytesRead = readAt(dst, currentPosition);
 
         if(bytesRead > 0)
             currentPosition += bytesRead;
@@ -30,30 +78,71 @@ public class BlockFileByteChannel implements SeekableByteChannel {
     }
 
     @Override
-    public int write(ByteBuffer src) throws IOException {
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
         ensureIsOpen();
 
-        var bytesWritten = fileSerializer.writeAt(src, fileHead, currentPosition);
+        long total = 0;
+        for(int i = offset; i < offset + length; i++) {
+            var bytesRead = read(dsts[i]);
+            if(bytesRead < 0)
+                return total == 0 ? -1 : total;
+
+            total += bytesRead;
+            if(dsts[i].hasRemaining())
+                break;
+        }
+
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        ensureIsOpen();
+
+        var bytesWritten = writeAt(src, currentPosition);
         currentPosition += bytesWritten;
 
         return bytesWritten;
     }
 
     @Override
-    public long position() throws IOException {
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ensureIsOpen();
+
+        long total = 0;
+        for(int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+
+        return total;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        ensureIsOpen();
+
+        return readAt(dst, checkPosition(position));
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        ensureIsOpen();
+
+        return writeAt(src, checkPosition(position));
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
         ensureIsOpen();
 
         return currentPosition;
     }
 
     @Override
-    public SeekableByteChannel position(long newPosition) throws IOException {
+    public synchronized FileChannel position(long newPosition) throws IOException {
         ensureIsOpen();
 
-        if(newPosition > Integer.MAX_VALUE)
-            currentPosition = Integer.MAX_VALUE;
-        else
-            currentPosition = (int) newPosition;
+        currentPosition = checkPosition(newPosition);
 
         return this;
     }
@@ -66,26 +155,144 @@ public class BlockFileByteChannel implements SeekableByteChannel {
     }
 
     @Override
-    public SeekableByteChannel truncate(long size) throws IOException {
+    public synchronized FileChannel truncate(long size) throws IOException {
         ensureIsOpen();
+        ensureIsWritable();
 
-        currentPosition = fileSerializer.truncate(fileHead, currentPosition, (int) size);
+        updateGuard.lock();
+        var lock = fileHead.getLock().writeLock();
+        lock.lock();
+        try {
+            fileSerializer.beginTransaction();
+            try {
+                currentPosition = fileSerializer.truncate(fileHead, currentPosition, checkPosition(size));
+            } finally {
+                fileSerializer.commitTransaction();
+            }
+        } finally {
+            lock.unlock();
+            updateGuard.unlock();
+        }
 
         return this;
     }
 
+    /**
+     * Preallocates blocks for the first byteCount bytes of the file, see BlockPreallocateOption.
+     */
+    void preallocate(long byteCount) throws IOException {
+        ensureIsOpen();
+        ensureIsWritable();
+
+        updateGuard.lock();
+        var lock = fileHead.getLock().writeLock();
+        lock.lock();
+        try {
+            fileSerializer.beginTransaction();
+            try {
+                fileSerializer.preallocate(fileHead, byteCount);
+            } finally {
+                fileSerializer.commitTransaction();
+            }
+        } finally {
+            lock.unlock();
+            updateGuard.unlock();
+        }
+    }
+
     @Override
-    public boolean isOpen() {
-        return isOpen && fileSerializer.isOpen();
+    public void force(boolean metaData) throws IOException {
+        ensureIsOpen();
+
+        fileSerializer.sync();
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ensureIsOpen();
+
+        var buffer = ByteBuffer.allocate(fileSerializer.getBlockSize());
+        long transferred = 0;
+        while(transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+
+            var bytesRead = read(buffer, position + transferred);
+            if(bytesRead <= 0)
+                break;
+
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            transferred += bytesRead;
+        }
+
+        return transferred;
     }
 
     @Override
-    public void close() {
-        this.isOpen = false;
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        ensureIsOpen();
+
+        var buffer = ByteBuffer.allocate(fileSerializer.getBlockSize());
+        long transferred = 0;
+        while(transferred < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+
+            var bytesRead = src.read(buffer);
+            if(bytesRead <= 0)
+                break;
+
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                transferred += write(buffer, position + transferred);
+            }
+        }
+
+        return transferred;
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("OFS files can't be mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        ensureIsOpen();
+
+        try {
+            return fileHead.getRangeLocks().lock(this, position, size, shared);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileLockInterruptionException();
+        }
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        ensureIsOpen();
+
+        return fileHead.getRangeLocks().tryLock(this, position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() {
+        fileHead.getRangeLocks().releaseAll(this);
+    }
+
+    private void ensureIsWritable() {
+        if(updateGuard == null)
+            throw new NonWritableChannelException();
     }
 
     private void ensureIsOpen() throws IOException {
         if(!isOpen())
-            throw new IOException("Channel is closed");
+            throw new ClosedChannelException();
+
+        if(!fileSerializer.isOpen())
+            throw new IOException("Base file channel is not open");
     }
 }
@@ -0,0 +1,584 @@
+package ofs.blockimpl;
+
+import ofs.tree.OFSTreeNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Consistency checker of a container (fsck). Verifies that head block lists, directory lists and the allocation
+ * bitmap agree: finds blocks referenced more than once, references to blocks that are out of the container,
+ * reserved, free or don't hold a valid head, and occupied blocks nobody references.
+ *
+ * The namespace is scanned level by level. Heads of a level are sorted by address and split into contiguous ranges,
+ * each range is read by its own worker, so workers go through the base file front to back instead of jumping
+ * after pointers one head at a time.
+ *
+ * Unmounted containers are checked and repaired by check(Path, ...), mounted ones by BlockFileController.fsck.
+ * An unmounted container has no allocation bitmap of its own: leaked blocks are found only if it was closed cleanly,
+ * by comparing with the bitmap of its checkpoint.
+ */
+public class BlockFileChecker {
+    private static final int EMPTY = -1;
+    private static final int FIXED_HEADER_SIZE = 4 + 4 + 8 + 1 + 4; // name length, next address, byte count, flags, block count
+
+    /**
+     * Problems found by the checker. Sets contain block addresses.
+     */
+    public static class Report {
+        private int headCount = 0;
+        private final SortedSet<Integer> doubleAllocated = new TreeSet<>();
+        private final SortedSet<Integer> dangling = new TreeSet<>();
+        private final SortedSet<Integer> leaked = new TreeSet<>();
+        private final SortedSet<Integer> damaged = new TreeSet<>();
+        private boolean repaired = false;
+
+        public int getHeadCount() {
+            return headCount;
+        }
+
+        /**
+         * Blocks referenced by several heads, or several times by the same head.
+         */
+        public SortedSet<Integer> getDoubleAllocated() {
+            return doubleAllocated;
+        }
+
+        /**
+         * Referenced blocks that are out of the container, reserved, free or don't hold a valid head.
+         */
+        public SortedSet<Integer> getDangling() {
+            return dangling;
+        }
+
+        /**
+         * Occupied blocks that nothing references. Only mounted containers have an allocation bitmap to check.
+         */
+        public SortedSet<Integer> getLeaked() {
+            return leaked;
+        }
+
+        /**
+         * Heads of directories whose list of children can't be read.
+         */
+        public SortedSet<Integer> getDamaged() {
+            return damaged;
+        }
+
+        public boolean isRepaired() {
+            return repaired;
+        }
+
+        public boolean isClean() {
+            return doubleAllocated.isEmpty() && dangling.isEmpty() && leaked.isEmpty() && damaged.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Heads: %d, double allocated: %s, dangling: %s, leaked: %s, damaged directories: %s%s",
+                    headCount, doubleAllocated, dangling, leaked, damaged, repaired ? ", repaired" : ""
+            );
+        }
+    }
+
+    private interface BlockReader<R> {
+        R read(int address) throws IOException;
+    }
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final int largeBlockSpan;
+    private final int maxBlocks;
+    private final int parallelism;
+    private final Map<Integer, ByteBuffer> overlay;
+    private final Set<Integer> reserved = new HashSet<>();
+    private final Report report = new Report();
+
+    // Results of the scan
+    private final TreeMap<Integer, BlockFileHead> heads = new TreeMap<>();
+    private final Map<Integer, List<Integer>> children = new HashMap<>();
+    private final Set<Integer> changedDirectories = new TreeSet<>();
+    private final Set<Integer> claimed = new HashSet<>();
+    private final Set<Integer> sharedClaims = new HashSet<>();
+    private final Map<Integer, SortedSet<Integer>> conflictingBlocks = new TreeMap<>();
+    private final Map<Integer, Integer> firstInvalidBlock = new TreeMap<>();
+
+    /**
+     * @param overlay images of blocks that are newer than their home locations, see BlockJournal.readCommitted.
+     */
+    BlockFileChecker(@NotNull FileChannel channel, int blockSize, int largeBlockSpan, int maxBlocks, int parallelism,
+                     @NotNull Map<Integer, ByteBuffer> overlay) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.largeBlockSpan = largeBlockSpan;
+        this.maxBlocks = maxBlocks;
+        this.parallelism = Math.max(1, parallelism);
+        this.overlay = overlay;
+
+        reserved.add(BlockFileController.SUPER_BLOCK);
+        for(int i = 0; i < BlockFileController.journalBlockCount(blockSize); i++) {
+            reserved.add(BlockFileController.JOURNAL_BLOCK + i);
+        }
+    }
+
+    /**
+     * Checks an unmounted container. With repair the journal is recovered first, then blocks used twice are copied,
+     * dangling references are removed and damaged directories are rewritten. Without repair nothing is written.
+     * A repaired container is marked dirty, so its next mount reads the tree instead of the checkpoint, which also
+     * frees leaked blocks.
+     */
+    public static Report check(@NotNull Path baseFile, boolean repair, int parallelism) throws IOException {
+        return check(List.of(baseFile), repair, parallelism);
+    }
+
+    /**
+     * Checks an unmounted container striped over the base files, given in the order they were mounted with.
+     * The stripe width is taken from the superblock.
+     */
+    public static Report check(@NotNull List<Path> baseFiles, boolean repair, int parallelism) throws IOException {
+        var options = repair
+                ? Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : Set.of(StandardOpenOption.READ);
+
+        BlockSuperblock superblock;
+        // The superblock lies in the first stripe, so it reads the same with any stripe width
+        try(var channel = BlockStripedChannel.open(baseFiles, BlockFileConfig.DEFAULT_STRIPE_WIDTH, options)) {
+            superblock = BlockSuperblock.read(channel);
+        }
+        if(!superblock.isValid())
+            throw new IOException("Superblock is damaged, the block size of the container is unknown");
+        if(superblock.getBaseFileCount() != baseFiles.size())
+            throw new IOException(String.format(
+                    "Container is striped over %d base files, not %d", superblock.getBaseFileCount(), baseFiles.size()
+            ));
+
+        try(var channel = BlockStripedChannel.open(baseFiles, superblock.getStripeBytes(), options)) {
+
+            var blockSize = superblock.getBlockSize();
+            var journalBlockCount = BlockFileController.journalBlockCount(blockSize);
+            // Every block ever written is inside the base file
+            var maxBlocks = (int) Math.min(Integer.MAX_VALUE, (channel.size() + blockSize - 1) / blockSize);
+
+            Map<Integer, ByteBuffer> overlay;
+            var recovered = false;
+            if(repair) {
+                var blockManager = new BlockManager(blockSize, Long.MAX_VALUE, channel.size() + blockSize);
+                var syncer = new BlockSyncer(channel, new BlockFileConfig());
+                var journal = BlockJournal.recover(channel, blockManager, syncer,
+                        BlockFileController.JOURNAL_BLOCK, journalBlockCount);
+                recovered = journal.hasRecovered();
+                journal.close();
+                overlay = Map.of();
+            } else {
+                overlay = BlockJournal.readCommitted(channel, blockSize,
+                        BlockFileController.JOURNAL_BLOCK, journalBlockCount);
+            }
+
+            var largeBlockSpan = superblock.getLargeBlockSize() / blockSize;
+            var checker = new BlockFileChecker(channel, blockSize, largeBlockSpan, maxBlocks, parallelism, overlay);
+            checker.scan(BlockFileController.ROOT_BLOCK);
+            // Journaled changes are newer than the checkpoint, its bitmap would be stale
+            if(!recovered && overlay.isEmpty()) {
+                var bitmap = new BlockManager(blockSize, Long.MAX_VALUE, channel.size() + blockSize);
+                if(BlockCheckpoint.read(channel, bitmap, superblock).isPresent())
+                    checker.compareWith(bitmap);
+            }
+            if(repair && !checker.report.isClean()) {
+                // The checkpoint written on the last close doesn't know about the repair
+                superblock.markDirty();
+                superblock.write(channel);
+                channel.force(false);
+
+                checker.repairStructure();
+                checker.report.repaired = true;
+            }
+
+            return checker.report;
+        }
+    }
+
+    /**
+     * Checks a mounted container against its allocation bitmap. All changes must be stopped and the journal
+     * checkpointed. Repair rebuilds the bitmap only, the structure is repaired by check(Path, ...).
+     */
+    static Report checkMounted(@NotNull FileChannel channel, @NotNull BlockManager blockManager, int rootBlock,
+                               int parallelism, boolean repair) throws IOException {
+        var checker = new BlockFileChecker(
+                channel, blockManager.getBlockSize(), blockManager.getLargeBlockSpan(), blockManager.getMaxBlocks(),
+                parallelism, Map.of()
+        );
+        checker.scan(rootBlock);
+        checker.compareWith(blockManager);
+
+        if(repair && !(checker.report.leaked.isEmpty() && checker.report.dangling.isEmpty())) {
+            checker.rebuildBitmap(blockManager);
+            checker.report.repaired = true;
+        }
+
+        return checker.report;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].equals("--repair"))) {
+            System.err.println("Usage: BlockFileChecker <base file> [--repair]");
+            System.exit(2);
+        }
+
+        var report = check(Path.of(args[0]), args.length == 2, Runtime.getRuntime().availableProcessors());
+        System.out.println(report);
+        System.exit(report.isClean() || report.isRepaired() ? 0 : 1);
+    }
+
+    private boolean isUsable(int block) {
+        return block >= 0 && block < maxBlocks && !reserved.contains(block);
+    }
+
+    private boolean isUsable(int block, int span) {
+        if(block % span != 0)
+            return false;
+
+        for(int i = 0; i < span; i++) {
+            if(!isUsable(block + i))
+                return false;
+        }
+
+        return true;
+    }
+
+    private ByteBuffer readBlock(int address) throws IOException {
+        var image = overlay.get(address);
+        if(image != null)
+            return image.duplicate();
+
+        var buffer = ByteBuffer.allocate(blockSize);
+        var position = (long) blockSize * address;
+        while(buffer.hasRemaining()) {
+            var read = channel.read(buffer, position + buffer.position());
+            if(read < 0)
+                break; // Never written, reads as zeros
+        }
+        buffer.clear();
+
+        return buffer;
+    }
+
+    /**
+     * Reads a head without trusting anything in it.
+     */
+    private Optional<BlockFileHead> readHead(int address) throws IOException {
+        var in = readBlock(address);
+
+        var nameLength = in.getInt();
+        if(nameLength < 0 || nameLength > blockSize - FIXED_HEADER_SIZE)
+            return Optional.empty();
+
+        var nameBytes = new byte[nameLength];
+        in.get(nameBytes);
+        var nextAddress = in.getInt();
+        var byteCount = in.getLong();
+        var flags = in.get();
+        var blockCount = in.getInt();
+        // Bit 0 marks directories, bit 1 files in large blocks, bit 2 files sharing blocks, bit 3 compression,
+        // bit 4 checksums following every block. Directories neither are in large blocks, share blocks
+        // nor have checksums, compressed files aren't in large blocks.
+        // Sparse files may list more blocks than the container has, the length of the chain limits the count
+        var isDirectory = (flags & 1) != 0;
+        var largeBlocks = (flags & 2) != 0;
+        var sharedBlocks = (flags & 4) != 0;
+        var compressed = (flags & 8) != 0;
+        var checksums = (flags & 16) != 0;
+        if(byteCount < 0 || (flags & ~31) != 0 || (isDirectory && (largeBlocks || sharedBlocks || checksums))
+                || (largeBlocks && compressed) || blockCount < 0)
+            return Optional.empty();
+
+        var stride = BlockFileSerializer.entryStride(checksums, largeBlocks, largeBlockSpan);
+        var entryCount = (long) blockCount * stride;
+        var fullAddress = new ArrayList<Integer>();
+        fullAddress.add(address);
+        var visited = new HashSet<>(fullAddress);
+        var entries = new ArrayList<Integer>();
+        while(in.remaining() >= 4 && entries.size() < entryCount) {
+            entries.add(in.getInt());
+        }
+
+        while(entries.size() < entryCount) {
+            if(nextAddress == EMPTY || !isUsable(nextAddress) || !visited.add(nextAddress))
+                return Optional.empty();
+
+            fullAddress.add(nextAddress);
+            in = readBlock(nextAddress);
+            nextAddress = in.getInt();
+            while(in.remaining() >= 4 && entries.size() < entryCount) {
+                entries.add(in.getInt());
+            }
+        }
+
+        var blocks = new ArrayList<Integer>();
+        var checksumList = new ArrayList<Integer>();
+        BlockFileSerializer.splitEntries(entries, stride, blocks, checksumList);
+        var head = new BlockFileHead(new String(nameBytes), fullAddress, byteCount, isDirectory, largeBlocks, blocks);
+        head.setSharedBlocks(sharedBlocks);
+        head.setCompressed(compressed);
+        if(checksums)
+            head.setChecksums(checksumList);
+
+        return Optional.of(head);
+    }
+
+    /**
+     * Reads head addresses of the children of a directory, empty optional if the list is damaged.
+     */
+    private Optional<List<Integer>> readChildren(int address) throws IOException {
+        var head = heads.get(address);
+        var byteCount = head.getByteCount();
+        var blocks = head.getBlocks();
+        if(byteCount < 4 || byteCount > (long) blocks.size() * blockSize || byteCount > Integer.MAX_VALUE)
+            return Optional.empty();
+
+        var content = ByteBuffer.allocate((int) byteCount);
+        for(int i = 0; content.hasRemaining(); i++) {
+            if(!isUsable(blocks.get(i)))
+                return Optional.empty();
+
+            var block = readBlock(blocks.get(i));
+            block.limit(Math.min(blockSize, content.remaining()));
+            content.put(block);
+        }
+        content.flip();
+
+        var count = content.getInt();
+        if(count < 0 || count > content.remaining() / 4)
+            return Optional.empty();
+
+        var result = new ArrayList<Integer>(count);
+        for(int i = 0; i < count; i++) {
+            result.add(content.getInt());
+        }
+
+        return Optional.of(result);
+    }
+
+    /**
+     * Applies reader to every address. Addresses are split into contiguous ranges, each read by its own worker.
+     */
+    private <R> Map<Integer, R> readInParallel(@NotNull List<Integer> sortedAddresses,
+                                               @NotNull BlockReader<R> reader) throws IOException {
+        var result = new ConcurrentHashMap<Integer, R>();
+        if(sortedAddresses.isEmpty())
+            return result;
+
+        var workers = Math.min(parallelism, sortedAddresses.size());
+        var rangeSize = (sortedAddresses.size() + workers - 1) / workers;
+        var executor = Executors.newFixedThreadPool(workers);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            for(int from = 0; from < sortedAddresses.size(); from += rangeSize) {
+                var range = sortedAddresses.subList(from, Math.min(from + rangeSize, sortedAddresses.size()));
+                futures.add(executor.submit(() -> {
+                    for(var address : range) {
+                        result.put(address, reader.read(address));
+                    }
+                    return null;
+                }));
+            }
+
+            for(var f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while checking", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return result;
+    }
+
+    private void scan(int rootBlock) throws IOException {
+        var root = readHead(rootBlock);
+        if(root.isEmpty() || !root.get().isDirectory())
+            throw new IOException("Root directory is damaged, the container can't be checked");
+
+        heads.put(rootBlock, root.get());
+        List<Integer> level = List.of(rootBlock);
+        while(!level.isEmpty()) {
+            var directories = level.stream()
+                    .filter(address -> heads.get(address).isDirectory())
+                    .sorted()
+                    .collect(Collectors.toList());
+            var lists = readInParallel(directories, this::readChildren);
+
+            var candidates = new TreeSet<Integer>();
+            for(var dir : directories) {
+                for(var child : lists.get(dir).orElse(List.of())) {
+                    if(isUsable(child) && !heads.containsKey(child))
+                        candidates.add(child);
+                }
+            }
+            var candidateHeads = readInParallel(new ArrayList<>(candidates), this::readHead);
+
+            var nextLevel = new ArrayList<Integer>();
+            for(var dir : directories) {
+                var list = lists.get(dir);
+                if(list.isEmpty()) {
+                    report.damaged.add(dir);
+                    changedDirectories.add(dir);
+                }
+
+                var kept = new ArrayList<Integer>();
+                for(var child : list.orElse(List.of())) {
+                    if(heads.containsKey(child)) {
+                        report.doubleAllocated.add(child);
+                        changedDirectories.add(dir);
+                    } else if(!isUsable(child) || candidateHeads.get(child).isEmpty()) {
+                        report.dangling.add(child);
+                        changedDirectories.add(dir);
+                    } else {
+                        heads.put(child, candidateHeads.get(child).get());
+                        kept.add(child);
+                        nextLevel.add(child);
+                    }
+                }
+                children.put(dir, kept);
+            }
+
+            level = nextLevel;
+        }
+
+        report.headCount = heads.size();
+        claimBlocks();
+    }
+
+    /**
+     * Every block belongs to the first head that claims it. Head blocks are claimed before data blocks,
+     * heads in the order of their addresses. A large block is claimed block by block, it must be aligned.
+     * Data blocks of files marked as sharing blocks may be claimed by several such files.
+     */
+    private void claimBlocks() {
+        for(var head : heads.values()) {
+            for(var block : head.getFullAddress()) {
+                if(!claimed.add(block))
+                    report.doubleAllocated.add(block);
+            }
+        }
+
+        for(var entry : heads.entrySet()) {
+            var span = entry.getValue().isLargeBlocks() ? largeBlockSpan : 1;
+            var blocks = entry.getValue().getBlocks();
+            for(int i = 0; i < blocks.size(); i++) {
+                var block = blocks.get(i);
+                if(block == BlockFileHead.HOLE)
+                    continue;
+
+                if(!isUsable(block, span)) {
+                    report.dangling.add(block);
+                    firstInvalidBlock.put(entry.getKey(), i);
+                    break;
+                }
+
+                var shared = entry.getValue().isSharedBlocks();
+                for(int j = 0; j < span; j++) {
+                    if(claimed.add(block + j)) {
+                        if(shared)
+                            sharedClaims.add(block + j);
+                    } else if(!shared || !sharedClaims.contains(block + j)) {
+                        report.doubleAllocated.add(block + j);
+                        conflictingBlocks.computeIfAbsent(entry.getKey(), k -> new TreeSet<>()).add(i);
+                    }
+                }
+            }
+        }
+    }
+
+    private void compareWith(@NotNull BlockManager blockManager) {
+        for(int block = 0; block < blockManager.getCapacity(); block++) {
+            var isOccupied = blockManager.isOccupied(block);
+            if(claimed.contains(block)) {
+                if(!isOccupied)
+                    report.dangling.add(block);
+            } else if(isOccupied && !reserved.contains(block) && !blockManager.isFreePostponed(block)) {
+                report.leaked.add(block);
+            }
+        }
+    }
+
+    private void rebuildBitmap(@NotNull BlockManager blockManager) {
+        for(var block : report.leaked) {
+            blockManager.freeBlock(block);
+        }
+        for(var block : claimed) {
+            blockManager.occupyBlock(block);
+        }
+    }
+
+    private void repairStructure() throws IOException {
+        var blockManager = new BlockManager(
+                blockSize, blockSize * largeBlockSpan, Long.MAX_VALUE, (long) maxBlocks * blockSize + blockSize
+        );
+        reserved.forEach(blockManager::occupyBlock);
+        claimed.forEach(blockManager::occupyBlock);
+        var serializer = new BlockFileSerializer(channel, blockManager);
+
+        var changedHeads = new TreeSet<Integer>();
+        changedHeads.addAll(firstInvalidBlock.keySet());
+        changedHeads.addAll(conflictingBlocks.keySet());
+        for(var address : changedHeads) {
+            var head = heads.get(address);
+            var blocks = head.getBlocks();
+            var span = head.isLargeBlocks() ? largeBlockSpan : 1;
+
+            var firstInvalid = firstInvalidBlock.get(address);
+            if(firstInvalid != null) {
+                blocks.subList(firstInvalid, blocks.size()).clear();
+                head.setByteCount(Math.min(head.getByteCount(), (long) blocks.size() * span * blockSize));
+            }
+
+            for(var index : conflictingBlocks.getOrDefault(address, new TreeSet<>())) {
+                if(index >= blocks.size())
+                    break;
+
+                var copy = span == 1
+                        ? blockManager.allocateBlock()
+                        : blockManager.allocateLargeBlocks(1).map(l -> l.get(0));
+                if(copy.isEmpty())
+                    throw new IOException("Not enough space to copy a block used twice");
+
+                for(int i = 0; i < span; i++) {
+                    var content = readBlock(blocks.get(index) + i);
+                    var position = (long) blockSize * (copy.get() + i);
+                    while(content.hasRemaining()) {
+                        position += channel.write(content, position);
+                    }
+                }
+                blocks.set(index, copy.get());
+            }
+
+            serializer.serializeFileHead(head);
+        }
+
+        for(var address : changedDirectories) {
+            var dir = new OFSTreeNode<>(heads.get(address));
+            for(var child : children.get(address)) {
+                dir.addChild(new OFSTreeNode<>(heads.get(child)));
+            }
+
+            serializer.serializeDirectory(dir);
+        }
+
+        channel.force(false);
+    }
+}
@@ -0,0 +1,400 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Settings of a BlockFileController, usually taken from the env of FileSystemProvider.newFileSystem.
+ */
+public class BlockFileConfig {
+    /**
+     * When the base file is forced to the storage device.
+     */
+    public enum Durability {
+        /** Never, the OS decides when data reaches the disk. */
+        NONE,
+        /** When the file system is closed. The default. */
+        ON_CLOSE,
+        /** Every syncInterval, if anything was changed. */
+        PERIODIC,
+        /**
+         * Before every change of metadata returns, together with the content written before it. Concurrent changes
+         * share a single force. Overwrites changing no metadata are forced by the next change or by force.
+         */
+        PER_OPERATION
+    }
+
+    public static final String DURABILITY = "durability";
+    public static final String SYNC_INTERVAL = "syncInterval";
+    public static final String BLOCK_SIZE = "blockSize";
+    public static final String LARGE_BLOCK_SIZE = "largeBlockSize";
+    public static final String LARGE_FILE_THRESHOLD = "largeFileThreshold";
+    public static final String MAX_SIZE = "maxSize";
+    public static final String GROWTH_CHUNK = "growthChunk";
+    public static final String DEDUP_INDEX_ENTRIES = "dedupIndexEntries";
+    public static final String VERIFY_CHECKSUMS = "verifyChecksums";
+    public static final String LOG_STRUCTURED = "logStructured";
+    public static final String STRIPE_WIDTH = "stripeWidth";
+    public static final String MEMORY_TIER_SIZE = "memoryTierSize";
+    public static final String DIRECT_IO = "directIo";
+
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    public static final int MIN_BLOCK_SIZE = 4 * 1024;
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_LARGE_BLOCK_SIZE = 1024 * 1024;
+    public static final int MAX_LARGE_BLOCK_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_STRIPE_WIDTH = 256 * 1024;
+
+    private Durability durability = Durability.ON_CLOSE;
+    private Duration syncInterval = Duration.ofSeconds(1);
+    private Integer blockSize = null;
+    private Integer largeBlockSize = null;
+    private long largeFileThreshold = 4L * 1024 * 1024;
+    private long maxSize = Long.MAX_VALUE;
+    private long growthChunk = 64L * 1024 * 1024;
+    private int dedupIndexEntries = 0;
+    private boolean verifyChecksums = true;
+    private boolean logStructured = false;
+    private Integer stripeWidth = null;
+    private long memoryTierSize = 0;
+    private boolean directIo = false;
+
+    /**
+     * Reads known settings from env, using defaults for the missing ones.
+     * @throws IllegalArgumentException if a setting has a wrong type or value.
+     */
+    public static BlockFileConfig fromEnv(@NotNull Map<String, ?> env) {
+        var config = new BlockFileConfig();
+
+        var durability = env.get(DURABILITY);
+        if(durability instanceof Durability) {
+            config.setDurability((Durability) durability);
+        } else if(durability instanceof String) {
+            config.setDurability(Durability.valueOf(((String) durability).toUpperCase(Locale.ROOT)));
+        } else if(durability != null) {
+            throw new IllegalArgumentException("Wrong durability " + durability);
+        }
+
+        var interval = env.get(SYNC_INTERVAL);
+        if(interval instanceof Duration) {
+            config.setSyncInterval((Duration) interval);
+        } else if(interval instanceof Number) {
+            config.setSyncInterval(Duration.ofMillis(((Number) interval).longValue()));
+        } else if(interval != null) {
+            throw new IllegalArgumentException("Wrong sync interval " + interval);
+        }
+
+        var blockSize = env.get(BLOCK_SIZE);
+        if(blockSize instanceof Integer) {
+            config.setBlockSize((Integer) blockSize);
+        } else if(blockSize != null) {
+            throw new IllegalArgumentException("Wrong block size " + blockSize);
+        }
+
+        var largeBlockSize = env.get(LARGE_BLOCK_SIZE);
+        if(largeBlockSize instanceof Integer) {
+            config.setLargeBlockSize((Integer) largeBlockSize);
+        } else if(largeBlockSize != null) {
+            throw new IllegalArgumentException("Wrong large block size " + largeBlockSize);
+        }
+
+        var largeFileThreshold = env.get(LARGE_FILE_THRESHOLD);
+        if(largeFileThreshold instanceof Number) {
+            config.setLargeFileThreshold(((Number) largeFileThreshold).longValue());
+        } else if(largeFileThreshold != null) {
+            throw new IllegalArgumentException("Wrong large file threshold " + largeFileThreshold);
+        }
+
+        var maxSize = env.get(MAX_SIZE);
+        if(maxSize instanceof Number) {
+            config.setMaxSize(((Number) maxSize).longValue());
+        } else if(maxSize != null) {
+            throw new IllegalArgumentException("Wrong max size " + maxSize);
+        }
+
+        var growthChunk = env.get(GROWTH_CHUNK);
+        if(growthChunk instanceof Number) {
+            config.setGrowthChunk(((Number) growthChunk).longValue());
+        } else if(growthChunk != null) {
+            throw new IllegalArgumentException("Wrong growth chunk " + growthChunk);
+        }
+
+        var dedupIndexEntries = env.get(DEDUP_INDEX_ENTRIES);
+        if(dedupIndexEntries instanceof Integer) {
+            config.setDedupIndexEntries((Integer) dedupIndexEntries);
+        } else if(dedupIndexEntries != null) {
+            throw new IllegalArgumentException("Wrong dedup index size " + dedupIndexEntries);
+        }
+
+        var verifyChecksums = env.get(VERIFY_CHECKSUMS);
+        if(verifyChecksums instanceof Boolean) {
+            config.setVerifyChecksums((Boolean) verifyChecksums);
+        } else if(verifyChecksums instanceof String) {
+            config.setVerifyChecksums(Boolean.parseBoolean((String) verifyChecksums));
+        } else if(verifyChecksums != null) {
+            throw new IllegalArgumentException("Wrong checksum verification " + verifyChecksums);
+        }
+
+        var logStructured = env.get(LOG_STRUCTURED);
+        if(logStructured instanceof Boolean) {
+            config.setLogStructured((Boolean) logStructured);
+        } else if(logStructured instanceof String) {
+            config.setLogStructured(Boolean.parseBoolean((String) logStructured));
+        } else if(logStructured != null) {
+            throw new IllegalArgumentException("Wrong log-structured mode " + logStructured);
+        }
+
+        var stripeWidth = env.get(STRIPE_WIDTH);
+        if(stripeWidth instanceof Integer) {
+            config.setStripeWidth((Integer) stripeWidth);
+        } else if(stripeWidth != null) {
+            throw new IllegalArgumentException("Wrong stripe width " + stripeWidth);
+        }
+
+        var memoryTierSize = env.get(MEMORY_TIER_SIZE);
+        if(memoryTierSize instanceof Number) {
+            config.setMemoryTierSize(((Number) memoryTierSize).longValue());
+        } else if(memoryTierSize != null) {
+            throw new IllegalArgumentException("Wrong memory tier size " + memoryTierSize);
+        }
+
+        var directIo = env.get(DIRECT_IO);
+        if(directIo instanceof Boolean) {
+            config.setDirectIo((Boolean) directIo);
+        } else if(directIo instanceof String) {
+            config.setDirectIo(Boolean.parseBoolean((String) directIo));
+        } else if(directIo != null) {
+            throw new IllegalArgumentException("Wrong direct I/O mode " + directIo);
+        }
+
+        return config;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public BlockFileConfig setDurability(@NotNull Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    public Duration getSyncInterval() {
+        return syncInterval;
+    }
+
+    public BlockFileConfig setSyncInterval(@NotNull Duration syncInterval) {
+        if(syncInterval.isNegative() || syncInterval.isZero())
+            throw new IllegalArgumentException("Sync interval must be positive");
+
+        this.syncInterval = syncInterval;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException unless blockSize is a power of two between MIN_BLOCK_SIZE and MAX_BLOCK_SIZE.
+     */
+    public static void checkBlockSize(int blockSize) {
+        if(blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1)
+            throw new IllegalArgumentException(String.format(
+                    "Block size must be a power of two between %d and %d, got %d", MIN_BLOCK_SIZE, MAX_BLOCK_SIZE, blockSize
+            ));
+    }
+
+    /**
+     * Block size of a new container. Existing containers keep the block size they were created with.
+     */
+    public int getBlockSize() {
+        return blockSize == null ? DEFAULT_BLOCK_SIZE : blockSize;
+    }
+
+    /**
+     * Whether the block size was set explicitly, so that a container with another block size must not be mounted.
+     */
+    public boolean isBlockSizeSet() {
+        return blockSize != null;
+    }
+
+    public BlockFileConfig setBlockSize(int blockSize) {
+        checkBlockSize(blockSize);
+
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException unless largeBlockSize is a power of two between blockSize and MAX_LARGE_BLOCK_SIZE.
+     */
+    public static void checkLargeBlockSize(int blockSize, int largeBlockSize) {
+        if(largeBlockSize < blockSize || largeBlockSize > MAX_LARGE_BLOCK_SIZE || Integer.bitCount(largeBlockSize) != 1)
+            throw new IllegalArgumentException(String.format(
+                    "Large block size must be a power of two between %d and %d, got %d",
+                    blockSize, MAX_LARGE_BLOCK_SIZE, largeBlockSize
+            ));
+    }
+
+    /**
+     * Size of the blocks of large files in a new container. Equal to the block size, it turns large blocks off.
+     */
+    public int getLargeBlockSize() {
+        return largeBlockSize == null ? Math.max(DEFAULT_LARGE_BLOCK_SIZE, getBlockSize()) : largeBlockSize;
+    }
+
+    public boolean isLargeBlockSizeSet() {
+        return largeBlockSize != null;
+    }
+
+    public BlockFileConfig setLargeBlockSize(int largeBlockSize) {
+        checkLargeBlockSize(MIN_BLOCK_SIZE, largeBlockSize);
+
+        this.largeBlockSize = largeBlockSize;
+        return this;
+    }
+
+    /**
+     * Size in bytes above which a file moves to large blocks.
+     */
+    public long getLargeFileThreshold() {
+        return largeFileThreshold;
+    }
+
+    public BlockFileConfig setLargeFileThreshold(long largeFileThreshold) {
+        if(largeFileThreshold <= 0)
+            throw new IllegalArgumentException("Large file threshold must be positive");
+
+        this.largeFileThreshold = largeFileThreshold;
+        return this;
+    }
+
+    /**
+     * Limit of the container size in bytes. By default the container grows as long as block addresses suffice.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public BlockFileConfig setMaxSize(long maxSize) {
+        if(maxSize <= 0)
+            throw new IllegalArgumentException("Max size must be positive");
+
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Number of bytes the container grows by when it is full.
+     */
+    public long getGrowthChunk() {
+        return growthChunk;
+    }
+
+    public BlockFileConfig setGrowthChunk(long growthChunk) {
+        if(growthChunk <= 0)
+            throw new IllegalArgumentException("Growth chunk must be positive");
+
+        this.growthChunk = growthChunk;
+        return this;
+    }
+
+    /**
+     * Number of block fingerprints kept for deduplication of written blocks, 0 turns deduplication off.
+     */
+    public int getDedupIndexEntries() {
+        return dedupIndexEntries;
+    }
+
+    public BlockFileConfig setDedupIndexEntries(int dedupIndexEntries) {
+        if(dedupIndexEntries < 0)
+            throw new IllegalArgumentException("Dedup index size must not be negative");
+
+        this.dedupIndexEntries = dedupIndexEntries;
+        return this;
+    }
+
+    /**
+     * Whether reads compare file content with its CRC32C checksums. Checksums are written either way, so turning
+     * verification off only trades the detection of damaged blocks for speed.
+     */
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    public BlockFileConfig setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+        return this;
+    }
+
+    /**
+     * Whether content of files in small blocks is written to new blocks taken in address order, instead of
+     * in place, see BlockLog. Turns random writes into sequential ones at the cost of fragmented files, which
+     * BlockFileController.cleanSegments and defragment counter. The mode can change between mounts.
+     */
+    public boolean isLogStructured() {
+        return logStructured;
+    }
+
+    public BlockFileConfig setLogStructured(boolean logStructured) {
+        this.logStructured = logStructured;
+        return this;
+    }
+
+    /**
+     * Number of bytes stored in one base file before the next one takes over, for a container striped over several
+     * base files. Existing containers keep the stripe width they were created with.
+     */
+    public int getStripeWidth() {
+        return stripeWidth == null ? DEFAULT_STRIPE_WIDTH : stripeWidth;
+    }
+
+    public boolean isStripeWidthSet() {
+        return stripeWidth != null;
+    }
+
+    /**
+     * @throws IllegalArgumentException unless stripeWidth is a power of two between MIN_BLOCK_SIZE
+     * and MAX_LARGE_BLOCK_SIZE.
+     */
+    public BlockFileConfig setStripeWidth(int stripeWidth) {
+        if(stripeWidth < MIN_BLOCK_SIZE || stripeWidth > MAX_LARGE_BLOCK_SIZE || Integer.bitCount(stripeWidth) != 1)
+            throw new IllegalArgumentException(String.format(
+                    "Stripe width must be a power of two between %d and %d, got %d",
+                    MIN_BLOCK_SIZE, MAX_LARGE_BLOCK_SIZE, stripeWidth
+            ));
+
+        this.stripeWidth = stripeWidth;
+        return this;
+    }
+
+    /**
+     * Bytes of off-heap memory for hot blocks of the base file, see BlockMemoryTier. The size is rounded down
+     * to whole blocks, less than a block turns the tier off.
+     */
+    public long getMemoryTierSize() {
+        return memoryTierSize;
+    }
+
+    public BlockFileConfig setMemoryTierSize(long memoryTierSize) {
+        if(memoryTierSize < 0)
+            throw new IllegalArgumentException("Memory tier size must not be negative");
+
+        this.memoryTierSize = memoryTierSize;
+        return this;
+    }
+
+    /**
+     * Whether base files are opened for direct I/O, bypassing the OS page cache, see BlockDirectChannel.
+     * Meant together with the memory tier, so hot blocks are cached once. Mount fails on file stores
+     * without direct I/O, like tmpfs.
+     */
+    public boolean isDirectIo() {
+        return directIo;
+    }
+
+    public BlockFileConfig setDirectIo(boolean directIo) {
+        this.directIo = directIo;
+        return this;
+    }
+}
@@ -4,57 +4,392 @@ import ofs.controller.OFSController;
 import ofs.tree.OFSTree;
 import ofs.tree.OFSTreeNode;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
 import java.util.*;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Concurrency model: every file head carries a read/write lock. Byte channels lock the file they work with,
+ * namespace operations lock only the directories whose children lists they change (and the file being removed).
+ * Several locks are always taken in the order of BlockFileHead.getLockOrder(), so operations can't deadlock.
+ * Path lookups don't lock at all, see OFSTree.
+ * Every change also holds the read side of snapshotLock, a snapshot is taken under its write side.
+ */
 public class BlockFileController implements OFSController {
-    public static int BLOCK_SIZE = 1024;
-    public static int MAX_SPACE = 1024 * 1024 * 1024; // Gigabyte
-    private final SeekableByteChannel channel;
-    private final BlockManager blockManager = new BlockManager(BLOCK_SIZE, MAX_SPACE);
+    static final int SUPER_BLOCK = 0;
+    static final int ROOT_BLOCK = 1;
+    static final int JOURNAL_BLOCK = 2;
+    private static final int JOURNAL_SIZE = 4 * 1024 * 1024;
+    private final FileChannel channel;
+    private final BlockManager blockManager;
     private final OFSTree<BlockFileHead> fileTree;
     private final BlockFileSerializer fileSerializer;
+    private final BlockJournal journal;
+    private final BlockSyncer syncer;
+    private final BlockSuperblock superblock;
+    private final BlockDeduplicator deduplicator;
+    private final BlockLog log;
+    private final BlockMemoryTier memoryTier;
+    private final boolean mountedFromCheckpoint;
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final Map<String, BackgroundTask> backgroundTasks = new HashMap<>();
+
+    private static class BackgroundTask {
+        final Thread thread;
+        final Runnable cancel;
+
+        BackgroundTask(@NotNull Thread thread, @NotNull Runnable cancel) {
+            this.thread = thread;
+            this.cancel = cancel;
+        }
+    }
 
     public BlockFileController(@NotNull Path baseFile, boolean shouldDeserialize) throws IOException {
-        this.channel = Files.newByteChannel(baseFile, Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        this(baseFile, shouldDeserialize, new BlockFileConfig());
+    }
+
+    public BlockFileController(@NotNull Path baseFile, boolean shouldDeserialize,
+                               @NotNull BlockFileConfig config) throws IOException {
+        this(List.of(baseFile), shouldDeserialize, config);
+    }
+
+    /**
+     * Mounts a container striped over several base files, see BlockStripedChannel. The files must be given
+     * in the same order on every mount. A single file isn't striped.
+     */
+    public BlockFileController(@NotNull List<Path> baseFiles, boolean shouldDeserialize,
+                               @NotNull BlockFileConfig config) throws IOException {
+        var options = Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var opened = BlockStripedChannel.open(baseFiles, config.getStripeWidth(), options, config.isDirectIo());
+        var existing = shouldDeserialize ? BlockSuperblock.read(opened) : null;
+        // The superblock lies in the first stripe, so it reads the same with any stripe width
+        if(existing != null && existing.isValid() && baseFiles.size() > 1 && !config.isStripeWidthSet()
+                && existing.getBaseFileCount() == baseFiles.size() && existing.getStripeBytes() != config.getStripeWidth()) {
+            opened.close();
+            opened = BlockStripedChannel.open(baseFiles, existing.getStripeBytes(), options, config.isDirectIo());
+        }
+        // A damaged superblock is rewritten on mount, the block size then must be the configured one
+        this.superblock = existing != null && existing.isValid()
+                ? existing
+                : new BlockSuperblock(
+                        config.getBlockSize(), config.getLargeBlockSize(), config.getStripeWidth(), baseFiles.size()
+                );
+        try {
+            BlockFileConfig.checkLargeBlockSize(superblock.getBlockSize(), superblock.getLargeBlockSize());
+            if(superblock.getBaseFileCount() != baseFiles.size()) {
+                throw new IllegalArgumentException(String.format(
+                        "Container is striped over %d base files, not %d",
+                        superblock.getBaseFileCount(), baseFiles.size()
+                ));
+            }
+            if(baseFiles.size() > 1 && config.isStripeWidthSet() && config.getStripeWidth() != superblock.getStripeBytes()) {
+                throw new IllegalArgumentException(String.format(
+                        "Container has stripe width %d, not %d", superblock.getStripeBytes(), config.getStripeWidth()
+                ));
+            }
+            if(config.isBlockSizeSet() && config.getBlockSize() != superblock.getBlockSize()) {
+                throw new IllegalArgumentException(String.format(
+                        "Container has block size %d, not %d", superblock.getBlockSize(), config.getBlockSize()
+                ));
+            }
+            if(config.isLargeBlockSizeSet() && config.getLargeBlockSize() != superblock.getLargeBlockSize()) {
+                throw new IllegalArgumentException(String.format(
+                        "Container has large block size %d, not %d",
+                        superblock.getLargeBlockSize(), config.getLargeBlockSize()
+                ));
+            }
+        } catch (IllegalArgumentException e) {
+            opened.close();
+            throw e;
+        }
+
+        var blockSize = superblock.getBlockSize();
+        if(config.getMemoryTierSize() >= blockSize) {
+            this.memoryTier = new BlockMemoryTier(opened, blockSize, config.getMemoryTierSize());
+            this.channel = memoryTier;
+        } else {
+            this.memoryTier = null;
+            this.channel = opened;
+        }
+        var journalBlockCount = journalBlockCount(blockSize);
+        this.blockManager = new BlockManager(
+                blockSize, superblock.getLargeBlockSize(), config.getMaxSize(), config.getGrowthChunk()
+        );
         this.fileSerializer = new BlockFileSerializer(channel, blockManager);
+        fileSerializer.setLargeFileThreshold(config.getLargeFileThreshold());
+        fileSerializer.setVerifyChecksums(config.isVerifyChecksums());
+        if(config.isDirectIo() && memoryTier == null)
+            fileSerializer.setAlignedBuffers();
+        this.deduplicator = new BlockDeduplicator(blockManager, config.getDedupIndexEntries());
+        if(deduplicator.isEnabled())
+            fileSerializer.setDeduplicator(deduplicator);
+        this.log = new BlockLog(blockManager);
+        if(config.isLogStructured())
+            fileSerializer.setLog(log);
+        this.syncer = new BlockSyncer(channel, config);
+
+        reservedBlocks(blockSize).stream().forEach(blockManager::occupyBlock);
 
         if(shouldDeserialize) {
-            this.fileTree = deserializeTree();
+            this.journal = BlockJournal.recover(channel, blockManager, syncer, JOURNAL_BLOCK, journalBlockCount);
+            fileSerializer.setJournal(journal);
+
+            // A journal with records means changes after the checkpoint was written
+            var checkpoint = journal.hasRecovered()
+                    ? Optional.<OFSTree<BlockFileHead>>empty()
+                    : BlockCheckpoint.read(channel, blockManager, superblock);
+            this.mountedFromCheckpoint = checkpoint.isPresent();
+            this.fileTree = mountedFromCheckpoint ? checkpoint.get() : deserializeTree();
+            shareBlocks(fileTree.getRoot(), new HashSet<>());
         } else {
-            var rootBlock = blockManager.allocateBlock();
-            if (rootBlock.isEmpty())
-                throw new IOException();
+            this.journal = BlockJournal.create(channel, blockManager, syncer, JOURNAL_BLOCK, journalBlockCount);
+            fileSerializer.setJournal(journal);
+            this.mountedFromCheckpoint = false;
 
-            var rootHead = new BlockFileHead("", true, rootBlock.get());
+            var rootHead = new BlockFileHead("", true, ROOT_BLOCK);
             this.fileTree = new OFSTree<>(rootHead);
 
             fileSerializer.serializeDirectory(this.fileTree.getRoot());
         }
+
+        // The checkpoint becomes stale with the first change, so it is invalidated before anything is changed
+        superblock.markDirty();
+        superblock.write(channel);
+        syncer.barrier();
+    }
+
+    /**
+     * The journal takes about JOURNAL_SIZE bytes, but at least enough blocks for several records.
+     */
+    static int journalBlockCount(int blockSize) {
+        return Math.max(64, JOURNAL_SIZE / blockSize);
+    }
+
+    /**
+     * Blocks that never belong to files: the superblock and the journal. The root head is at a fixed place too.
+     */
+    private static BitSet reservedBlocks(int blockSize) {
+        var reserved = new BitSet();
+        reserved.set(SUPER_BLOCK);
+        reserved.set(ROOT_BLOCK);
+        reserved.set(JOURNAL_BLOCK, JOURNAL_BLOCK + journalBlockCount(blockSize));
+
+        return reserved;
+    }
+
+    public int getBlockSize() {
+        return blockManager.getBlockSize();
+    }
+
+    /**
+     * Moves blocks from the end of the container to free blocks before it and truncates the base file after
+     * the last used block. Stops at the first block that can't be moved, e.g. one pinned by a snapshot. Changes wait meanwhile.
+     * @return number of bytes the base file got shorter by.
+     */
+    public long shrink() throws IOException {
+        ensureBaseFileIsOpen();
+
+        snapshotLock.writeLock().lock();
+        try {
+            deduplicator.clear();
+            log.release();
+            journal.flush();
+            var sizeBefore = channel.size();
+
+            var reservedEnd = JOURNAL_BLOCK + journalBlockCount(blockManager.getBlockSize());
+            var relocator = new BlockRelocator(channel, blockManager, fileSerializer, fileTree);
+            for(int block = blockManager.getCapacity() - 1; block >= reservedEnd; block--) {
+                if(!blockManager.isOccupied(block))
+                    continue;
+                if(!relocator.isOwned(block))
+                    break; // Pinned by a snapshot
+
+                var start = relocator.getRunStart(block);
+                if(!relocator.moveDown(start))
+                    break;
+                block = start;
+            }
+            relocator.commit();
+            journal.flush();
+
+            var end = blockManager.getCapacity();
+            while(end > reservedEnd && !blockManager.isOccupied(end - 1)) {
+                end--;
+            }
+            blockManager.shrink(end);
+
+            var newSize = (long) end * blockManager.getBlockSize();
+            if(newSize < sizeBefore) {
+                channel.truncate(newSize);
+                syncer.barrier();
+            }
+
+            return sizeBefore - channel.size();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts moving fragmented files into contiguous runs on a background thread, see BlockDefragmenter.
+     * @return the report, completed when the run is done.
+     */
+    public synchronized CompletableFuture<BlockDefragmenter.Report> defragment(long maxBytesPerSecond) throws IOException {
+        ensureBaseFileIsOpen();
+        ensureNotRunning("ofs-defragmenter", "Defragmentation");
+
+        // Indexed blocks are shared, they would stay where they are
+        deduplicator.clear();
+        log.release();
+        var defragmenter = new BlockDefragmenter(
+                channel, blockManager, fileSerializer, fileTree, snapshotLock.writeLock(), maxBytesPerSecond
+        );
+        return startInBackground("ofs-defragmenter", defragmenter::run, defragmenter::cancel);
+    }
+
+    /**
+     * Starts comparing the content of all files with its checksums on a background thread, see BlockScrubber.
+     * @return the report, completed when the run is done.
+     */
+    public synchronized CompletableFuture<BlockScrubber.Report> scrub(long maxBytesPerSecond) throws IOException {
+        ensureBaseFileIsOpen();
+        ensureNotRunning("ofs-scrubber", "Scrubbing");
+
+        var scrubber = new BlockScrubber(blockManager, fileSerializer, fileTree, maxBytesPerSecond);
+        return startInBackground("ofs-scrubber", scrubber::run, scrubber::cancel);
+    }
+
+    /**
+     * Starts emptying sparse log segments on a background thread, see BlockSegmentCleaner.
+     * @return the report, completed when the run is done.
+     */
+    public synchronized CompletableFuture<BlockSegmentCleaner.Report> cleanSegments(long maxBytesPerSecond) throws IOException {
+        ensureBaseFileIsOpen();
+        ensureNotRunning("ofs-segment-cleaner", "Segment cleaning");
+
+        // Indexed blocks are shared, they would keep their segments
+        deduplicator.clear();
+        var reservedEnd = JOURNAL_BLOCK + journalBlockCount(blockManager.getBlockSize());
+        var cleaner = new BlockSegmentCleaner(
+                channel, blockManager, fileSerializer, fileTree, log, reservedEnd, snapshotLock.writeLock(),
+                maxBytesPerSecond
+        );
+        return startInBackground("ofs-segment-cleaner", cleaner::run, cleaner::cancel);
+    }
+
+    private void ensureNotRunning(@NotNull String name, @NotNull String description) {
+        var task = backgroundTasks.get(name);
+        if(task != null && task.thread.isAlive())
+            throw new IllegalStateException(description + " is already running");
+    }
+
+    /**
+     * Runs the task on a daemon thread of the given name until it ends or close cancels it.
+     */
+    private <R> CompletableFuture<R> startInBackground(@NotNull String name, @NotNull Callable<R> task,
+                                                      @NotNull Runnable cancel) {
+        var result = new CompletableFuture<R>();
+        var thread = new Thread(() -> {
+            try {
+                result.complete(task.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        backgroundTasks.put(name, new BackgroundTask(thread, cancel));
+        thread.start();
+
+        return result;
+    }
+
+    private synchronized void stopBackgroundTasks() {
+        for(var task : backgroundTasks.values()) {
+            task.cancel.run();
+        }
+        for(var task : backgroundTasks.values()) {
+            try {
+                task.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        backgroundTasks.clear();
+    }
+
+    /**
+     * Whether the tree was loaded from the checkpoint written by the last close, rather than read head by head.
+     */
+    public boolean isMountedFromCheckpoint() {
+        return mountedFromCheckpoint;
     }
 
     private OFSTree<BlockFileHead> deserializeTree() throws IOException {
-        var root = fileSerializer.deserializeFileHead(0);
+        var root = fileSerializer.deserializeFileHead(ROOT_BLOCK);
 
         var fileTree = new OFSTree<>(root);
 
         fileSerializer.deserializeDirectory(fileTree.getRoot());
+        occupyBlocks(fileTree.getRoot());
 
         return fileTree;
     }
 
-    private BlockFileHead allocateFileHead(@NotNull Path path, boolean isDirectory) throws IOException {
+    /**
+     * Marks blocks of the given file and all of its descendants as occupied.
+     */
+    private void occupyBlocks(@NotNull OFSTreeNode<BlockFileHead> node) {
+        var head = node.getFile();
+        for(var block : head.getFullAddress()) {
+            blockManager.occupyBlock(block);
+        }
+        head.forEachDataBlock(blockManager.getLargeBlockSpan(), blockManager::occupyBlock);
+
+        if(node.isDirectory()) {
+            for(var child : node.getAllChildren()) {
+                occupyBlocks(child);
+            }
+        }
+    }
+
+    /**
+     * Restores the references of blocks shared by copies: every further file listing a block adds one.
+     */
+    private void shareBlocks(@NotNull OFSTreeNode<BlockFileHead> dir, @NotNull Set<Integer> seen) {
+        for(var child : dir.getAllChildren()) {
+            if(child.isDirectory()) {
+                shareBlocks(child, seen);
+            } else if(child.getFile().isSharedBlocks()) {
+                child.getFile().forEachDataBlock(blockManager.getLargeBlockSpan(), block -> {
+                    if(!seen.add(block))
+                        blockManager.shareBlock(block);
+                });
+            }
+        }
+    }
+
+    /**
+     * Creates the head of a new file. It is compressed if asked to or if its directory compresses new files.
+     * Files keep checksums of their content, directories are written through the journal and need none.
+     */
+    private BlockFileHead allocateFileHead(@NotNull Path path, boolean isDirectory, boolean compressed) throws IOException {
         var name = path.getFileName().toString();
         var headBlock = blockManager.allocateBlock();
         if(headBlock.isEmpty())
             throw new IOException("Couldn't create new file, not enough space.");
 
         var fileHead = new BlockFileHead(name, isDirectory, headBlock.get());
+        fileHead.setCompressed(compressed || getExistingParentNode(path).getFile().isCompressed());
+        if(!isDirectory)
+            fileHead.setChecksums(new ArrayList<>());
 
         if(!fileTree.addNode(path, fileHead)) {
             throw new IllegalArgumentException();
@@ -66,6 +401,63 @@ public class BlockFileController implements OFSController {
         return fileHead;
     }
 
+    /**
+     * Write locks given heads in a globally consistent order.
+     * @return heads that were locked, to be passed to unlock.
+     */
+    private List<BlockFileHead> lock(@NotNull BlockFileHead... heads) {
+        var ordered = new ArrayList<BlockFileHead>();
+        for(var h : heads) {
+            if(ordered.stream().noneMatch(o -> o == h))
+                ordered.add(h);
+        }
+        ordered.sort(Comparator.comparingLong(BlockFileHead::getLockOrder));
+
+        for(var h : ordered) {
+            h.getLock().writeLock().lock();
+        }
+
+        return ordered;
+    }
+
+    private void unlock(@NotNull List<BlockFileHead> locked) {
+        for(int i = locked.size() - 1; i >= 0; i--) {
+            locked.get(i).getLock().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a change of the file system: holds off snapshots, locks given heads and opens a journal transaction.
+     * @return heads that were locked, to be passed to endUpdate.
+     */
+    private List<BlockFileHead> beginUpdate(@NotNull BlockFileHead... heads) {
+        snapshotLock.readLock().lock();
+        var locked = lock(heads);
+        fileSerializer.beginTransaction();
+
+        return locked;
+    }
+
+    private void endUpdate(@NotNull List<BlockFileHead> locked) throws IOException {
+        try {
+            fileSerializer.commitTransaction();
+        } finally {
+            unlock(locked);
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    private OFSTreeNode<BlockFileHead> getExistingParentNode(@NotNull Path path) throws NoSuchFileException {
+        var parent = fileTree.getParentNode(path);
+        if(parent == null || !parent.isDirectory())
+            throw new NoSuchFileException(path.toString());
+
+        return parent;
+    }
+
+    /**
+     * Must be called while holding the lock of the parent directory.
+     */
     private void updateParentDirectory(@NotNull Path child) throws IOException {
         var parent = fileTree.getParentNode(child);
         if(parent == null)
@@ -76,25 +468,52 @@ public class BlockFileController implements OFSController {
 
     @Override
     public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        return newFileChannel(path, options, attrs);
+    }
+
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
         ensureBaseFileIsOpen();
 
         var node = fileTree.getNode(path);
-        if(node != null && node.isDirectory()) {
-            throw new IllegalArgumentException("Can't create byte channel from directory");
-        }
+        if(node == null) {
+            while(true) {
+                var parent = getExistingParentNode(path);
+                var locked = beginUpdate(parent.getFile());
+                try {
+                    if(fileTree.getParentNode(path) != parent) {
+                        continue; // The parent changed before it was locked
+                    }
 
-        if(node != null && options.contains(StandardOpenOption.CREATE_NEW)) {
+                    node = fileTree.getNode(path);
+                    if(node == null) {
+                        allocateFileHead(path, false, options.contains(BlockCompressionOption.COMPRESS));
+                        node = fileTree.getNode(path);
+                    } else if(options.contains(StandardOpenOption.CREATE_NEW)) {
+                        throw new FileAlreadyExistsException(path.toString());
+                    }
+                    break;
+                } finally {
+                    endUpdate(locked);
+                }
+            }
+        } else if(options.contains(StandardOpenOption.CREATE_NEW)) {
             throw new FileAlreadyExistsException(path.toString());
         }
 
-        BlockFileHead head;
-        if(node == null) {
-            head = allocateFileHead(path, false);
-        } else {
-            head = node.getFile();
+        if(node.isDirectory()) {
+            throw new IllegalArgumentException("Can't create byte channel from directory");
+        }
+
+        var head = node.getFile();
+
+        var byteChannel = new BlockFileByteChannel(head, fileSerializer, snapshotLock.readLock());
+        for(var option : options) {
+            if(option instanceof BlockPreallocateOption)
+                byteChannel.preallocate(((BlockPreallocateOption) option).getByteCount());
         }
 
-        SeekableByteChannel bc = new BlockFileByteChannel(head, fileSerializer);
+        FileChannel bc = byteChannel;
         if(options.contains(StandardOpenOption.APPEND)) {
             bc = bc.position(bc.size());
         }
@@ -120,35 +539,7 @@ public class BlockFileController implements OFSController {
             throw new NotDirectoryException(dir.toString());
         }
 
-        return new DirectoryStream<>() {
-            private boolean invoked = false;
-            @NotNull
-            @Override
-            public Iterator<Path> iterator() {
-                if(invoked)
-                    throw new IllegalStateException();
-
-                invoked = true;
-                return new Iterator<>() {
-                    private final List<OFSTreeNode<BlockFileHead>> children = dirNode.getChildDirectories();
-                    private int current = 0;
-                    @Override
-                    public boolean hasNext() {
-                        return current < children.size();
-                    }
-
-                    @Override
-                    public Path next() {
-                        var name = children.get(current).getFile().getName();
-                        current++;
-                        return dir.resolve(Path.of(name));
-                    }
-                };
-            }
-
-            @Override
-            public void close() throws IOException {}
-        };
+        return new BlockDirectoryStream(dir, dirNode, filter);
     }
 
     @Override
@@ -158,46 +549,104 @@ public class BlockFileController implements OFSController {
         return fileTree.exists(path);
     }
 
+    /**
+     * Must be called while holding the lock of the parent directory.
+     */
+    private void allocateDirectory(@NotNull Path dir, boolean compressed) throws IOException {
+        var head = allocateFileHead(dir, true, compressed);
+        var lockedDir = lock(head);
+        try {
+            fileSerializer.serializeDirectory(fileTree.getNode(dir));
+        } finally {
+            unlock(lockedDir);
+        }
+    }
+
     @Override
     public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
         ensureBaseFileIsOpen();
 
-        if(fileTree.exists(dir)) {
-            throw new FileAlreadyExistsException(dir.toString());
+        while(true) {
+            var parent = getExistingParentNode(dir);
+            var locked = beginUpdate(parent.getFile());
+            try {
+                if(fileTree.getParentNode(dir) != parent) {
+                    continue; // The parent changed before it was locked
+                }
+                if(fileTree.exists(dir)) {
+                    throw new FileAlreadyExistsException(dir.toString());
+                }
+
+                allocateDirectory(dir, Arrays.asList(attrs).contains(BlockCompressionOption.COMPRESS));
+                return;
+            } finally {
+                endUpdate(locked);
+            }
         }
+    }
 
-        var parent = fileTree.getParentNode(dir);
-        if(parent == null)
-            throw new NoSuchFileException(dir.toString());
+    /**
+     * Removes the file from the tree and frees its content and head, the list of its parent directory isn't written.
+     * Must be called while holding the locks of the file and its parent directory.
+     */
+    private void removeNode(@NotNull Path path) throws IOException {
+        var head = fileTree.deleteNode(path);
+        head.forEachDataBlock(blockManager.getLargeBlockSpan(), blockManager::freeBlock);
+        for(var block : head.getFullAddress()) {
+            fileSerializer.freeMetadataBlock(block);
+        }
+    }
+
+    /**
+     * Heads to lock for a change that replaces the target, if it exists.
+     */
+    private BlockFileHead[] withReplaced(@Nullable OFSTreeNode<BlockFileHead> replaced, @NotNull BlockFileHead... heads) {
+        if(replaced == null)
+            return heads;
 
-        allocateFileHead(dir, true);
-        fileSerializer.serializeDirectory(fileTree.getNode(dir));
+        var all = Arrays.copyOf(heads, heads.length + 1);
+        all[heads.length] = replaced.getFile();
+        return all;
     }
 
     @Override
     public void delete(Path path) throws IOException {
         ensureBaseFileIsOpen();
 
-        if(!fileTree.exists(path)) {
+        var node = fileTree.getNode(path);
+        if(node == null) {
             throw new NoSuchFileException(path.toString());
         }
 
-        BlockFileHead h = fileTree.deleteNode(path);
+        var parent = getExistingParentNode(path);
+        var locked = beginUpdate(parent.getFile(), node.getFile());
+        try {
+            if(fileTree.getNode(path) != node) {
+                throw new NoSuchFileException(path.toString());
+            }
 
-        for(var block : h.getBlocks()) {
-            blockManager.freeBlock(block);
+            removeNode(path);
+            updateParentDirectory(path);
+        } finally {
+            endUpdate(locked);
         }
-
-        updateParentDirectory(path);
     }
 
+    /**
+     * Copies the file without copying its content: the copy shares the blocks of the source, and whichever
+     * of them is written later gets a private copy of the written block. A directory is copied as an empty one.
+     */
     @Override
     public void copy(Path source, Path target, CopyOption... options) throws IOException {
         ensureBaseFileIsOpen();
 
-        if(!fileTree.exists(source)) {
+        var sourceNode = fileTree.getNode(source);
+        if(sourceNode == null) {
             throw new NoSuchFileException(source.toString());
         }
+        if(source.equals(target)) {
+            return;
+        }
 
         var replaceExisting = false;
         var copyAttributes = false;
@@ -210,39 +659,121 @@ public class BlockFileController implements OFSController {
             }
         }
 
-        if(fileTree.exists(target)) {
-            if(!replaceExisting) {
+        var sourceHead = sourceNode.getFile();
+        while(true) {
+            var targetParent = getExistingParentNode(target);
+            var replaced = fileTree.getNode(target);
+            if(replaced != null && !replaceExisting) {
                 throw new FileAlreadyExistsException(target.toString());
             }
 
-            delete(target);
+            var locked = beginUpdate(withReplaced(replaced, targetParent.getFile(), sourceHead));
+            try {
+                if(fileTree.getNode(source) != sourceNode) {
+                    throw new NoSuchFileException(source.toString());
+                }
+                if(fileTree.getParentNode(target) != targetParent || fileTree.getNode(target) != replaced) {
+                    continue; // The target or its parent changed before they were locked
+                }
+                if(replaced != null) {
+                    removeNode(target);
+                }
+
+                if(sourceNode.isDirectory()) {
+                    allocateDirectory(target, false);
+                } else {
+                    copyFile(sourceHead, target);
+                }
+                return;
+            } finally {
+                endUpdate(locked);
+            }
         }
+    }
 
-        var targetStream = Channels.newOutputStream(newByteChannel(target, Set.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)));
-        var sourceStream = Channels.newInputStream(newByteChannel(source, Set.of(StandardOpenOption.READ)));
-
-        sourceStream.transferTo(targetStream);
-
-        updateParentDirectory(target);
+    /**
+     * Must be called while holding the locks of the source and the parent directory of the target.
+     */
+    private void copyFile(@NotNull BlockFileHead sourceHead, @NotNull Path target) throws IOException {
+        var head = allocateFileHead(target, false, false);
+        var lockedCopy = lock(head);
+        try {
+            sourceHead.forEachDataBlock(blockManager.getLargeBlockSpan(), blockManager::shareBlock);
+            for(var block : sourceHead.getBlocks()) {
+                head.expand(block);
+            }
+            head.setByteCount(sourceHead.getByteCount());
+            head.setCompressed(sourceHead.isCompressed());
+            head.setLargeBlocks(sourceHead.isLargeBlocks());
+            head.setSharedBlocks(true);
+            head.setChecksums(sourceHead.hasChecksums() ? new ArrayList<>(sourceHead.getChecksums()) : null);
+            fileSerializer.serializeFileHead(head);
+
+            if(!sourceHead.isSharedBlocks()) {
+                sourceHead.setSharedBlocks(true);
+                fileSerializer.serializeFileHead(sourceHead);
+            }
+        } finally {
+            unlock(lockedCopy);
+        }
     }
 
+    /**
+     * Renames the file by relinking its head into the target directory. Neither the content nor the children
+     * of a directory are touched, only the name in the head and the lists of both directories are written.
+     */
     @Override
     public void move(Path source, Path target, CopyOption... options) throws IOException {
         ensureBaseFileIsOpen();
 
-        if(!fileTree.exists(source)) {
+        var node = fileTree.getNode(source);
+        if(node == null) {
             throw new NoSuchFileException(source.toString());
         }
+        if(source.equals(target)) {
+            return;
+        }
+        if(target.startsWith(source)) {
+            throw new IOException("Can't move " + source + " into itself");
+        }
 
-        var newHeadBlock = blockManager.allocateBlock();
-        if(newHeadBlock.isEmpty())
-            throw new IOException("Couldn't create new file, not enough space.");
-        BlockFileHead head = fileTree.deleteNode(source).copyWithName(target.getFileName().toString(), newHeadBlock.get());
-
-        fileTree.addNode(target, head);
+        var replaceExisting = Arrays.stream(options).anyMatch(opt -> opt == StandardCopyOption.REPLACE_EXISTING);
+        var head = node.getFile();
+        while(true) {
+            var sourceParent = getExistingParentNode(source);
+            var targetParent = getExistingParentNode(target);
+            var replaced = fileTree.getNode(target);
+            if(replaced != null && !replaceExisting) {
+                throw new FileAlreadyExistsException(target.toString());
+            }
 
-        updateParentDirectory(source);
-        updateParentDirectory(target);
+            var locked = beginUpdate(withReplaced(replaced, sourceParent.getFile(), targetParent.getFile(), head));
+            try {
+                if(fileTree.getNode(source) != node) {
+                    throw new NoSuchFileException(source.toString());
+                }
+                if(fileTree.getParentNode(source) != sourceParent || fileTree.getParentNode(target) != targetParent
+                        || fileTree.getNode(target) != replaced) {
+                    continue; // The target or a parent changed before they were locked
+                }
+                if(replaced != null) {
+                    removeNode(target);
+                }
+
+                var oldName = head.getName();
+                sourceParent.removeChild(node);
+                head.setName(target.getFileName().toString());
+                targetParent.addChild(node);
+
+                fileSerializer.serializeRenamedHead(head, oldName);
+                fileSerializer.serializeDirectory(sourceParent);
+                if(targetParent != sourceParent)
+                    fileSerializer.serializeDirectory(targetParent);
+                return;
+            } finally {
+                endUpdate(locked);
+            }
+        }
     }
 
     @Override
@@ -284,6 +815,37 @@ public class BlockFileController implements OFSController {
         ensureBaseFileIsOpen();
     }
 
+    @Override
+    public OFSController snapshot() throws IOException {
+        ensureBaseFileIsOpen();
+
+        snapshotLock.writeLock().lock();
+        try {
+            var frozenTree = new OFSTree<>(fileTree.getRoot().getFile().frozenCopy());
+            freeze(fileTree.getRoot(), frozenTree.getRoot());
+
+            return new BlockSnapshotController(frozenTree, fileSerializer, blockManager, blockManager.beginSnapshot());
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    private void freeze(@NotNull OFSTreeNode<BlockFileHead> dir, @NotNull OFSTreeNode<BlockFileHead> frozenDir) {
+        for(var child : dir.getAllChildren()) {
+            var frozenChild = new OFSTreeNode<>(child.getFile().frozenCopy());
+            frozenDir.addChild(frozenChild);
+
+            if(child.isDirectory()) {
+                freeze(child, frozenChild);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
     @Override
     public boolean isOpen() {
         return channel.isOpen();
@@ -291,7 +853,71 @@ public class BlockFileController implements OFSController {
 
     @Override
     public void close() throws IOException {
-        channel.close();
+        if(!channel.isOpen())
+            return;
+
+        try {
+            stopBackgroundTasks();
+            journal.close();
+
+            snapshotLock.writeLock().lock();
+            try {
+                deduplicator.clear();
+                log.release();
+                BlockCheckpoint.write(
+                        channel, blockManager, fileTree, reservedBlocks(blockManager.getBlockSize()), superblock
+                );
+            } finally {
+                snapshotLock.writeLock().unlock();
+            }
+            syncer.barrier();
+            superblock.write(channel);
+
+            syncer.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Checks that heads, directory lists and the allocation bitmap agree, see BlockFileChecker.
+     * Changes wait until the check is done. Repair rebuilds the bitmap: leaked blocks are freed and referenced
+     * free blocks are occupied. Damaged heads and directories are repaired by BlockFileChecker.check on an
+     * unmounted container.
+     */
+    public BlockFileChecker.Report fsck(boolean repair) throws IOException {
+        ensureBaseFileIsOpen();
+
+        snapshotLock.writeLock().lock();
+        try {
+            deduplicator.clear();
+            log.release();
+            journal.flush();
+
+            return BlockFileChecker.checkMounted(
+                    channel, blockManager, ROOT_BLOCK, Runtime.getRuntime().availableProcessors(), repair
+            );
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    public BlockSyncer getSyncer() {
+        return syncer;
+    }
+
+    /**
+     * Deduplication of written blocks and its metrics, turned on by BlockFileConfig.setDedupIndexEntries.
+     */
+    public BlockDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    /**
+     * Memory tier of the base file and its hit ratios, turned on by BlockFileConfig.setMemoryTierSize.
+     */
+    public Optional<BlockMemoryTier> getMemoryTier() {
+        return Optional.ofNullable(memoryTier);
     }
 
     void ensureBaseFileIsOpen() throws IOException {
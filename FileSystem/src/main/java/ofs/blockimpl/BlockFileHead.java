@@ -2,37 +2,88 @@ package ofs.blockimpl;
 
 import ofs.controller.OFSFileHead;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
 
 public class BlockFileHead implements OFSFileHead {
+    /**
+     * Entry of the block list for a range that was never written. It has no block and reads as zeros.
+     */
+    public static final int HOLE = -1;
+
+    private static final AtomicLong nextLockOrder = new AtomicLong();
+
     private final ArrayList<Integer> address;
-    private final String name;
+    private volatile String name;
     private final ArrayList<Integer> blocks;
     private final boolean isDirectory;
 
-    private int byteCount = 0;
+    /**
+     * Guards blocks, address and content of the file. For directories it also guards the list of children.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final long lockOrder = nextLockOrder.getAndIncrement();
+    private final BlockFileRangeLocks rangeLocks = new BlockFileRangeLocks();
 
-    public BlockFileHead copyWithName(@NotNull String newName, int newAddress) {
-        var result = new BlockFileHead(newName, isDirectory, newAddress);
-        for(var b : blocks) {
-            result.expand(b);
-        }
+    private volatile long byteCount = 0;
+
+    /**
+     * Content is stored in large blocks, each of them a run of consecutive blocks of BlockManager.
+     */
+    private boolean largeBlocks = false;
+
+    /**
+     * Blocks of the content may be referenced by other files too, copies made by BlockFileController.copy share them.
+     */
+    private boolean sharedBlocks = false;
+
+    /**
+     * Content is stored in deflated chunks, see BlockFileSerializer. New children of a directory with this flag get it too.
+     */
+    private boolean compressed = false;
+
+    /**
+     * Changes whenever a compressed chunk is replaced, so cached chunks of the file can be told apart.
+     */
+    private long contentVersion = 0;
 
-        result.byteCount = byteCount;
+    /**
+     * CRC32C of every block of BlockManager the content spans, a large block having largeBlockSpan of them.
+     * Null for directories and for files written before checksums were kept. See BlockFileSerializer.
+     */
+    private ArrayList<Integer> checksums = null;
+
+    /**
+     * Returns an independent copy of this head, as it is at the moment.
+     */
+    public BlockFileHead frozenCopy() {
+        var result = new BlockFileHead(name, new ArrayList<>(address), byteCount, isDirectory, largeBlocks, new ArrayList<>(blocks));
+        result.sharedBlocks = sharedBlocks;
+        result.compressed = compressed;
+        result.checksums = checksums == null ? null : new ArrayList<>(checksums);
 
         return result;
     }
 
-    BlockFileHead(@NotNull String name, @NotNull ArrayList<Integer> address, int byteCount, boolean isDirectory, @NotNull ArrayList<Integer> blocks) {
-        if(address.size() == 0)
+    BlockFileHead(@NotNull String name, @NotNull ArrayList<Integer> address, long byteCount, boolean isDirectory, @NotNull ArrayList<Integer> blocks) {
+        this(name, address, byteCount, isDirectory, false, blocks);
+    }
+
+    BlockFileHead(@NotNull String name, @NotNull ArrayList<Integer> address, long byteCount, boolean isDirectory,
+                  boolean largeBlocks, @NotNull ArrayList<Integer> blocks) {
+        if(address.size() == 0 || (isDirectory && largeBlocks))
             throw new IllegalArgumentException();
 
         this.name = name;
         this.address = address;
         this.byteCount = byteCount;
         this.isDirectory = isDirectory;
+        this.largeBlocks = largeBlocks;
         this.blocks = blocks;
     }
 
@@ -43,6 +94,21 @@ public class BlockFileHead implements OFSFileHead {
         this.blocks = new ArrayList<>();
     }
 
+    public ReentrantReadWriteLock getLock() {
+        return lock;
+    }
+
+    /**
+     * Unique number used to acquire locks of several files in a globally consistent order.
+     */
+    public long getLockOrder() {
+        return lockOrder;
+    }
+
+    public BlockFileRangeLocks getRangeLocks() {
+        return rangeLocks;
+    }
+
     public ArrayList<Integer> getFullAddress() {
         return address;
     }
@@ -51,11 +117,11 @@ public class BlockFileHead implements OFSFileHead {
         return address.get(index);
     }
 
-    public int getByteCount() {
+    public long getByteCount() {
         return byteCount;
     }
 
-    public void setByteCount(int byteCount) {
+    public void setByteCount(long byteCount) {
         this.byteCount = byteCount;
     }
 
@@ -67,11 +133,109 @@ public class BlockFileHead implements OFSFileHead {
         blocks.add(newBlock);
     }
 
+    public boolean isLargeBlocks() {
+        return largeBlocks;
+    }
+
+    void setLargeBlocks(boolean largeBlocks) {
+        this.largeBlocks = largeBlocks;
+    }
+
+    public boolean isSharedBlocks() {
+        return sharedBlocks;
+    }
+
+    void setSharedBlocks(boolean sharedBlocks) {
+        if(isDirectory && sharedBlocks)
+            throw new IllegalArgumentException("Directories never share blocks");
+
+        this.sharedBlocks = sharedBlocks;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    void setCompressed(boolean compressed) {
+        if(largeBlocks && compressed)
+            throw new IllegalArgumentException("Files in large blocks aren't compressed");
+
+        this.compressed = compressed;
+    }
+
+    public boolean hasChecksums() {
+        return checksums != null;
+    }
+
+    /**
+     * Checksums by the index of the block of BlockManager in the content. The list may be shorter than the content,
+     * missing entries belong to blocks that weren't written yet.
+     */
+    ArrayList<Integer> getChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Starts keeping checksums, the file must have no content yet or the given checksums must match it.
+     * Null stops keeping them.
+     */
+    void setChecksums(@Nullable ArrayList<Integer> checksums) {
+        if(isDirectory && checksums != null)
+            throw new IllegalArgumentException("Directories have no checksums");
+
+        this.checksums = checksums;
+    }
+
+    /**
+     * Makes the list of checksums as long as the content, entries of blocks that weren't written yet are 0.
+     */
+    void fitChecksums(int largeBlockSpan) {
+        if(checksums == null)
+            return;
+
+        var count = blocks.size() * (largeBlocks ? largeBlockSpan : 1);
+        while(checksums.size() < count) {
+            checksums.add(0);
+        }
+        checksums.subList(count, checksums.size()).clear();
+    }
+
+    long getContentVersion() {
+        return contentVersion;
+    }
+
+    void bumpContentVersion() {
+        contentVersion++;
+    }
+
+    /**
+     * Calls action for every block of BlockManager the content occupies, a large block being largeBlockSpan of them.
+     * Holes occupy nothing.
+     */
+    public void forEachDataBlock(int largeBlockSpan, @NotNull IntConsumer action) {
+        var span = largeBlocks ? largeBlockSpan : 1;
+        for(var block : blocks) {
+            if(block == HOLE)
+                continue;
+
+            for(int i = 0; i < span; i++) {
+                action.accept(block + i);
+            }
+        }
+    }
+
     @Override
     public String getName() {
         return this.name;
     }
 
+    /**
+     * Renames the file in place, the head keeps its blocks. The caller relinks it in the tree.
+     */
+    void setName(@NotNull String name) {
+        this.name = name;
+    }
+
     @Override
     public boolean isDirectory() {
         return this.isDirectory;
@@ -83,6 +247,10 @@ public class BlockFileHead implements OFSFileHead {
         if (o == null || getClass() != o.getClass()) return false;
         BlockFileHead that = (BlockFileHead) o;
         return  isDirectory == that.isDirectory &&
+                largeBlocks == that.largeBlocks &&
+                sharedBlocks == that.sharedBlocks &&
+                compressed == that.compressed &&
+                Objects.equals(checksums, that.checksums) &&
                 byteCount == that.byteCount &&
                 name.equals(that.name) &&
                 Objects.equals(address, that.address) &&
@@ -91,6 +259,6 @@ public class BlockFileHead implements OFSFileHead {
 
     @Override
     public int hashCode() {
-        return Objects.hash(address, name, blocks, isDirectory, byteCount);
+        return Objects.hash(address, name, blocks, isDirectory, largeBlocks, sharedBlocks, compressed, checksums, byteCount);
     }
 }
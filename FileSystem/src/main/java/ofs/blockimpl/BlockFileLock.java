@@ -0,0 +1,33 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+public class BlockFileLock extends FileLock {
+    private final BlockFileRangeLocks owner;
+
+    BlockFileLock(@NotNull FileChannel channel, long position, long size, boolean shared, @NotNull BlockFileRangeLocks owner) {
+        super(channel, position, size, shared);
+        this.owner = owner;
+    }
+
+    @Override
+    public boolean isValid() {
+        return owner.isHeld(this);
+    }
+
+    @Override
+    public void release() throws ClosedChannelException {
+        if(!channel().isOpen())
+            throw new ClosedChannelException();
+
+        invalidate();
+    }
+
+    void invalidate() {
+        owner.release(this);
+    }
+}
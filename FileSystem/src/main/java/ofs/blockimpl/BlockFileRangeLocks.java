@@ -0,0 +1,114 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Byte-range locks held on a single file. Locks are indexed by their start position, so only locks starting
+ * in [position - longest lock size, position + size) have to be checked for an overlap. Sizes of held locks are
+ * counted, so the longest size shrinks again when the longest lock is released.
+ * Shared locks never conflict with each other, exclusive locks conflict with any overlapping lock.
+ * A channel requesting a lock overlapping one it already holds gets OverlappingFileLockException, like
+ * FileChannel of the default file system does. Locks of other channels make lock wait and tryLock return null.
+ */
+public class BlockFileRangeLocks {
+    private final TreeMap<Long, List<BlockFileLock>> locksByStart = new TreeMap<>();
+    private final TreeMap<Long, Integer> lockSizes = new TreeMap<>();
+
+    synchronized BlockFileLock lock(@NotNull FileChannel channel, long position, long size, boolean shared) throws InterruptedException {
+        checkRange(position, size);
+
+        while(hasConflict(channel, position, size, shared)) {
+            wait();
+        }
+
+        return add(channel, position, size, shared);
+    }
+
+    synchronized BlockFileLock tryLock(@NotNull FileChannel channel, long position, long size, boolean shared) {
+        checkRange(position, size);
+
+        if(hasConflict(channel, position, size, shared))
+            return null;
+
+        return add(channel, position, size, shared);
+    }
+
+    synchronized void release(@NotNull BlockFileLock lock) {
+        var locks = locksByStart.get(lock.position());
+        if(locks == null || !locks.remove(lock))
+            return;
+
+        if(locks.isEmpty())
+            locksByStart.remove(lock.position());
+        lockSizes.computeIfPresent(lock.size(), (size, count) -> count > 1 ? count - 1 : null);
+
+        notifyAll();
+    }
+
+    synchronized void releaseAll(@NotNull FileChannel channel) {
+        for(var lock : heldLocks()) {
+            if(lock.channel() == channel)
+                lock.invalidate();
+        }
+    }
+
+    synchronized boolean isHeld(@NotNull BlockFileLock lock) {
+        var locks = locksByStart.get(lock.position());
+        return locks != null && locks.contains(lock);
+    }
+
+    synchronized List<BlockFileLock> heldLocks() {
+        var result = new ArrayList<BlockFileLock>();
+        for(var locks : locksByStart.values()) {
+            result.addAll(locks);
+        }
+
+        return result;
+    }
+
+    private void checkRange(long position, long size) {
+        if(position < 0 || size < 0)
+            throw new IllegalArgumentException("Negative position or size");
+    }
+
+    private static long end(long position, long size) {
+        var end = position + size;
+        return end < 0 ? Long.MAX_VALUE : end; // overflow, e.g. lock() of the whole file
+    }
+
+    private boolean hasConflict(@NotNull FileChannel channel, long position, long size, boolean shared) {
+        var end = end(position, size);
+        var longestLock = lockSizes.isEmpty() ? 0 : lockSizes.lastKey();
+        var from = Math.max(0, position - longestLock);
+
+        for(var locks : locksByStart.subMap(from, true, end, false).values()) {
+            for(var lock : locks) {
+                if(end(lock.position(), lock.size()) <= position)
+                    continue;
+
+                if(lock.channel() == channel)
+                    throw new OverlappingFileLockException();
+
+                if(!shared || !lock.isShared())
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    private BlockFileLock add(@NotNull FileChannel channel, long position, long size, boolean shared) {
+        var lock = new BlockFileLock(channel, position, size, shared, this);
+        locksByStart.computeIfAbsent(position, p -> new ArrayList<>()).add(lock);
+        lockSizes.merge(size, 1, Integer::sum);
+
+        return lock;
+    }
+}
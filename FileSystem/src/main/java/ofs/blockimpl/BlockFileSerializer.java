@@ -1,77 +1,421 @@
 package ofs.blockimpl;
 
-import ofs.OFSPath;
 import ofs.tree.OFSTreeNode;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.CRC32C;
+import java.util.zip.Inflater;
 
 public class BlockFileSerializer {
     private final BlockManager blockManager;
-    private final SeekableByteChannel channel;
+    private final FileChannel channel;
     private final int EMPTY = -1;
+    private static final int DIRECTORY_FLAG = 1;
+    private static final int LARGE_BLOCKS_FLAG = 2;
+    private static final int SHARED_BLOCKS_FLAG = 4;
+    private static final int COMPRESSED_FLAG = 8;
+    private static final int CHECKSUMS_FLAG = 16;
+
+    /**
+     * Compressed files are stored in chunks of this many bytes, or of one block if blocks are larger. Chunk i owns
+     * the entries [i * chunkBlocks, (i + 1) * chunkBlocks) of the block list, so the block list is the chunk index
+     * and a read inflates only the chunks it touches. A chunk using all of its entries is stored as it is, otherwise
+     * its first four bytes are the length of the deflated data that follows and the unused entries are holes.
+     * A chunk whose first entry is a hole was never written.
+     */
+    private static final int COMPRESSION_CHUNK_SIZE = 64 * 1024;
+
+    private long largeFileThreshold = Long.MAX_VALUE;
+    private boolean verifyChecksums = true;
+    private BlockDeduplicator deduplicator = null;
+    private BlockLog log = null;
+
+    private BlockJournal journal = null;
+    private final ThreadLocal<BlockJournal.Transaction> transaction = new ThreadLocal<>();
+    private final ThreadLocal<Integer> transactionDepth = ThreadLocal.withInitial(() -> 0);
+
+    /**
+     * Last chunk inflated by the thread, sequential reads of small pieces inflate every chunk once.
+     */
+    private static class CachedChunk {
+        final BlockFileHead file;
+        final int index;
+        final long version;
+        final byte[] content;
+
+        CachedChunk(BlockFileHead file, int index, long version, byte[] content) {
+            this.file = file;
+            this.index = index;
+            this.version = version;
+            this.content = content;
+        }
+    }
+
+    private final ThreadLocal<CachedChunk> lastChunk = new ThreadLocal<>();
+    private ThreadLocal<ByteBuffer> alignedBuffer;
 
-    public BlockFileSerializer(@NotNull SeekableByteChannel channel, @NotNull BlockManager blockManager) {
+    /**
+     * All I/O goes through positional FileChannel.read/write, so the channel's own position is never touched
+     * and several byte channels may use one serializer at the same time.
+     */
+    public BlockFileSerializer(@NotNull FileChannel channel, @NotNull BlockManager blockManager) {
         this.blockManager = blockManager;
         this.channel = channel;
     }
 
-    private void seekBlock(int block) throws IOException {
-        channel.position(blockManager.getBlockSize() * block);
+    /**
+     * Files growing past the threshold move to large blocks, if BlockManager has them.
+     */
+    public void setLargeFileThreshold(long largeFileThreshold) {
+        this.largeFileThreshold = largeFileThreshold;
+    }
+
+    /**
+     * Whether reads compare the content with its checksums. Checksums are kept up to date either way.
+     */
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    /**
+     * From now on full new blocks of files in small blocks are looked up in the deduplicator before they are written.
+     */
+    void setDeduplicator(@NotNull BlockDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    /**
+     * From now on content of files in small blocks is written log-structured, see writeLogged.
+     */
+    void setLog(@NotNull BlockLog log) {
+        this.log = log;
+    }
+
+    /**
+     * From now on blocks of content are read and written through a per-thread direct buffer aligned to the block
+     * size, so BlockDirectChannel passes them to the file without copying them to its bounce buffer.
+     */
+    void setAlignedBuffers() {
+        var blockSize = blockManager.getBlockSize();
+        var alignment = Integer.lowestOneBit(blockSize);
+        alignedBuffer = ThreadLocal.withInitial(() ->
+                ByteBuffer.allocateDirect(blockSize + alignment).alignedSlice(alignment).limit(blockSize).slice()
+        );
+    }
+
+    /**
+     * Buffer for a single block of content, which doesn't outlive the call that took it.
+     */
+    private ByteBuffer blockBuffer() {
+        if(alignedBuffer == null)
+            return ByteBuffer.allocate(blockManager.getBlockSize());
+
+        return alignedBuffer.get().clear();
+    }
+
+    /**
+     * From now on heads and directory lists are written through the journal.
+     */
+    void setJournal(@NotNull BlockJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Starts collecting metadata writes of the current thread into a single journal transaction.
+     * Transactions may be nested, only the outermost commitTransaction writes to the journal.
+     */
+    public void beginTransaction() {
+        if(journal == null)
+            return;
+
+        var depth = transactionDepth.get();
+        if(depth == 0)
+            transaction.set(new BlockJournal.Transaction());
+
+        transactionDepth.set(depth + 1);
     }
 
-    private void seekPositionInFile(@NotNull BlockFileHead fileHead, int position) throws IOException {
-        var offset = position % blockManager.getBlockSize();
-        var currentBlock = position / blockManager.getBlockSize();
+    public void commitTransaction() throws IOException {
+        if(journal == null)
+            return;
+
+        var depth = transactionDepth.get() - 1;
+        transactionDepth.set(depth);
+        if(depth > 0)
+            return;
 
-        channel.position(fileHead.getBlocks().get(currentBlock) * blockManager.getBlockSize() + offset);
+        var current = transaction.get();
+        transaction.remove();
+        journal.commit(current);
+    }
+
+    /**
+     * Writes a whole metadata block: directly if there is no journal, otherwise as a part of the current transaction.
+     */
+    private void writeMetadataBlock(int block, @NotNull ByteBuffer content) throws IOException {
+        var image = ByteBuffer.allocate(blockManager.getBlockSize());
+        image.put(content);
+        image.clear();
+
+        if(journal == null) {
+            writeFully(image, blockPosition(block));
+            return;
+        }
+
+        var current = transaction.get();
+        if(current == null) {
+            var single = new BlockJournal.Transaction();
+            single.put(block, image);
+            journal.commit(single);
+        } else {
+            current.put(block, image);
+        }
+    }
+
+    /**
+     * Frees a head block: directly if there is no journal, otherwise once the change that stops referring to it
+     * is checkpointed.
+     */
+    public void freeMetadataBlock(int block) throws IOException {
+        if(journal == null) {
+            blockManager.freeBlock(block);
+            return;
+        }
+
+        var current = transaction.get();
+        if(current == null) {
+            var single = new BlockJournal.Transaction();
+            single.free(block);
+            journal.commit(single);
+        } else {
+            current.free(block);
+        }
+    }
+
+    /**
+     * Forces everything written so far to the storage device.
+     */
+    public void sync() throws IOException {
+        if(journal == null) {
+            channel.force(false);
+            return;
+        }
+
+        journal.getSyncer().sync();
+    }
+
+    public int getBlockSize() {
+        return blockManager.getBlockSize();
+    }
+
+    private long blockPosition(int block) {
+        return (long) blockManager.getBlockSize() * block;
+    }
+
+    /**
+     * Size of the blocks in the block list of the file.
+     */
+    private int fileBlockSize(@NotNull BlockFileHead fileHead) {
+        return fileHead.isLargeBlocks() ? blockManager.getLargeBlockSize() : blockManager.getBlockSize();
+    }
+
+    private int fileBlockSpan(@NotNull BlockFileHead fileHead) {
+        return fileHead.isLargeBlocks() ? blockManager.getLargeBlockSpan() : 1;
+    }
+
+    private long positionInBaseFile(@NotNull BlockFileHead fileHead, long position) {
+        var fileBlockSize = fileBlockSize(fileHead);
+        var offset = position % fileBlockSize;
+        var currentBlock = (int) (position / fileBlockSize);
+
+        return blockPosition(fileHead.getBlocks().get(currentBlock)) + offset;
+    }
+
+    private boolean isHole(@NotNull BlockFileHead fileHead, long position) {
+        var index = position / fileBlockSize(fileHead);
+        var blocks = fileHead.getBlocks();
+
+        return index >= blocks.size() || blocks.get((int) index) == BlockFileHead.HOLE;
+    }
+
+    private void writeFully(@NotNull ByteBuffer src, long position) throws IOException {
+        while(src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * Reads until dst is full. Bytes past the end of the base file were never written, so they are read as zeros.
+     */
+    private void readFully(@NotNull ByteBuffer dst, long position) throws IOException {
+        while(dst.hasRemaining()) {
+            var read = channel.read(dst, position);
+            if(read < 0) {
+                while(dst.hasRemaining())
+                    dst.put((byte) 0);
+                return;
+            }
+
+            position += read;
+        }
     }
 
     public void serializeFileHead(@NotNull BlockFileHead fileHead) throws IOException {
         ensureHeadHasEnoughBlocks(fileHead);
 
-        var serialized = ByteBuffer.allocate(blockManager.getBlockSize());
+        var all = new BitSet();
+        all.set(0, fileHead.getFullAddress().size());
+        writeHead(fileHead, all);
+    }
+
+    /**
+     * Writes the head after a rename. The name is in the first head block, the other blocks are written only
+     * if a name of another length moved the block list.
+     */
+    public void serializeRenamedHead(@NotNull BlockFileHead fileHead, @NotNull String oldName) throws IOException {
+        if(fileHead.getName().getBytes().length == oldName.getBytes().length) {
+            serializeByteCount(fileHead);
+        } else {
+            serializeFileHead(fileHead);
+        }
+    }
+
+    /**
+     * Writes only the first head block, which holds the byte count. Enough when the block list didn't change.
+     */
+    private void serializeByteCount(@NotNull BlockFileHead fileHead) throws IOException {
+        var first = new BitSet();
+        first.set(0);
+        writeHead(fileHead, first);
+    }
 
+    /**
+     * Writes the head blocks holding the given entries of the block list and the checksums of the given blocks
+     * of BlockManager in the content, the first head block if the byte count or the block list changed,
+     * and every head block from the old end of the block list on if its length changed. So an append writes
+     * the first and the last head blocks, however long the file is.
+     */
+    private void serializeEntries(@NotNull BlockFileHead fileHead, @NotNull BitSet changedBlocks, @NotNull BitSet units,
+                                  int oldBlockCount, boolean byteCountChanged) throws IOException {
+        ensureHeadHasEnoughBlocks(fileHead);
+
+        var blockCount = fileHead.getBlocks().size();
+        var headBlocks = new BitSet();
+        if(byteCountChanged || !changedBlocks.isEmpty() || blockCount != oldBlockCount)
+            headBlocks.set(0);
+
+        var stride = entryStride(fileHead);
+        var span = fileBlockSpan(fileHead);
+        for(int i = changedBlocks.nextSetBit(0); i >= 0 && i < blockCount; i = changedBlocks.nextSetBit(i + 1)) {
+            headBlocks.set(headBlockOf(fileHead, (long) i * stride));
+        }
+        for(int unit = units.nextSetBit(0); unit >= 0 && unit / span < blockCount; unit = units.nextSetBit(unit + 1)) {
+            headBlocks.set(headBlockOf(fileHead, (long) unit / span * stride + 1 + unit % span));
+        }
+
+        // Includes the head block, whose next address changes when the chain grows or shrinks
+        if(blockCount != oldBlockCount) {
+            var firstMoved = (long) Math.min(blockCount, oldBlockCount) * stride;
+            headBlocks.set(headBlockOf(fileHead, Math.max(0, firstMoved - 1)), fileHead.getFullAddress().size());
+        }
+
+        writeHead(fileHead, headBlocks);
+    }
+
+    /**
+     * Number of head entries per entry of the block list: the block, followed by the checksums of its blocks
+     * of BlockManager if the file has them. Entries of a block list entry stay in place when the list grows.
+     */
+    static int entryStride(boolean checksums, boolean largeBlocks, int largeBlockSpan) {
+        return checksums ? 1 + (largeBlocks ? largeBlockSpan : 1) : 1;
+    }
+
+    private int entryStride(@NotNull BlockFileHead fileHead) {
+        return entryStride(fileHead.hasChecksums(), fileHead.isLargeBlocks(), blockManager.getLargeBlockSpan());
+    }
+
+    /**
+     * Splits head entries into the block list and the checksums, see entryStride.
+     */
+    static void splitEntries(@NotNull List<Integer> entries, int stride,
+                             @NotNull List<Integer> blocks, @NotNull List<Integer> checksums) {
+        for(int entry = 0; entry < entries.size(); entry++) {
+            (entry % stride == 0 ? blocks : checksums).add(entries.get(entry));
+        }
+    }
+
+    private int headBlockOf(@NotNull BlockFileHead fileHead, long entry) {
+        var inFirstHeadBlock = entriesInFirstHeadBlock(fileHead);
+        var inNextHeadBlocks = (blockManager.getBlockSize() - 4) / 4;
+
+        return entry < inFirstHeadBlock ? 0 : (int) (1 + (entry - inFirstHeadBlock) / inNextHeadBlocks);
+    }
+
+    /**
+     * The head is a chain of blocks holding the block list, every block followed by its checksums if the file
+     * has them. Only the head blocks set in headBlocks are written.
+     */
+    private void writeHead(@NotNull BlockFileHead fileHead, @NotNull BitSet headBlocks) throws IOException {
+        fileHead.fitChecksums(blockManager.getLargeBlockSpan());
+        var blocks = fileHead.getBlocks();
+        var checksums = fileHead.hasChecksums() ? fileHead.getChecksums() : new ArrayList<Integer>();
+        var stride = entryStride(fileHead);
+        var span = stride - 1;
+        var entryCount = (long) blocks.size() * stride;
+
+        var serialized = ByteBuffer.allocate(blockManager.getBlockSize());
         var nameBytes = fileHead.getName().getBytes();
         serialized.putInt(nameBytes.length); serialized.put(nameBytes);
         serialized.putInt(fileHead.getFullAddress().size() == 1 ? EMPTY : fileHead.getFullAddress().get(1));
-        serialized.putInt(fileHead.getByteCount());
-        serialized.put((byte) (fileHead.isDirectory() ? 1 : 0));
-
-        var blocks = fileHead.getBlocks();
+        serialized.putLong(fileHead.getByteCount());
+        var flags = (fileHead.isDirectory() ? DIRECTORY_FLAG : 0) | (fileHead.isLargeBlocks() ? LARGE_BLOCKS_FLAG : 0)
+                | (fileHead.isSharedBlocks() ? SHARED_BLOCKS_FLAG : 0) | (fileHead.isCompressed() ? COMPRESSED_FLAG : 0)
+                | (fileHead.hasChecksums() ? CHECKSUMS_FLAG : 0);
+        serialized.put((byte) flags);
         serialized.putInt(blocks.size());
-        int block = 0;
-        while(block < blocks.size() && serialized.remaining() >= 4) {
-            serialized.putInt(blocks.get(block));
-            block++;
-        }
-
-        seekBlock(fileHead.getAddress(0)); serialized.flip();
-        channel.write(serialized);
-
-        int currentHeadBlock = 1;
-        while(block < blocks.size()) {
-            serialized.clear();
-            var lastBlock = currentHeadBlock + 1 == fileHead.getFullAddress().size();
-            serialized.putInt(lastBlock ? EMPTY : fileHead.getAddress(currentHeadBlock + 1));
-            while(block < blocks.size() && serialized.remaining() > 4) {
-                serialized.putInt(blocks.get(block));
-                block++;
+
+        var entry = 0L;
+        for(int headBlock = 0; headBlock < fileHead.getFullAddress().size(); headBlock++) {
+            if(headBlock > 0) {
+                if(entry >= entryCount)
+                    break;
+
+                serialized.clear();
+                var lastBlock = headBlock + 1 == fileHead.getFullAddress().size();
+                serialized.putInt(lastBlock ? EMPTY : fileHead.getAddress(headBlock + 1));
+            }
+
+            if(!headBlocks.get(headBlock)) {
+                entry += serialized.remaining() / 4;
+                continue;
             }
 
-            seekBlock(fileHead.getFullAddress().get(currentHeadBlock));
-            channel.write(serialized);
+            while(entry < entryCount && serialized.remaining() >= 4) {
+                var index = (int) (entry / stride);
+                var inStride = (int) (entry % stride);
+                serialized.putInt(inStride == 0 ? blocks.get(index) : checksums.get(index * span + inStride - 1));
+                entry++;
+            }
+
+            serialized.flip();
+            writeMetadataBlock(fileHead.getAddress(headBlock), serialized);
         }
     }
 
     public BlockFileHead deserializeFileHead(int block) throws IOException {
-        seekBlock(block);
-
         var in = ByteBuffer.allocate(blockManager.getBlockSize());
-        channel.read(in);
+        readFully(in, blockPosition(block));
         in.flip();
 
         int nameLength = in.getInt();
@@ -81,57 +425,81 @@ public class BlockFileSerializer {
         var name = new String(nameBytes);
         var address = new ArrayList<Integer>(); address.add(block);
         var nextAddress = in.getInt();
-        var byteCount = in.getInt();
-        var isDirectory = in.get() > 0;
+        var byteCount = in.getLong();
+        var flags = in.get();
 
         var blockCount = in.getInt();
-        var blocks = new ArrayList<Integer>();
-
-        while(in.remaining() >= 4 && blocks.size() < blockCount) {
-            blocks.add(in.getInt());
+        var largeBlocks = (flags & LARGE_BLOCKS_FLAG) != 0;
+        var hasChecksums = (flags & CHECKSUMS_FLAG) != 0;
+        var stride = entryStride(hasChecksums, largeBlocks, blockManager.getLargeBlockSpan());
+        var entryCount = (long) blockCount * stride;
+        var entries = new ArrayList<Integer>();
+
+        while(in.remaining() >= 4 && entries.size() < entryCount) {
+            entries.add(in.getInt());
         }
 
-        while(blocks.size() < blockCount) {
+        while(entries.size() < entryCount) {
             in.clear();
             if(nextAddress == EMPTY)
                 throw new IllegalArgumentException("Wrong format, not enough header blocks");
             address.add(nextAddress);
 
-            seekBlock(nextAddress);
-            channel.read(in); in.flip();
+            readFully(in, blockPosition(nextAddress));
+            in.flip();
 
             nextAddress = in.getInt();
-            while(blocks.size() < blockCount && in.remaining() >= 4) {
-                blocks.add(in.getInt());
+            while(entries.size() < entryCount && in.remaining() >= 4) {
+                entries.add(in.getInt());
             }
         }
 
-        return new BlockFileHead(name, address, byteCount, isDirectory, blocks);
+        var blocks = new ArrayList<Integer>();
+        var checksums = new ArrayList<Integer>();
+        splitEntries(entries, stride, blocks, checksums);
+        var head = new BlockFileHead(name, address, byteCount, (flags & DIRECTORY_FLAG) != 0, largeBlocks, blocks);
+        head.setSharedBlocks((flags & SHARED_BLOCKS_FLAG) != 0);
+        head.setCompressed((flags & COMPRESSED_FLAG) != 0);
+        if(hasChecksums)
+            head.setChecksums(checksums);
+
+        return head;
     }
 
-    private void ensureHeadHasEnoughBlocks(@NotNull BlockFileHead file) throws IOException {
-        var headerSize =
+    /**
+     * Number of entries of the block list and checksums that fit into the first head block, after the name.
+     */
+    private int entriesInFirstHeadBlock(@NotNull BlockFileHead file) {
+        var fixedHeaderSize =
                 4 + //name length
-                OFSPath.MAX_NAME_LENGTH + // nameBytes
+                file.getName().getBytes().length + // nameBytes
                 4 + // next Address
-                4 + // content byte count
-                1 + // isDirectory
-                4 + // content blocks count
-                4 * file.getBlocks().size(); // content blocks themselves
+                8 + // content byte count
+                1 + // flags
+                4; // content blocks count
 
-        var blockSize = blockManager.getBlockSize();
+        return (blockManager.getBlockSize() - fixedHeaderSize) / 4;
+    }
 
-        if(headerSize <= blockSize)
-            return;
+    private void ensureHeadHasEnoughBlocks(@NotNull BlockFileHead file) throws IOException {
+        file.fitChecksums(blockManager.getLargeBlockSpan());
+        var entryCount = (long) file.getBlocks().size() * entryStride(file);
+
+        var blocksInFirstHeadBlock = entriesInFirstHeadBlock(file);
+        var blocksInNextHeadBlocks = (blockManager.getBlockSize() - 4) / 4; // each next head block starts with the next address
+        var blocksLeft = entryCount - blocksInFirstHeadBlock;
 
-        var additionalBlocks = (int) Math.ceil((headerSize - blockSize) / (1.0 * blockSize - 4.0));
+        var additionalBlocks = blocksLeft <= 0 ? 0 : (int) Math.ceil(blocksLeft / (1.0 * blocksInNextHeadBlocks));
 
         var fullAddress = file.getFullAddress();
-        while(fullAddress.size() > additionalBlocks) {
+        while(fullAddress.size() - 1 > additionalBlocks) {
             var last = fullAddress.remove(fullAddress.size() - 1);
             blockManager.freeBlock(last);
         }
 
+        if(fullAddress.size() - 1 == additionalBlocks)
+            return;
+
         var tail = blockManager.allocateBlocks(additionalBlocks - (fullAddress.size() - 1));
         if(tail.isEmpty())
             throw new IOException("Couldn't allocate file header. Not enough space");
@@ -139,108 +507,839 @@ public class BlockFileSerializer {
         fullAddress.addAll(tail.get());
     }
 
-    private void ensureFileHasEnoughBlocks(@NotNull BlockFileHead file, int requiredCapacity) throws IOException {
-        var neededBlocks = (int) Math.ceil(requiredCapacity / (1.0 * blockManager.getBlockSize()));
-        var blocksToAllocate = neededBlocks - file.getBlocks().size();
-        if(blocksToAllocate <= 0)
+    /**
+     * Allocates the blocks under [from, to) that the file doesn't have yet. The block list is extended up to to,
+     * blocks before from that the file didn't have stay holes.
+     * @return indexes of the blocks allocated now, their content is undefined.
+     */
+    private BitSet allocateBlocksForWrite(@NotNull BlockFileHead file, long from, long to) throws IOException {
+        var blockSize = fileBlockSize(file);
+        var neededBlocks = (to + blockSize - 1) / blockSize;
+        if(neededBlocks > Integer.MAX_VALUE)
+            throw new IOException("File is too large.");
+
+        var blocks = file.getBlocks();
+        var missing = new ArrayList<Integer>();
+        for(int i = (int) (from / blockSize); from < to && i < neededBlocks; i++) {
+            if(i >= blocks.size() || blocks.get(i) == BlockFileHead.HOLE)
+                missing.add(i);
+        }
+
+        var allocated = file.isLargeBlocks()
+                ? blockManager.allocateLargeBlocks(missing.size())
+                : blockManager.allocateBlocks(missing.size());
+        if(allocated.isEmpty()) {
+            throw new IOException("Couldn't allocate enough space.");
+        }
+
+        while(blocks.size() < neededBlocks) {
+            blocks.add(BlockFileHead.HOLE);
+        }
+
+        var fresh = new BitSet();
+        for(int i = 0; i < missing.size(); i++) {
+            blocks.set(missing.get(i), allocated.get().get(i));
+            fresh.set(missing.get(i));
+        }
+
+        return fresh;
+    }
+
+    /**
+     * Moves a small file to large blocks once it grows past the threshold. The content is copied, the head is
+     * written and only then the small blocks are freed. If there is no room for large blocks, the file stays as it is.
+     * Large blocks covering only holes stay holes.
+     */
+    private void moveToLargeBlocksIfNeeded(@NotNull BlockFileHead file, long requiredCapacity) throws IOException {
+        var span = blockManager.getLargeBlockSpan();
+        if(file.isLargeBlocks() || file.isDirectory() || file.isCompressed() || span == 1
+                || requiredCapacity <= largeFileThreshold)
+            return;
+
+        var smallBlocks = file.getBlocks();
+        var usedLargeBlocks = new ArrayList<Integer>();
+        for(int i = 0; i < smallBlocks.size(); i++) {
+            var isNew = usedLargeBlocks.isEmpty() || usedLargeBlocks.get(usedLargeBlocks.size() - 1) != i / span;
+            if(smallBlocks.get(i) != BlockFileHead.HOLE && isNew)
+                usedLargeBlocks.add(i / span);
+        }
+
+        var allocated = blockManager.allocateLargeBlocks(usedLargeBlocks.size());
+        if(allocated.isEmpty())
+            return;
+
+        var largeBlocks = new ArrayList<>(Collections.nCopies((smallBlocks.size() + span - 1) / span, BlockFileHead.HOLE));
+        var blockSize = blockManager.getBlockSize();
+        var buffer = blockBuffer();
+        var zeros = new byte[blockSize];
+        for(int i = 0; i < usedLargeBlocks.size(); i++) {
+            var index = usedLargeBlocks.get(i);
+            var largeBlock = allocated.get().get(i);
+            largeBlocks.set(index, largeBlock);
+
+            // Parts of the large block, that were holes, must read as zeros
+            for(int j = 0; j < span; j++) {
+                var smallIndex = index * span + j;
+                buffer.clear();
+                if(smallIndex < smallBlocks.size() && smallBlocks.get(smallIndex) != BlockFileHead.HOLE) {
+                    readFully(buffer, blockPosition(smallBlocks.get(smallIndex)));
+                } else {
+                    buffer.put(zeros);
+                    if(file.hasChecksums())
+                        updateChecksum(file, smallIndex, ByteBuffer.wrap(zeros));
+                }
+                buffer.flip();
+                writeFully(buffer, blockPosition(largeBlock + j));
+            }
+        }
+
+        var oldBlocks = new ArrayList<>(smallBlocks);
+        smallBlocks.clear();
+        smallBlocks.addAll(largeBlocks);
+        file.setLargeBlocks(true);
+        serializeFileHead(file);
+
+        for(var block : oldBlocks) {
+            if(block != BlockFileHead.HOLE)
+                blockManager.freeBlock(block);
+        }
+    }
+
+    /**
+     * Gives the file blocks for its first byteCount bytes, so that writes there need no allocation. Blocks are taken
+     * as a single run if possible and aren't written, so only blocks past the end of the file are preallocated,
+     * holes inside the file must keep reading as zeros. The byte count of the file doesn't change.
+     * Compressed files aren't preallocated, their chunks get new blocks on every write anyway.
+     */
+    public void preallocate(@NotNull BlockFileHead file, long byteCount) throws IOException {
+        if(file.isDirectory())
+            throw new IllegalArgumentException("Directories can't be preallocated");
+        if(file.isCompressed())
+            return;
+
+        moveToLargeBlocksIfNeeded(file, byteCount);
+
+        var blockSize = fileBlockSize(file);
+        var neededBlocks = (byteCount + blockSize - 1) / blockSize;
+        if(neededBlocks > Integer.MAX_VALUE)
+            throw new IOException("File is too large.");
+
+        var blocks = file.getBlocks();
+        var missing = new ArrayList<Integer>();
+        for(int i = 0; i < neededBlocks; i++) {
+            var isMissing = i >= blocks.size() || blocks.get(i) == BlockFileHead.HOLE;
+            if(isMissing && (long) i * blockSize >= file.getByteCount())
+                missing.add(i);
+        }
+        if(missing.isEmpty())
             return;
 
-        var blocks = blockManager.allocateBlocks(blocksToAllocate);
-        if(blocks.isEmpty()) {
+        Optional<ArrayList<Integer>> allocated;
+        if(file.isLargeBlocks()) {
+            allocated = blockManager.allocateLargeBlocks(missing.size());
+        } else {
+            allocated = blockManager.allocateContiguous(missing.size()).map(start -> {
+                var run = new ArrayList<Integer>(missing.size());
+                for(int i = 0; i < missing.size(); i++) {
+                    run.add(start + i);
+                }
+                return run;
+            });
+            if(allocated.isEmpty())
+                allocated = blockManager.allocateBlocks(missing.size());
+        }
+        if(allocated.isEmpty())
             throw new IOException("Couldn't allocate enough space.");
+
+        while(blocks.size() < neededBlocks) {
+            blocks.add(BlockFileHead.HOLE);
         }
+        for(int i = 0; i < missing.size(); i++) {
+            blocks.set(missing.get(i), allocated.get().get(i));
+        }
+
+        serializeFileHead(file);
+    }
 
-        for(var block : blocks.get()) {
-            file.expand(block);
+    /**
+     * Bytes past the end of a file may be anything, e.g. in preallocated blocks. A write starting past the end
+     * makes them a part of the file, so they are zeroed first. Indexes of blocks that had to be copied, because
+     * they were pinned, are set in changedBlocks.
+     */
+    private void zeroAllocatedRange(@NotNull BlockFileHead file, long from, long to, @NotNull BitSet fresh,
+                                    @NotNull BitSet changedBlocks, @NotNull BitSet changedUnits) throws IOException {
+        var fileBlockSize = fileBlockSize(file);
+        while(from < to) {
+            var bytes = (int) Math.min(to - from, fileBlockSize - from % fileBlockSize);
+            var index = (int) (from / fileBlockSize);
+            // Fresh blocks are written whole by the write itself, their old content means nothing
+            if(!isHole(file, from) && !fresh.get(index)) {
+                if(copyBlockIfShared(file, index))
+                    changedBlocks.set(index);
+                writeContent(ByteBuffer.allocate(bytes), file, from, changedUnits);
+            }
+            from += bytes;
         }
     }
 
-    public int writeAt(@NotNull ByteBuffer src, @NotNull BlockFileHead file, int positionInFile) throws IOException {
-        var bytesWritten = 0;
-        var startingPosition = positionInFile;
+    /**
+     * A block pinned by a snapshot or shared with another file must stay unchanged, so the file gets a private copy
+     * of it before it is written. Pins and shares cover all blocks of a large block, so checking its first block is enough.
+     * @return true if the block was copied.
+     */
+    private boolean copyBlockIfShared(@NotNull BlockFileHead file, int index) throws IOException {
+        var block = file.getBlocks().get(index);
+        if(!blockManager.isPinned(block) && !blockManager.isShared(block))
+            return false;
+
+        var span = fileBlockSpan(file);
+        var copy = span == 1 ? blockManager.allocateBlock() : blockManager.allocateLargeBlocks(1).map(l -> l.get(0));
+        if(copy.isEmpty())
+            throw new IOException("Couldn't allocate enough space.");
+
+        var buffer = blockBuffer();
+        for(int i = 0; i < span; i++) {
+            buffer.clear();
+            readFully(buffer, blockPosition(block + i));
+            buffer.flip();
+            writeFully(buffer, blockPosition(copy.get() + i));
+        }
+
+        file.getBlocks().set(index, copy.get());
+        blockManager.freeBlocks(block, span);
+        return true;
+    }
+
+    static int checksum(@NotNull ByteBuffer block) {
+        var crc = new CRC32C();
+        crc.update(block.duplicate());
+        return (int) crc.getValue();
+    }
 
-        ensureFileHasEnoughBlocks(file, positionInFile + src.remaining());
+    /**
+     * Block of BlockManager holding the given block of BlockManager size of the content, HOLE if there is none.
+     */
+    private int unitBlock(@NotNull BlockFileHead file, int unit) {
+        var span = fileBlockSpan(file);
+        var blocks = file.getBlocks();
+        if(unit / span >= blocks.size() || blocks.get(unit / span) == BlockFileHead.HOLE)
+            return BlockFileHead.HOLE;
 
-        ByteBuffer buffer = ByteBuffer.allocate(blockManager.getBlockSize());
+        return blocks.get(unit / span) + unit % span;
+    }
+
+    /**
+     * Whether the checksum of the unit is known. Blocks are checksummed whenever they are written, blocks past
+     * the end of a file may be preallocated without being written. Chunks of compressed files are written whole.
+     */
+    private boolean hasChecksum(@NotNull BlockFileHead file, int unit) {
+        return file.hasChecksums() && unit < file.getChecksums().size() && unitBlock(file, unit) != BlockFileHead.HOLE
+                && (file.isCompressed() || (long) unit * blockManager.getBlockSize() < file.getByteCount());
+    }
+
+    private void updateChecksum(@NotNull BlockFileHead file, int unit, @NotNull ByteBuffer content) {
+        var checksums = file.getChecksums();
+        while(checksums.size() <= unit) {
+            checksums.add(0);
+        }
+        checksums.set(unit, checksum(content));
+    }
+
+    private void verifyChecksum(@NotNull BlockFileHead file, int unit, @NotNull ByteBuffer content) throws IOException {
+        if(hasChecksum(file, unit) && file.getChecksums().get(unit) != checksum(content)) {
+            throw new IOException(String.format(
+                    "Block %d of %s is damaged, its checksum doesn't match", unitBlock(file, unit), file.getName()
+            ));
+        }
+    }
+
+    /**
+     * Writes src at the position of the file, into one of its blocks. With checksums every touched block
+     * of BlockManager is read, verified and written whole with its new checksum, its index is set in changedUnits.
+     * A damaged block isn't merged with new data, unless verification is off.
+     */
+    private void writeContent(@NotNull ByteBuffer src, @NotNull BlockFileHead file, long position,
+                              @NotNull BitSet changedUnits) throws IOException {
+        if(!file.hasChecksums()) {
+            writeFully(src, positionInBaseFile(file, position));
+            return;
+        }
+
+        var blockSize = blockManager.getBlockSize();
+        var content = blockBuffer();
         while(src.hasRemaining()) {
-            var remainingBytesInCurrentBLock = blockManager.getBlockSize() - positionInFile % blockManager.getBlockSize();
+            var unit = (int) (position / blockSize);
+            var offset = (int) (position % blockSize);
+            var bytes = Math.min(src.remaining(), blockSize - offset);
+
+            content.clear();
+            if(bytes < blockSize) {
+                readFully(content, blockPosition(unitBlock(file, unit)));
+                content.flip();
+                if(verifyChecksums)
+                    verifyChecksum(file, unit, content);
+            }
+            var part = src.slice();
+            part.limit(bytes);
+            content.position(offset);
+            content.put(part);
+            content.clear();
+
+            updateChecksum(file, unit, content);
+            changedUnits.set(unit);
+            writeFully(content, blockPosition(unitBlock(file, unit)));
+
+            src.position(src.position() + bytes);
+            position += bytes;
+        }
+    }
 
-            seekPositionInFile(file, positionInFile);
+    /**
+     * Reads the content at the position of the file, from one of its blocks. Touched blocks of BlockManager
+     * are read whole and verified, unless verification is off.
+     */
+    private void readContent(@NotNull ByteBuffer dst, @NotNull BlockFileHead file, long position) throws IOException {
+        if(!file.hasChecksums() || !verifyChecksums) {
+            readFully(dst, positionInBaseFile(file, position));
+            return;
+        }
 
-            var bytesToWrite = Math.min(src.remaining(), remainingBytesInCurrentBLock);
-            for(int i = 0; i < bytesToWrite; i++) {
-                buffer.put(src.get());
+        var blockSize = blockManager.getBlockSize();
+        var content = blockBuffer();
+        while(dst.hasRemaining()) {
+            var unit = (int) (position / blockSize);
+            var offset = (int) (position % blockSize);
+            var bytes = Math.min(dst.remaining(), blockSize - offset);
+
+            content.clear();
+            readFully(content, blockPosition(unitBlock(file, unit)));
+            content.flip();
+            verifyChecksum(file, unit, content);
+
+            content.position(offset).limit(offset + bytes);
+            dst.put(content);
+            position += bytes;
+        }
+    }
+
+    /**
+     * Reads the blocks of BlockManager [from, to) of the content and compares them with their checksums.
+     * Blocks without a known checksum, like holes, are skipped. Indexes of blocks that don't match are set in damaged.
+     * @return number of blocks read.
+     */
+    int findDamaged(@NotNull BlockFileHead file, int from, int to, @NotNull BitSet damaged) throws IOException {
+        var content = blockBuffer();
+        var read = 0;
+        for(int unit = from; unit < to; unit++) {
+            if(!hasChecksum(file, unit))
+                continue;
+
+            content.clear();
+            readFully(content, blockPosition(unitBlock(file, unit)));
+            content.flip();
+            if(file.getChecksums().get(unit) != checksum(content))
+                damaged.set(unit);
+            read++;
+        }
+
+        return read;
+    }
+
+    /**
+     * Number of blocks of BlockManager the content spans.
+     */
+    int unitCount(@NotNull BlockFileHead file) {
+        return file.getBlocks().size() * fileBlockSpan(file);
+    }
+
+    public int writeAt(@NotNull ByteBuffer src, @NotNull BlockFileHead file, long positionInFile) throws IOException {
+        if(isCompressed(file))
+            return writeCompressed(src, file, positionInFile);
+
+        var bytesWritten = 0;
+        var startingPosition = positionInFile;
+        var oldByteCount = file.getByteCount();
+
+        moveToLargeBlocksIfNeeded(file, positionInFile + src.remaining());
+        if(log != null && !file.isLargeBlocks() && !file.isDirectory())
+            return writeLogged(src, file, positionInFile);
+
+        var oldBlockCount = file.getBlocks().size();
+        var fresh = allocateBlocksForWrite(file, positionInFile, positionInFile + src.remaining());
+        var changedBlocks = (BitSet) fresh.clone();
+        var changedUnits = new BitSet();
+        try {
+            if(positionInFile > oldByteCount && src.hasRemaining()) {
+                var gapEnd = Math.min(positionInFile, (long) oldBlockCount * fileBlockSize(file));
+                zeroAllocatedRange(file, oldByteCount, gapEnd, fresh, changedBlocks, changedUnits);
             }
-            buffer.flip();
-            channel.write(buffer);
 
-            positionInFile += bytesToWrite;
-            bytesWritten += bytesToWrite;
+            var fileBlockSize = fileBlockSize(file);
+            while(src.hasRemaining()) {
+                var offsetInBlock = (int) (positionInFile % fileBlockSize);
+                var bytesToWrite = Math.min(src.remaining(), fileBlockSize - offsetInBlock);
+                var index = (int) (positionInFile / fileBlockSize);
+
+                var chunk = src.slice();
+                chunk.limit(bytesToWrite);
+                if(fresh.get(index) && bytesToWrite < fileBlockSize) {
+                    // A new block may hold anything, the part that isn't written must read as zeros
+                    var image = ByteBuffer.allocate(fileBlockSize);
+                    image.position(offsetInBlock);
+                    image.put(chunk);
+                    image.clear();
+                    writeContent(image, file, (long) index * fileBlockSize, changedUnits);
+                } else if(fresh.get(index) && isDeduplicated(file)) {
+                    writeDeduplicated(chunk, file, index);
+                } else {
+                    if(copyBlockIfShared(file, index))
+                        changedBlocks.set(index);
+                    writeContent(chunk, file, positionInFile, changedUnits);
+                }
+                src.position(src.position() + bytesToWrite);
 
-            buffer.clear();
+                positionInFile += bytesToWrite;
+                bytesWritten += bytesToWrite;
+            }
+        } catch (IOException | RuntimeException e) {
+            undoFreshBlocks(file, fresh, oldBlockCount, changedBlocks, changedUnits);
+            if(!changedBlocks.isEmpty() || !changedUnits.isEmpty())
+                serializeEntries(file, changedBlocks, changedUnits, oldBlockCount, false);
+            throw e;
         }
 
         file.setByteCount(Math.max(startingPosition + bytesWritten, file.getByteCount()));
 
-        serializeFileHead(file);
+        // Writes inside allocated blocks change at most the byte count and checksums
+        var byteCountChanged = file.getByteCount() != oldByteCount;
+        if(byteCountChanged || !changedBlocks.isEmpty() || !changedUnits.isEmpty() || file.getBlocks().size() != oldBlockCount)
+            serializeEntries(file, changedBlocks, changedUnits, oldBlockCount, byteCountChanged);
+
+        return bytesWritten;
+    }
+
+    /**
+     * Gives back the blocks a failed write allocated, so the head keeps only the blocks it had before and copies
+     * of shared blocks, whose content was already written. The byte count wasn't changed yet.
+     */
+    private void undoFreshBlocks(@NotNull BlockFileHead file, @NotNull BitSet fresh, int oldBlockCount,
+                                 @NotNull BitSet changedBlocks, @NotNull BitSet changedUnits) {
+        var blocks = file.getBlocks();
+        var span = fileBlockSpan(file);
+        for(int index = fresh.nextSetBit(0); index >= 0; index = fresh.nextSetBit(index + 1)) {
+            blockManager.freeBlocks(blocks.get(index), span);
+            blocks.set(index, BlockFileHead.HOLE);
+            changedUnits.clear(index * span, (index + 1) * span);
+        }
+        while(blocks.size() > oldBlockCount) {
+            blocks.remove(blocks.size() - 1);
+        }
+        changedBlocks.andNot(fresh);
+        changedUnits.clear(oldBlockCount * span, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes every touched block whole into a new block from the log and frees the old one once the head refers
+     * to the new one. Writes of all files so become appends to the active segment of the log instead of updates
+     * scattered over the container, and blocks shared with snapshots or other files need no copy.
+     * Heads are written through the journal as always, which is sequential already.
+     * A write starting past the end turns blocks between the old end and it into holes, they read as zeros.
+     */
+    private int writeLogged(@NotNull ByteBuffer src, @NotNull BlockFileHead file, long positionInFile) throws IOException {
+        if(!src.hasRemaining())
+            return 0;
+
+        var blockSize = blockManager.getBlockSize();
+        var oldByteCount = file.getByteCount();
+        var end = positionInFile + src.remaining();
+        if((end + blockSize - 1) / blockSize > Integer.MAX_VALUE)
+            throw new IOException("File is too large.");
+
+        var blocks = file.getBlocks();
+        var oldBlockCount = blocks.size();
+        var replaced = new ArrayList<Integer>();
+        var changedBlocks = new BitSet();
+        var first = (int) (positionInFile / blockSize);
+        var last = (int) ((end - 1) / blockSize);
+        var indexes = new ArrayList<Integer>();
+        if(positionInFile > oldByteCount) {
+            var eofBlock = (int) (oldByteCount / blockSize);
+            for(int i = eofBlock; i < Math.min(first, blocks.size()); i++) {
+                if(blocks.get(i) == BlockFileHead.HOLE)
+                    continue;
+
+                if(i == eofBlock && oldByteCount % blockSize != 0) {
+                    // The block holding the old end keeps the bytes before it
+                    indexes.add(i);
+                } else {
+                    replaced.add(blocks.set(i, BlockFileHead.HOLE));
+                    changedBlocks.set(i);
+                }
+            }
+        }
+        for(int i = first; i <= last; i++) {
+            indexes.add(i);
+        }
+
+        var allocated = log.allocate(indexes.size());
+        if(allocated.isEmpty())
+            throw new IOException("Couldn't allocate enough space.");
+        while(blocks.size() <= last) {
+            blocks.add(BlockFileHead.HOLE);
+        }
+
+        var image = ByteBuffer.allocate(blockSize);
+        var written = 0;
+        for(int k = 0; k < indexes.size(); k++) {
+            var i = indexes.get(k);
+            var blockStart = (long) i * blockSize;
+            var from = (int) Math.min(blockSize, Math.max(0, positionInFile - blockStart));
+            var to = (int) Math.max(from, Math.min(blockSize, end - blockStart));
+
+            image.clear();
+            var old = blocks.get(i);
+            var keepsOld = old != BlockFileHead.HOLE && blockStart < oldByteCount && (from > 0 || to < blockSize);
+            if(keepsOld) {
+                readFully(image, blockPosition(old));
+                image.flip();
+                if(verifyChecksums)
+                    verifyChecksum(file, i, image);
+            }
+            // Bytes past the old end may be left from a truncated part or preallocation
+            var validOld = keepsOld ? (int) Math.min(blockSize, oldByteCount - blockStart) : 0;
+            Arrays.fill(image.array(), validOld, blockSize, (byte) 0);
+
+            var part = src.slice();
+            part.limit(to - from);
+            image.position(from);
+            image.put(part);
+            image.clear();
+            src.position(src.position() + (to - from));
+            written += to - from;
+
+            blocks.set(i, allocated.get().get(k));
+            changedBlocks.set(i);
+            if(old != BlockFileHead.HOLE)
+                replaced.add(old);
+
+            if(to - from == blockSize && isDeduplicated(file)) {
+                writeDeduplicated(image, file, i);
+            } else {
+                if(file.hasChecksums())
+                    updateChecksum(file, i, image);
+                writeFully(image, blockPosition(blocks.get(i)));
+            }
+        }
+
+        file.setByteCount(Math.max(end, oldByteCount));
+        var units = file.hasChecksums() ? changedBlocks : new BitSet();
+        serializeEntries(file, changedBlocks, units, oldBlockCount, file.getByteCount() != oldByteCount);
+        for(var block : replaced) {
+            blockManager.freeBlock(block);
+        }
+
+        return written;
+    }
+
+    private boolean isDeduplicated(@NotNull BlockFileHead file) {
+        return deduplicator != null && !file.isDirectory() && !file.isLargeBlocks();
+    }
+
+    /**
+     * Writes a full new block, unless an identical block is stored already. Then the file refers to that block
+     * and the new one is freed. Either way the block is shared from now on, see BlockDeduplicator.
+     */
+    private void writeDeduplicated(@NotNull ByteBuffer chunk, @NotNull BlockFileHead file, int index) throws IOException {
+        var fingerprint = BlockDeduplicator.fingerprint(chunk);
+        var block = file.getBlocks().get(index);
+
+        if(file.hasChecksums())
+            updateChecksum(file, index, chunk);
+
+        var shared = deduplicator.findShared(fingerprint);
+        if(shared.isPresent()) {
+            file.getBlocks().set(index, shared.get());
+            blockManager.freeBlock(block);
+        } else {
+            writeFully(chunk, blockPosition(block));
+            deduplicator.add(fingerprint, block);
+        }
+        file.setSharedBlocks(true);
+    }
+
+    private boolean isCompressed(@NotNull BlockFileHead file) {
+        return file.isCompressed() && !file.isDirectory();
+    }
+
+    private int chunkBlocks() {
+        return Math.max(1, COMPRESSION_CHUNK_SIZE / blockManager.getBlockSize());
+    }
+
+    /**
+     * Every touched chunk is inflated, changed and stored again in new blocks, the old ones are freed once the head
+     * refers to the new ones. Blocks of a chunk are never written in place, so chunks shared with snapshots
+     * or other files need no copy.
+     */
+    private int writeCompressed(@NotNull ByteBuffer src, @NotNull BlockFileHead file, long positionInFile) throws IOException {
+        var chunkBytes = chunkBlocks() * blockManager.getBlockSize();
+        var oldByteCount = file.getByteCount();
+        var newByteCount = Math.max(oldByteCount, positionInFile + src.remaining());
+        if((newByteCount + chunkBytes - 1) / chunkBytes * chunkBlocks() > Integer.MAX_VALUE)
+            throw new IOException("File is too large.");
+
+        var bytesWritten = 0;
+        var replaced = new ArrayList<Integer>();
+        var oldBlockCount = file.getBlocks().size();
+        var changedBlocks = new BitSet();
+        while(src.hasRemaining()) {
+            var chunk = (int) (positionInFile / chunkBytes);
+            var chunkStart = (long) chunk * chunkBytes;
+            var offset = (int) (positionInFile - chunkStart);
+            var bytes = Math.min(src.remaining(), chunkBytes - offset);
+
+            var content = readChunk(file, chunk).clone();
+            // Bytes past the old end may be left from a truncated part, a write past the end makes them zeros
+            if(oldByteCount < positionInFile)
+                Arrays.fill(content, (int) Math.max(0, oldByteCount - chunkStart), offset, (byte) 0);
+            src.get(content, offset, bytes);
+
+            replaced.addAll(storeChunk(file, chunk, content, (int) Math.min(chunkBytes, newByteCount - chunkStart)));
+            changedBlocks.set(chunk * chunkBlocks(), (chunk + 1) * chunkBlocks());
+            positionInFile += bytes;
+            bytesWritten += bytes;
+        }
+
+        file.setByteCount(newByteCount);
+        var units = file.hasChecksums() ? changedBlocks : new BitSet();
+        serializeEntries(file, changedBlocks, units, oldBlockCount, newByteCount != oldByteCount);
+        for(var block : replaced) {
+            blockManager.freeBlock(block);
+        }
 
         return bytesWritten;
     }
 
-    public int readAt(@NotNull ByteBuffer dst, @NotNull BlockFileHead file, int positionInFile) throws IOException {
+    private int readCompressed(@NotNull ByteBuffer dst, @NotNull BlockFileHead file, long positionInFile) throws IOException {
+        var chunkBytes = chunkBlocks() * blockManager.getBlockSize();
+        var fileSize = file.getByteCount();
+
+        var count = 0;
+        while(dst.hasRemaining() && positionInFile < fileSize) {
+            var chunk = (int) (positionInFile / chunkBytes);
+            var offset = (int) (positionInFile % chunkBytes);
+            var bytes = (int) Math.min(Math.min(dst.remaining(), chunkBytes - offset), fileSize - positionInFile);
+
+            dst.put(readChunk(file, chunk), offset, bytes);
+            count += bytes;
+            positionInFile += bytes;
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the whole chunk, zeros where it was never written. The array may be cached, it must not be changed.
+     */
+    private byte[] readChunk(@NotNull BlockFileHead file, int chunk) throws IOException {
+        var cached = lastChunk.get();
+        if(cached != null && cached.file == file && cached.index == chunk && cached.version == file.getContentVersion())
+            return cached.content;
+
+        var blockSize = blockManager.getBlockSize();
+        var chunkBlocks = chunkBlocks();
+        var content = new byte[chunkBlocks * blockSize];
+
+        var blocks = file.getBlocks();
+        var first = chunk * chunkBlocks;
+        var used = 0;
+        while(used < chunkBlocks && first + used < blocks.size() && blocks.get(first + used) != BlockFileHead.HOLE) {
+            used++;
+        }
+
+        if(used == chunkBlocks) {
+            readChunkBlocks(file, first, used, content);
+        } else if(used > 0) {
+            var stored = new byte[used * blockSize];
+            readChunkBlocks(file, first, used, stored);
+            inflate(stored, content);
+        }
+
+        lastChunk.set(new CachedChunk(file, chunk, file.getContentVersion(), content));
+        return content;
+    }
+
+    private void readChunkBlocks(@NotNull BlockFileHead file, int first, int count, byte[] dst) throws IOException {
+        var blockSize = blockManager.getBlockSize();
+        for(int i = 0; i < count; i++) {
+            var block = ByteBuffer.wrap(dst, i * blockSize, blockSize);
+            readFully(block.duplicate(), blockPosition(file.getBlocks().get(first + i)));
+            if(verifyChecksums)
+                verifyChecksum(file, first + i, block.slice());
+        }
+    }
+
+    /**
+     * Writes the first length bytes of the chunk into new blocks and puts them into the block list.
+     * @return blocks the chunk used before, to be freed once the head is written.
+     */
+    private ArrayList<Integer> storeChunk(@NotNull BlockFileHead file, int chunk, byte[] content, int length) throws IOException {
+        var blockSize = blockManager.getBlockSize();
+        var chunkBlocks = chunkBlocks();
+
+        var deflated = deflate(content, length, (chunkBlocks - 1) * blockSize);
+        var data = deflated.orElse(content);
+        var used = deflated.isPresent() ? (data.length + blockSize - 1) / blockSize : chunkBlocks;
+
+        var allocated = log != null ? log.allocate(used) : blockManager.allocateBlocks(used);
+        if(allocated.isEmpty())
+            throw new IOException("Couldn't allocate enough space.");
+        var first = chunk * chunkBlocks;
+        for(int i = 0; i < used; i++) {
+            // Blocks are written whole, so that their checksums cover what is stored
+            var part = ByteBuffer.allocate(blockSize);
+            part.put(data, i * blockSize, Math.min(blockSize, data.length - i * blockSize));
+            part.clear();
+            if(file.hasChecksums())
+                updateChecksum(file, first + i, part);
+            writeFully(part, blockPosition(allocated.get().get(i)));
+        }
+
+        var blocks = file.getBlocks();
+        while(blocks.size() < first + chunkBlocks) {
+            blocks.add(BlockFileHead.HOLE);
+        }
+
+        var replaced = new ArrayList<Integer>();
+        for(int i = 0; i < chunkBlocks; i++) {
+            var old = blocks.set(first + i, i < used ? allocated.get().get(i) : BlockFileHead.HOLE);
+            if(old != BlockFileHead.HOLE)
+                replaced.add(old);
+        }
+        file.bumpContentVersion();
+        lastChunk.set(new CachedChunk(file, chunk, file.getContentVersion(), content));
+
+        return replaced;
+    }
+
+    /**
+     * @return the length of the deflated data followed by the data, empty if it would take more than limit bytes.
+     */
+    private static Optional<byte[]> deflate(byte[] content, int length, int limit) {
+        if(limit < 4)
+            return Optional.empty();
+
+        var deflater = new Deflater();
+        try {
+            deflater.setInput(content, 0, length);
+            deflater.finish();
+
+            var out = new byte[limit];
+            var size = 4;
+            while(!deflater.finished() && size < limit) {
+                size += deflater.deflate(out, size, limit - size);
+            }
+            if(!deflater.finished())
+                return Optional.empty();
+
+            ByteBuffer.wrap(out).putInt(0, size - 4);
+            return Optional.of(Arrays.copyOf(out, size));
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void inflate(byte[] stored, byte[] content) throws IOException {
+        var length = ByteBuffer.wrap(stored).getInt(0);
+        if(length < 0 || length > stored.length - 4)
+            throw new IOException("Damaged compressed chunk");
+
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(stored, 4, length);
+            var size = 0;
+            while(!inflater.finished() && size < content.length) {
+                var inflated = inflater.inflate(content, size, content.length - size);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Damaged compressed chunk");
+                size += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged compressed chunk", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public int readAt(@NotNull ByteBuffer dst, @NotNull BlockFileHead file, long positionInFile) throws IOException {
         var fileSize = file.getByteCount();
         if(positionInFile >= fileSize)
             return -1;
+        if(isCompressed(file))
+            return readCompressed(dst, file, positionInFile);
 
         int count = 0;
-        ByteBuffer block = ByteBuffer.allocate(blockManager.getBlockSize());
+        var fileBlockSize = fileBlockSize(file);
         while(dst.hasRemaining() && positionInFile < fileSize) {
-            int offset = positionInFile % blockManager.getBlockSize();
-            int currentBlock = positionInFile / blockManager.getBlockSize();
-            int blockBeginPosition = file.getBlocks().get(currentBlock) * blockManager.getBlockSize();
-            channel.position(blockBeginPosition);
-
-            int readBytes = channel.read(block) - offset;
-            block.flip();
-            block.position(offset);
+            var remainingBytesInCurrentBlock = fileBlockSize - (int) (positionInFile % fileBlockSize);
+            var bytesToRead = (int) Math.min(Math.min(dst.remaining(), remainingBytesInCurrentBlock), fileSize - positionInFile);
 
-            if(dst.remaining() >= readBytes && positionInFile + readBytes < fileSize) {
-                dst.put(block);
-
-                count += readBytes;
-                positionInFile += readBytes;
-            } else {
-                while(dst.hasRemaining() && positionInFile < fileSize) {
-                    dst.put(block.get());
-                    count++;
-                    positionInFile++;
+            if(isHole(file, positionInFile)) {
+                for(int i = 0; i < bytesToRead; i++) {
+                    dst.put((byte) 0);
                 }
+            } else {
+                var chunk = dst.slice();
+                chunk.limit(bytesToRead);
+                readContent(chunk, file, positionInFile);
+                dst.position(dst.position() + bytesToRead);
             }
 
-            block.clear();
+            count += bytesToRead;
+            positionInFile += bytesToRead;
         }
 
         return count;
     }
 
-    public int truncate(@NotNull BlockFileHead file, int currentPosition, int desiredSize) {
+    /**
+     * Drops the content past desiredSize, a larger size changes nothing. Blocks past the new end are freed
+     * once the head no longer refers to them.
+     */
+    public long truncate(@NotNull BlockFileHead file, long currentPosition, long desiredSize) throws IOException {
         if(desiredSize < 0)
             throw new IllegalArgumentException("Size must be positive.");
 
-        var newNeededBlocks = (int) Math.ceil(desiredSize / (1.0 * blockManager.getBlockSize()));
+        var blockSize = fileBlockSize(file);
+        var newNeededBlocks = (int) Math.min(Integer.MAX_VALUE, (desiredSize + blockSize - 1) / blockSize);
+        if(isCompressed(file)) {
+            // Only whole chunks are dropped
+            var chunkBlocks = chunkBlocks();
+            newNeededBlocks = (int) Math.min(Integer.MAX_VALUE, ((long) newNeededBlocks + chunkBlocks - 1) / chunkBlocks * chunkBlocks);
+            file.bumpContentVersion();
+        }
         var oldBlocksCount = file.getBlocks().size();
+        var oldByteCount = file.getByteCount();
 
         var newPosition = Math.min(currentPosition, desiredSize);
+        var dropped = new ArrayList<Integer>();
         if(newNeededBlocks < oldBlocksCount) {
             var fileBlocks = file.getBlocks();
             for (int i = oldBlocksCount - 1; i >= newNeededBlocks; i--) {
-                var last = fileBlocks.get(i);
-                blockManager.freeBlock(last);
-
-                fileBlocks.remove(i);
+                var last = fileBlocks.remove(i);
+                if(last != BlockFileHead.HOLE)
+                    dropped.add(last);
             }
         }
 
+        file.setByteCount(Math.min(oldByteCount, desiredSize));
+        if(file.getBlocks().size() == oldBlocksCount && file.getByteCount() == oldByteCount)
+            return newPosition;
+
+        serializeEntries(file, new BitSet(), new BitSet(), oldBlocksCount, file.getByteCount() != oldByteCount);
+        for(var block : dropped) {
+            blockManager.freeBlocks(block, fileBlockSpan(file));
+        }
+
         return newPosition;
     }
 
@@ -250,9 +1349,18 @@ public class BlockFileSerializer {
         }
 
         var children = serializeDirectoryChildrenList(dir);
-        writeAt(children, dir.getFile(), 0);
+        var head = dir.getFile();
+        allocateBlocksForWrite(head, 0, children.remaining());
+        head.setByteCount(children.remaining());
+
+        for(int i = 0; children.hasRemaining(); i++) {
+            var chunk = children.slice();
+            chunk.limit(Math.min(chunk.remaining(), blockManager.getBlockSize()));
+            writeMetadataBlock(head.getBlocks().get(i), chunk);
+            children.position(children.position() + chunk.limit());
+        }
 
-        serializeFileHead(dir.getFile());
+        serializeFileHead(head);
     }
 
     private ByteBuffer serializeDirectoryChildrenList(@NotNull OFSTreeNode<BlockFileHead> dir) {
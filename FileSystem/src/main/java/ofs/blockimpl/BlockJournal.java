@@ -0,0 +1,552 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of metadata blocks, stored in a fixed region of the base file.
+ *
+ * The first block of the region is a header with the sequence number of the first valid record. Records follow it
+ * one after another: a descriptor block (magic, sequence, flags, count, checksum, home addresses) and full images
+ * of the blocks. A record is valid if its sequence is the expected one and the checksum of its images matches.
+ * A transaction too large for one record is written as a chain of records, all but the last one flagged as
+ * continued. Images of a chain are applied only if its last record is valid, so the chain commits atomically.
+ * A transaction too large for the whole journal is spilled: its images are written to free blocks of the container
+ * first, the records hold pairs of home and spill addresses and are followed by a checkpoint right away.
+ *
+ * Concurrent commits are grouped: the first committer becomes a leader and writes the transactions of everybody
+ * who arrived meanwhile with a single sync, whether the sync forces the base file is decided by BlockSyncer.
+ * Committed images are written to their home locations lazily, when the journal is full or closed. Until then their blocks are held in BlockManager, so they can't be reused
+ * and then overwritten by a late checkpoint. Metadata blocks freed by a transaction are held the same way.
+ */
+public class BlockJournal {
+    private static final int HEADER_MAGIC = 0x4f46534a; // OFSJ
+    private static final int RECORD_MAGIC = 0x4f465352; // OFSR
+    private static final int DESCRIPTOR_SIZE = 4 + 8 + 4 + 4 + 8; // magic, sequence, flags, count, checksum
+    private static final int CONTINUED_FLAG = 1;
+    private static final int SPILLED_FLAG = 2;
+
+    private final FileChannel channel;
+    private final BlockManager blockManager;
+    private final BlockSyncer syncer;
+    private final int firstBlock;
+    private final int blockCount;
+    private final int blockSize;
+    private final int maxRecordBlocks;
+    private final int maxSpilledRecordBlocks;
+
+    private final ArrayList<Transaction> pending = new ArrayList<>();
+    private boolean recovered = false;
+    private boolean leaderActive = false;
+
+    // Owned by the current leader
+    private long nextSequence;
+    private int nextRecordBlock = 1;
+    private final TreeMap<Integer, ByteBuffer> uncheckpointed = new TreeMap<>();
+    private final ArrayList<Integer> freedAtCheckpoint = new ArrayList<>();
+
+    /**
+     * Set of metadata block images, that must reach the disk atomically.
+     */
+    public static class Transaction {
+        private final LinkedHashMap<Integer, ByteBuffer> images = new LinkedHashMap<>();
+        private final ArrayList<Integer> frees = new ArrayList<>();
+        private boolean done = false;
+        private IOException failure = null;
+
+        /**
+         * Adds a full block image to the transaction, replacing a previous image of the same block.
+         */
+        public void put(int block, @NotNull ByteBuffer image) {
+            images.put(block, image);
+        }
+
+        /**
+         * Frees a metadata block, which the images of the transaction stop referring to. The block stays occupied
+         * until the next checkpoint, so it can't be reused while an older image on the disk may still refer to it.
+         */
+        public void free(int block) {
+            frees.add(block);
+        }
+
+        boolean isEmpty() {
+            return images.isEmpty();
+        }
+    }
+
+    private BlockJournal(@NotNull FileChannel channel, @NotNull BlockManager blockManager, @NotNull BlockSyncer syncer,
+                         int firstBlock, int blockCount) {
+        this.channel = channel;
+        this.blockManager = blockManager;
+        this.syncer = syncer;
+        this.firstBlock = firstBlock;
+        this.blockCount = blockCount;
+        this.blockSize = blockManager.getBlockSize();
+        this.maxRecordBlocks = maxRecordBlocks(blockSize, blockCount);
+        this.maxSpilledRecordBlocks = (blockSize - DESCRIPTOR_SIZE) / 8;
+    }
+
+    private static int maxRecordBlocks(int blockSize, int blockCount) {
+        return Math.min((blockSize - DESCRIPTOR_SIZE) / 4, (blockCount - 1) / 4);
+    }
+
+    /**
+     * Creates an empty journal in blocks [firstBlock, firstBlock + blockCount), which must be already occupied.
+     */
+    public static BlockJournal create(@NotNull FileChannel channel, @NotNull BlockManager blockManager,
+                                      @NotNull BlockSyncer syncer, int firstBlock, int blockCount) throws IOException {
+        var journal = new BlockJournal(channel, blockManager, syncer, firstBlock, blockCount);
+        journal.nextSequence = 1;
+        journal.writeHeader();
+        syncer.barrier();
+
+        return journal;
+    }
+
+    /**
+     * Opens an existing journal and writes all of its valid records to their home locations.
+     */
+    public static BlockJournal recover(@NotNull FileChannel channel, @NotNull BlockManager blockManager,
+                                       @NotNull BlockSyncer syncer, int firstBlock, int blockCount) throws IOException {
+        var journal = new BlockJournal(channel, blockManager, syncer, firstBlock, blockCount);
+        journal.replay();
+
+        return journal;
+    }
+
+    public BlockSyncer getSyncer() {
+        return syncer;
+    }
+
+    public int getFirstBlock() {
+        return firstBlock;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    private long position(int journalBlock) {
+        return position(blockSize, firstBlock, journalBlock);
+    }
+
+    private static long position(int blockSize, int firstBlock, int journalBlock) {
+        return (long) blockSize * (firstBlock + journalBlock);
+    }
+
+    private void writeFully(@NotNull ByteBuffer src, long position) throws IOException {
+        while(src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    private static boolean readFully(@NotNull FileChannel channel, @NotNull ByteBuffer dst,
+                                     long position) throws IOException {
+        while(dst.hasRemaining()) {
+            var read = channel.read(dst, position);
+            if(read < 0)
+                return false;
+
+            position += read;
+        }
+
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        var header = ByteBuffer.allocate(blockSize);
+        header.putInt(HEADER_MAGIC);
+        header.putLong(nextSequence);
+        header.clear();
+
+        writeFully(header, position(0));
+    }
+
+    private void replay() throws IOException {
+        nextSequence = readRecords(channel, blockSize, maxRecordBlocks, firstBlock, blockCount, uncheckpointed);
+        recovered = !uncheckpointed.isEmpty();
+        checkpoint();
+    }
+
+    /**
+     * Whether recover found any committed records.
+     */
+    public boolean hasRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Reads images of all committed, but not yet checkpointed, blocks without changing the base file.
+     */
+    public static Map<Integer, ByteBuffer> readCommitted(@NotNull FileChannel channel, int blockSize,
+                                                         int firstBlock, int blockCount) throws IOException {
+        var images = new TreeMap<Integer, ByteBuffer>();
+        readRecords(channel, blockSize, maxRecordBlocks(blockSize, blockCount), firstBlock, blockCount, images);
+
+        return images;
+    }
+
+    /**
+     * Puts images of all valid records into the given map. Images of a chain without its last record are left out.
+     * @return sequence number of the next record.
+     */
+    private static long readRecords(@NotNull FileChannel channel, int blockSize, int maxRecordBlocks,
+                                    int firstBlock, int blockCount,
+                                    @NotNull Map<Integer, ByteBuffer> images) throws IOException {
+        var header = ByteBuffer.allocate(blockSize);
+        if(!readFully(channel, header, position(blockSize, firstBlock, 0)))
+            throw new IOException("Base file is too short to be an OFS container");
+        header.flip();
+
+        if(header.getInt() != HEADER_MAGIC)
+            throw new IOException("Base file has no journal, it isn't an OFS container");
+
+        var sequence = header.getLong();
+        var recordBlock = 1;
+        var descriptor = ByteBuffer.allocate(blockSize);
+        var chain = new LinkedHashMap<Integer, ByteBuffer>();
+        while(recordBlock < blockCount) {
+            descriptor.clear();
+            if(!readFully(channel, descriptor, position(blockSize, firstBlock, recordBlock)))
+                break;
+            descriptor.flip();
+
+            if(descriptor.getInt() != RECORD_MAGIC || descriptor.getLong() != sequence)
+                break;
+
+            var flags = descriptor.getInt();
+            var count = descriptor.getInt();
+            var checksum = descriptor.getLong();
+            var spilled = (flags & SPILLED_FLAG) != 0;
+            var maxCount = spilled ? (blockSize - DESCRIPTOR_SIZE) / 8 : maxRecordBlocks;
+            var journalBlocks = spilled ? 0 : count;
+            if(count <= 0 || count > maxCount || recordBlock + 1 + journalBlocks > blockCount)
+                break;
+
+            var homes = new int[count];
+            var recordImages = ByteBuffer.allocate(count * blockSize);
+            var complete = true;
+            if(spilled) {
+                for(int i = 0; i < count && complete; i++) {
+                    homes[i] = descriptor.getInt();
+                    var image = recordImages.slice();
+                    image.limit(blockSize);
+                    complete = readFully(channel, image, (long) blockSize * descriptor.getInt());
+                    recordImages.position(recordImages.position() + blockSize);
+                }
+                recordImages.clear();
+            } else {
+                for(int i = 0; i < count; i++) {
+                    homes[i] = descriptor.getInt();
+                }
+                complete = readFully(channel, recordImages, position(blockSize, firstBlock, recordBlock + 1));
+                recordImages.flip();
+            }
+            if(!complete)
+                break;
+
+            var crc = new CRC32();
+            crc.update(recordImages.duplicate());
+            if(crc.getValue() != checksum)
+                break; // Torn record, it was never committed
+
+            for(int i = 0; i < count; i++) {
+                var image = recordImages.slice();
+                image.limit(blockSize);
+                chain.put(homes[i], image);
+                recordImages.position(recordImages.position() + blockSize);
+            }
+            if((flags & CONTINUED_FLAG) == 0) {
+                images.putAll(chain);
+                chain.clear();
+            }
+
+            recordBlock += 1 + journalBlocks;
+            sequence++;
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Writes transaction to the journal, possibly together with transactions of other threads.
+     * Returns when the transaction is as durable as the durability setting requires. An empty transaction
+     * writes and syncs nothing, its blocks are freed right away.
+     */
+    public void commit(@NotNull Transaction transaction) throws IOException {
+        if(transaction.isEmpty()) {
+            for(var block : transaction.frees) {
+                blockManager.freeBlock(block);
+            }
+            return;
+        }
+
+        List<Transaction> batch;
+        synchronized (this) {
+            pending.add(transaction);
+            while(leaderActive && !transaction.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while committing metadata", e);
+                }
+            }
+
+            if(transaction.done) {
+                if(transaction.failure != null)
+                    throw transaction.failure;
+
+                return;
+            }
+
+            leaderActive = true;
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        IOException failure = null;
+        try {
+            writeBatch(batch);
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        synchronized (this) {
+            for(var t : batch) {
+                t.done = true;
+                t.failure = failure;
+            }
+            leaderActive = false;
+            notifyAll();
+        }
+
+        if(failure != null)
+            throw failure;
+    }
+
+    private void writeBatch(@NotNull List<Transaction> batch) throws IOException {
+        var record = new LinkedHashMap<Integer, ByteBuffer>();
+        for(var t : batch) {
+            if(t.images.size() > maxRecordBlocks) {
+                writeRecord(record);
+                record.clear();
+                writeLarge(t.images);
+                continue;
+            }
+
+            var newBlocks = t.images.keySet().stream().filter(b -> !record.containsKey(b)).count();
+            if(record.size() + newBlocks > maxRecordBlocks) {
+                writeRecord(record);
+                record.clear();
+            }
+            record.putAll(t.images);
+        }
+
+        writeRecord(record);
+        for(var t : batch) {
+            for(var block : t.frees) {
+                blockManager.holdBlock(block);
+                blockManager.freeBlock(block);
+                freedAtCheckpoint.add(block);
+            }
+        }
+        syncer.changed();
+    }
+
+    private void writeRecord(@NotNull Map<Integer, ByteBuffer> images) throws IOException {
+        if(images.isEmpty())
+            return;
+
+        if(nextRecordBlock + 1 + images.size() > blockCount)
+            checkpoint();
+
+        writeRecord(images, 0, Map.of());
+        remember(images);
+    }
+
+    /**
+     * Writes a record at the end of the journal, which must have room for it.
+     * @param spills spill address of every image for a spilled record, whose images aren't written into the journal.
+     */
+    private void writeRecord(@NotNull Map<Integer, ByteBuffer> images, int flags,
+                             @NotNull Map<Integer, Integer> spills) throws IOException {
+        var spilled = (flags & SPILLED_FLAG) != 0;
+        var journalBlocks = spilled ? 0 : images.size();
+        var buffer = ByteBuffer.allocate((1 + journalBlocks) * blockSize);
+
+        var crc = new CRC32();
+        for(var image : images.values()) {
+            crc.update(image.duplicate());
+        }
+
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putLong(nextSequence);
+        buffer.putInt(flags);
+        buffer.putInt(images.size());
+        buffer.putLong(crc.getValue());
+        for(var block : images.keySet()) {
+            buffer.putInt(block);
+            if(spilled)
+                buffer.putInt(spills.get(block));
+        }
+
+        buffer.position(blockSize);
+        if(!spilled) {
+            for(var image : images.values()) {
+                buffer.put(image.duplicate());
+            }
+        }
+        buffer.clear();
+
+        writeFully(buffer, position(nextRecordBlock));
+        nextRecordBlock += 1 + journalBlocks;
+        nextSequence++;
+    }
+
+    /**
+     * Images of written records are kept until the next checkpoint, their blocks are held meanwhile.
+     */
+    private void remember(@NotNull Map<Integer, ByteBuffer> images) {
+        for(var entry : images.entrySet()) {
+            if(uncheckpointed.put(entry.getKey(), entry.getValue()) == null)
+                blockManager.holdBlock(entry.getKey());
+        }
+    }
+
+    private static List<Map<Integer, ByteBuffer>> split(@NotNull Map<Integer, ByteBuffer> images, int maxBlocks) {
+        var parts = new ArrayList<Map<Integer, ByteBuffer>>();
+        Map<Integer, ByteBuffer> part = null;
+        for(var entry : images.entrySet()) {
+            if(part == null || part.size() == maxBlocks) {
+                part = new LinkedHashMap<>();
+                parts.add(part);
+            }
+            part.put(entry.getKey(), entry.getValue());
+        }
+
+        return parts;
+    }
+
+    /**
+     * Transaction too large for a single record, written as a chain of records. The whole chain must fit into
+     * the journal, so no checkpoint writes a part of it home before the last record is written.
+     */
+    private void writeLarge(@NotNull Map<Integer, ByteBuffer> images) throws IOException {
+        var parts = split(images, maxRecordBlocks);
+        var chainBlocks = parts.size() + images.size();
+        if(chainBlocks > blockCount - 1) {
+            writeSpilled(images);
+            return;
+        }
+
+        if(nextRecordBlock + chainBlocks > blockCount)
+            checkpoint();
+        for(int i = 0; i < parts.size(); i++) {
+            writeRecord(parts.get(i), i + 1 < parts.size() ? CONTINUED_FLAG : 0, Map.of());
+        }
+        remember(images);
+    }
+
+    /**
+     * Transaction too large for the journal. Its images are written to free blocks of the container and a chain
+     * of spilled records refers to them. The journal is checkpointed right away, so the spill blocks can be freed.
+     */
+    private void writeSpilled(@NotNull Map<Integer, ByteBuffer> images) throws IOException {
+        var parts = split(images, maxSpilledRecordBlocks);
+        if(parts.size() > blockCount - 1)
+            throw new IOException("Metadata change of " + images.size() + " blocks is too large for the journal");
+
+        var allocated = blockManager.allocateBlocks(images.size());
+        if(allocated.isEmpty())
+            throw new IOException("Couldn't allocate enough space.");
+
+        try {
+            var spills = new HashMap<Integer, Integer>();
+            var next = 0;
+            for(var entry : images.entrySet()) {
+                var spill = allocated.get().get(next++);
+                spills.put(entry.getKey(), spill);
+                writeFully(entry.getValue().duplicate(), (long) blockSize * spill);
+            }
+
+            // The spilled images must be on the disk before any record refers to them
+            syncer.barrier();
+            checkpoint();
+            for(int i = 0; i < parts.size(); i++) {
+                var flags = SPILLED_FLAG | (i + 1 < parts.size() ? CONTINUED_FLAG : 0);
+                writeRecord(parts.get(i), flags, spills);
+            }
+            remember(images);
+            checkpoint();
+        } finally {
+            for(var block : allocated.get()) {
+                blockManager.freeBlock(block);
+            }
+        }
+    }
+
+    /**
+     * Writes all committed images to their home locations and empties the journal.
+     */
+    private void checkpoint() throws IOException {
+        // Home locations are written in place, the records must be on the disk before
+        if(!uncheckpointed.isEmpty())
+            syncer.barrier();
+        for(var entry : uncheckpointed.entrySet()) {
+            writeFully(entry.getValue().duplicate(), (long) blockSize * entry.getKey());
+        }
+        syncer.barrier();
+
+        writeHeader();
+        syncer.barrier();
+
+        for(var block : uncheckpointed.keySet()) {
+            blockManager.releaseHeldBlock(block);
+        }
+        uncheckpointed.clear();
+        for(var block : freedAtCheckpoint) {
+            blockManager.releaseHeldBlock(block);
+        }
+        freedAtCheckpoint.clear();
+        nextRecordBlock = 1;
+    }
+
+    /**
+     * Waits for commits in progress and checkpoints the journal, so every committed block is at its home location.
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            while(leaderActive) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while closing journal", e);
+                }
+            }
+            leaderActive = true;
+        }
+
+        try {
+            checkpoint();
+        } finally {
+            synchronized (this) {
+                leaderActive = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Checkpoints the journal, nothing is kept in memory afterwards.
+     */
+    public void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,72 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Optional;
+
+/**
+ * Hands out blocks for log-structured writes in the order of their addresses. Blocks come from the active segment,
+ * a run of SEGMENT_BYTES taken from BlockManager at once, so that new blocks of all files are written to the base
+ * file one after another instead of wherever a free block happens to be. Segments are found first-fit, so space
+ * freed by the BlockSegmentCleaner is reused first. Without a free run blocks come from anywhere.
+ *
+ * Blocks of the active segment that weren't handed out yet are occupied, but nobody owns them. release gives them
+ * back before anything that expects every occupied block to belong to a file, like fsck, shrink and the checkpoint.
+ */
+class BlockLog {
+    static final int SEGMENT_BYTES = 1024 * 1024;
+
+    private final BlockManager blockManager;
+    private final int segmentBlocks;
+    private int next = 0;
+    private int end = 0;
+
+    BlockLog(@NotNull BlockManager blockManager) {
+        this.blockManager = blockManager;
+        this.segmentBlocks = Math.max(1, SEGMENT_BYTES / blockManager.getBlockSize());
+    }
+
+    int getSegmentBlocks() {
+        return segmentBlocks;
+    }
+
+    /**
+     * @return blocks in the order they should be written, or empty optional if there is not enough space.
+     */
+    synchronized Optional<ArrayList<Integer>> allocate(int count) {
+        var result = new ArrayList<Integer>(count);
+        while(result.size() < count) {
+            if(next == end) {
+                var segment = blockManager.allocateContiguous(segmentBlocks);
+                if(segment.isEmpty())
+                    break;
+
+                next = segment.get();
+                end = next + segmentBlocks;
+            }
+
+            result.add(next++);
+        }
+
+        if(result.size() < count) {
+            var rest = blockManager.allocateBlocks(count - result.size());
+            if(rest.isEmpty()) {
+                result.forEach(blockManager::freeBlock);
+                return Optional.empty();
+            }
+            result.addAll(rest.get());
+        }
+
+        return Optional.of(result);
+    }
+
+    /**
+     * Frees the rest of the active segment, the next allocation starts a new one.
+     */
+    synchronized void release() {
+        blockManager.freeBlocks(next, end - next);
+        next = 0;
+        end = 0;
+    }
+}
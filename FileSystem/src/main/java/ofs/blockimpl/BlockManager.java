@@ -1,42 +1,481 @@
 package ofs.blockimpl;
 
 
+import org.jetbrains.annotations.NotNull;
+
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Lock-free block allocator. Occupied blocks are bits of AtomicLongArrays and are claimed with CAS on whole words.
+ * The bitmap is split into stripes, every thread starts searching in its own stripe and continues into the
+ * following ones when its stripe is exhausted, so parallel writers rarely touch the same words.
+ * Blocks may be pinned by snapshots or held by the journal: freeing such a block is postponed until the last
+ * pin or hold is removed. A block may also be shared by several files, then every free but the last one only
+ * drops a reference.
+ *
+ * Snapshots don't pin blocks one by one. Every snapshot gets an epoch, and blocks allocated while a snapshot is
+ * open remember the newest epoch at that time. A block is pinned if it is older than the newest open snapshot,
+ * so taking a snapshot costs nothing here, and only blocks allocated since the first open snapshot are tracked.
+ *
+ * The container starts with a capacity of one growth chunk and grows by further chunks, up to maxBlocks, when
+ * an allocation doesn't fit. The bitmap consists of segments created on growth, bits past the capacity are set,
+ * so they are never found free.
+ *
+ * Besides single blocks there is a second size class: a large block is a run of largeBlockSpan consecutive blocks,
+ * aligned to its length. Large blocks share the bitmap with single blocks, they are just claimed a run at a time.
+ * Runs and large blocks are searched next-fit from a cursor after the previous one, skipping whole occupied words,
+ * so a search doesn't start over the full part of the container every time.
+ */
 public class BlockManager {
-    private final int maxBlocks;
+    private static final int STRIPES = 64;
+    private static final int SEGMENT_SHIFT = 14; // 16K words, 1M blocks per segment
+    private static final int SEGMENT_WORDS = 1 << SEGMENT_SHIFT;
+
     private final int blockSize;
-    private final boolean[] occupied;
+    private final int largeBlockSpan;
+    private final int maxBlocks;
+    private final int growthBlocks;
+    private final AtomicLongArray[] segments;
+    private volatile int capacity = 0;
+
+    private final AtomicInteger occupiedCount = new AtomicInteger();
+    private final ThreadLocal<Integer> lastWord = ThreadLocal.withInitial(() -> -1);
+    private final AtomicInteger contiguousCursor = new AtomicInteger();
+    private final AtomicInteger largeCursor = new AtomicInteger();
+
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<>();
+    private final ConcurrentHashMap<Integer, Long> births = new ConcurrentHashMap<>();
+    private long lastEpoch = 0;
+    private volatile long newestSnapshot = 0;
+    private final ConcurrentHashMap<Integer, Integer> shares = new ConcurrentHashMap<>();
+    private final Set<Integer> held = new HashSet<>();
+    private final Set<Integer> postponedFrees = new HashSet<>();
+
+    /**
+     * Allocator with all of maxBytes available at once.
+     */
+    public BlockManager(int blockSize, long maxBytes) {
+        this(blockSize, maxBytes, maxBytes);
+    }
 
-    private int occupiedCount = 0;
-    private int lastBlock = 0;
+    /**
+     * Allocator that grows by growthBytes at a time, up to maxBytes.
+     */
+    public BlockManager(int blockSize, long maxBytes, long growthBytes) {
+        this(blockSize, blockSize, maxBytes, growthBytes);
+    }
+
+    /**
+     * Allocator with large blocks of largeBlockSize, which must be a multiple of blockSize.
+     */
+    public BlockManager(int blockSize, int largeBlockSize, long maxBytes, long growthBytes) {
+        if(blockSize <= 0 || growthBytes < blockSize)
+            throw new IllegalArgumentException("Block size and growth must be positive");
+        if(largeBlockSize < blockSize || largeBlockSize % blockSize != 0)
+            throw new IllegalArgumentException("Large block size must be a multiple of block size");
 
-    public BlockManager(int blockSize, int maxBytes) {
         this.blockSize = blockSize;
-        this.maxBlocks = maxBytes / blockSize;
-        this.occupied = new boolean[maxBlocks];
+        this.largeBlockSpan = largeBlockSize / blockSize;
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, maxBytes / blockSize);
+        this.growthBlocks = (int) Math.min(Integer.MAX_VALUE, growthBytes / blockSize);
+
+        var maxWords = (maxBlocks + 63L) / 64;
+        this.segments = new AtomicLongArray[(int) ((maxWords + SEGMENT_WORDS - 1) / SEGMENT_WORDS)];
+
+        grow(Math.min(maxBlocks, growthBlocks));
     }
 
     public int getBlockSize() {
         return blockSize;
     }
 
+    public int getLargeBlockSize() {
+        return blockSize * largeBlockSpan;
+    }
+
+    /**
+     * Number of blocks in a large block, 1 if there are no large blocks.
+     */
+    public int getLargeBlockSpan() {
+        return largeBlockSpan;
+    }
+
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    /**
+     * Number of blocks the container has grown to so far.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getOccupiedCount() {
+        return occupiedCount.get();
+    }
+
+    public boolean isOccupied(int address) {
+        if(address < 0 || address >= capacity)
+            return false;
+
+        return (getWord(address / 64) & (1L << (address % 64))) != 0;
+    }
+
+    private AtomicLongArray segment(int word) {
+        return segments[word >>> SEGMENT_SHIFT];
+    }
+
+    private long getWord(int word) {
+        return segment(word).get(word & (SEGMENT_WORDS - 1));
+    }
+
+    private boolean compareAndSetWord(int word, long expected, long value) {
+        return segment(word).compareAndSet(word & (SEGMENT_WORDS - 1), expected, value);
+    }
+
+    /**
+     * Grows the container by at least one chunk, so that it has the required capacity.
+     * @return false if the required capacity is more than maxBlocks.
+     */
+    private synchronized boolean grow(int requiredBlocks) {
+        if(capacity >= requiredBlocks)
+            return true;
+        if(requiredBlocks > maxBlocks)
+            return false;
+
+        var oldCapacity = capacity;
+        var newCapacity = (int) Math.min(maxBlocks, Math.max(requiredBlocks, (long) oldCapacity + growthBlocks));
+
+        var lastWord = (newCapacity - 1) / 64;
+        for(int i = 0; i <= lastWord >>> SEGMENT_SHIFT; i++) {
+            if(segments[i] != null)
+                continue;
+
+            var words = (int) Math.min(SEGMENT_WORDS, (maxBlocks + 63L) / 64 - (long) i * SEGMENT_WORDS);
+            var segment = new AtomicLongArray(words);
+            for(int w = 0; w < words; w++) {
+                segment.set(w, -1L);
+            }
+            segments[i] = segment;
+        }
+
+        for(int word = oldCapacity / 64; word <= lastWord; word++) {
+            var from = Math.max(oldCapacity, word * 64) - word * 64;
+            var to = Math.min(newCapacity, word * 64 + 64) - word * 64;
+            var mask = runMask(from, to);
+            while(true) {
+                var current = getWord(word);
+                if(compareAndSetWord(word, current, current & ~mask))
+                    break;
+            }
+        }
+
+        capacity = newCapacity;
+        return true;
+    }
+
+    /**
+     * Gives back the capacity past the given number of blocks, so that allocations don't grow the base file again.
+     * @return false if one of the blocks past it is occupied.
+     */
+    public synchronized boolean shrink(int requiredBlocks) {
+        if(requiredBlocks >= capacity)
+            return true;
+
+        // Bits past the capacity are set, as if the blocks were occupied
+        if(!setRun(requiredBlocks, capacity))
+            return false;
+
+        capacity = requiredBlocks;
+        return true;
+    }
+
     public void freeBlock(int address) {
-        if(occupied[address]) {
-            occupiedCount--;
-            occupied[address] = false;
+        synchronized (postponedFrees) {
+            if(shares.containsKey(address)) {
+                shares.computeIfPresent(address, (a, count) -> count > 1 ? count - 1 : null);
+                return;
+            }
+            if(isPinned(address) || held.contains(address)) {
+                postponedFrees.add(address);
+                return;
+            }
+
+            clearBlock(address);
+        }
+    }
+
+    /**
+     * Frees count consecutive blocks starting with address, e.g. a large block.
+     */
+    public void freeBlocks(int address, int count) {
+        for(int i = 0; i < count; i++) {
+            freeBlock(address + i);
+        }
+    }
+
+    private void clearBlock(int address) {
+        births.remove(address);
+        if(address < capacity && resetBit(address))
+            occupiedCount.decrementAndGet();
+    }
+
+    /**
+     * @return true if the bit was set before.
+     */
+    private boolean resetBit(int address) {
+        var word = address / 64;
+        var bit = 1L << (address % 64);
+        while(true) {
+            var current = getWord(word);
+            if((current & bit) == 0)
+                return false;
+
+            if(compareAndSetWord(word, current, current & ~bit))
+                return true;
+        }
+    }
+
+    /**
+     * @return true if the bit was clear before.
+     */
+    private boolean setBit(int address) {
+        var word = address / 64;
+        var bit = 1L << (address % 64);
+        while(true) {
+            var current = getWord(word);
+            if((current & bit) != 0)
+                return false;
+
+            if(compareAndSetWord(word, current, current | bit))
+                return true;
+        }
+    }
+
+    private static long runMask(int from, int to) {
+        return to == 64 ? -1L << from : ((1L << to) - 1) & (-1L << from);
+    }
+
+    /**
+     * Sets bits of [start, end) word by word, all of them or none.
+     * @return false if one of the bits was set already.
+     */
+    private boolean setRun(int start, int end) {
+        var next = start;
+        while(next < end) {
+            var word = next / 64;
+            var to = Math.min(64, end - word * 64);
+            var mask = runMask(next % 64, to);
+
+            var current = getWord(word);
+            if((current & mask) != 0) {
+                resetRun(start, next);
+                return false;
+            }
+            if(compareAndSetWord(word, current, current | mask))
+                next = word * 64 + to;
+        }
+
+        return true;
+    }
+
+    private void resetRun(int start, int end) {
+        var next = start;
+        while(next < end) {
+            var word = next / 64;
+            var to = Math.min(64, end - word * 64);
+            var mask = runMask(next % 64, to);
+
+            var current = getWord(word);
+            if(compareAndSetWord(word, current, current & ~mask))
+                next = word * 64 + to;
+        }
+    }
+
+    /**
+     * Whether an open snapshot may refer to the block, i.e. the block was allocated before the newest open snapshot.
+     */
+    public boolean isPinned(int address) {
+        var newest = newestSnapshot;
+        return newest != 0 && births.getOrDefault(address, 0L) < newest;
+    }
+
+    /**
+     * Whether the block was freed, but stays occupied until a snapshot is closed or the journal releases it.
+     */
+    public boolean isFreePostponed(int address) {
+        synchronized (postponedFrees) {
+            return postponedFrees.contains(address);
+        }
+    }
+
+    /**
+     * Opens a snapshot of all blocks allocated so far.
+     * @return epoch of the snapshot, to be passed to endSnapshot.
+     */
+    public long beginSnapshot() {
+        synchronized (postponedFrees) {
+            lastEpoch++;
+            openSnapshots.put(lastEpoch, 1);
+            newestSnapshot = lastEpoch;
+            return lastEpoch;
         }
     }
 
+    /**
+     * Opens another snapshot of the same blocks as the snapshot of the given epoch, which must be open.
+     */
+    public void retainSnapshot(long epoch) {
+        synchronized (postponedFrees) {
+            openSnapshots.merge(epoch, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Closes a snapshot and frees blocks that were freed while it pinned them.
+     */
+    public void endSnapshot(long epoch) {
+        synchronized (postponedFrees) {
+            openSnapshots.computeIfPresent(epoch, (e, count) -> count > 1 ? count - 1 : null);
+            newestSnapshot = openSnapshots.isEmpty() ? 0 : openSnapshots.lastKey();
+            if(newestSnapshot == 0)
+                births.clear(); // A later snapshot is newer than any of them
+
+            for(var address : new ArrayList<>(postponedFrees)) {
+                freeIfPostponed(address);
+            }
+        }
+    }
+
+    /**
+     * Remembers the epoch of newly allocated blocks while a snapshot is open. A block allocated concurrently with
+     * opening a snapshot may get an older epoch, which only makes it look pinned.
+     */
+    private void born(int start, int count) {
+        if(newestSnapshot == 0)
+            return;
+
+        var epoch = newestSnapshot;
+        for(int i = 0; i < count; i++) {
+            births.put(start + i, epoch);
+        }
+    }
+
+    /**
+     * Adds a reference to an occupied block, e.g. by a copy of a file. The block stays occupied until it is freed
+     * once more than it was shared. Like pinned blocks, shared blocks are copied by writers.
+     */
+    public void shareBlock(int address) {
+        synchronized (postponedFrees) {
+            shares.merge(address, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Whether the block has more than one reference.
+     */
+    public boolean isShared(int address) {
+        return shares.containsKey(address);
+    }
+
+    /**
+     * Holds the block until releaseHeldBlock is called. Unlike pins, holds don't make writers copy the block.
+     */
+    public void holdBlock(int address) {
+        synchronized (postponedFrees) {
+            held.add(address);
+        }
+    }
+
+    public void releaseHeldBlock(int address) {
+        synchronized (postponedFrees) {
+            if(held.remove(address))
+                freeIfPostponed(address);
+        }
+    }
+
+    private void freeIfPostponed(int address) {
+        if(isPinned(address) || held.contains(address))
+            return;
+
+        if(postponedFrees.remove(address))
+            clearBlock(address);
+    }
+
+    /**
+     * Marks a particular block as occupied, growing the container to it if needed. The block is reserved like
+     * an allocated one, so it can't take the space a concurrent allocation has reserved.
+     * @return true if the block was free before and there was space for it.
+     */
+    public boolean occupyBlock(int address) {
+        if(address < 0 || !grow(address + 1))
+            throw new IllegalArgumentException("Block " + address + " is out of the container");
+
+        if(isOccupied(address) || !reserve(1))
+            return false;
+
+        if(setBit(address)) {
+            born(address, 1);
+            return true;
+        }
+
+        occupiedCount.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Reserves space for the given number of blocks, so that the following allocateNextBlock calls can't fail.
+     */
+    private boolean reserve(int number) {
+        while(true) {
+            var current = occupiedCount.get();
+            if((long) current + number > capacity) {
+                if((long) current + number > maxBlocks || !grow(current + number))
+                    return false;
+
+                continue;
+            }
+
+            if(occupiedCount.compareAndSet(current, current + number))
+                return true;
+        }
+    }
+
+    /**
+     * Claims any free block. Must be called only after a successful reserve.
+     */
     private Integer allocateNextBlock() {
-        while(occupied[lastBlock]) {
-            lastBlock = (lastBlock + 1) % maxBlocks;
+        var words = (capacity + 63) / 64;
+        var word = lastWord.get();
+        if(word < 0 || word >= words) {
+            var wordsPerStripe = Math.max(1, words / STRIPES);
+            word = (int) (Thread.currentThread().getId() % STRIPES) * wordsPerStripe % words;
         }
 
-        occupied[lastBlock] = true;
-        occupiedCount++;
-        return lastBlock;
+        while(true) {
+            var current = getWord(word);
+            if(current != -1L) {
+                var bit = Long.numberOfTrailingZeros(~current);
+                if(compareAndSetWord(word, current, current | (1L << bit))) {
+                    lastWord.set(word);
+                    born(word * 64 + bit, 1);
+                    return word * 64 + bit;
+                }
+
+                continue; // Somebody changed the word, try it again
+            }
+
+            words = (capacity + 63) / 64;
+            word = (word + 1) % words;
+        }
     }
 
     /**
@@ -44,7 +483,7 @@ public class BlockManager {
      * @return Address of the allocated block if possible or empty optional if there is not enough space.
      */
     public Optional<Integer> allocateBlock() {
-        if(occupiedCount == maxBlocks) {
+        if(!reserve(1)) {
             return Optional.empty();
         }
 
@@ -56,7 +495,7 @@ public class BlockManager {
      * @return List of addresses of the allocated blocks if possible or empty optional if there is not enough space.
      */
     public Optional<ArrayList<Integer>> allocateBlocks(int number) {
-        if(occupiedCount + number > maxBlocks) {
+        if(!reserve(number)) {
             return Optional.empty();
         }
 
@@ -67,4 +506,144 @@ public class BlockManager {
 
         return Optional.of(result);
     }
+
+    /**
+     * First free block in [from, limit), -1 if there is none.
+     */
+    private int nextFree(int from, int limit) {
+        var position = from;
+        while(position < limit) {
+            var word = position / 64;
+            var free = ~getWord(word) & (-1L << (position % 64));
+            if(free != 0) {
+                var found = word * 64 + Long.numberOfTrailingZeros(free);
+                return found < limit ? found : -1;
+            }
+            position = (word + 1) * 64;
+        }
+
+        return -1;
+    }
+
+    /**
+     * First occupied block in [from, limit), limit if there is none.
+     */
+    private int nextOccupied(int from, int limit) {
+        var position = from;
+        while(position < limit) {
+            var word = position / 64;
+            var occupied = getWord(word) & (-1L << (position % 64));
+            if(occupied != 0)
+                return Math.min(limit, word * 64 + Long.numberOfTrailingZeros(occupied));
+            position = (word + 1) * 64;
+        }
+
+        return limit;
+    }
+
+    /**
+     * First run of number free blocks in [from, limit) starting at a multiple of alignment, -1 if there is none.
+     */
+    private int findRun(int from, int limit, int number, int alignment) {
+        var start = nextFree(from, limit);
+        while(start >= 0) {
+            start = (int) Math.min(Integer.MAX_VALUE, (start + alignment - 1L) / alignment * alignment);
+            if((long) start + number > limit)
+                return -1;
+
+            var end = nextOccupied(start, start + number);
+            if(end == start + number)
+                return start;
+            start = nextFree(end, limit);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Claims a run of number blocks, searching from the cursor to the end of the container, then from the beginning
+     * to the cursor and then in the grown part. The space must be reserved already.
+     * @return first block of the run, -1 if there is no such run.
+     */
+    private int claimRun(@NotNull AtomicInteger cursor, int number, int alignment) {
+        var from = cursor.get();
+        var position = from;
+        var limit = capacity;
+        var wrapped = from == 0;
+        while(true) {
+            var start = findRun(position, limit, number, alignment);
+            if(start >= 0) {
+                if(setRun(start, start + number)) {
+                    cursor.set(start + number);
+                    born(start, number);
+                    return start;
+                }
+
+                position = start + 1; // Somebody took a block of the run meanwhile
+                continue;
+            }
+
+            if(!wrapped) {
+                wrapped = true;
+                position = 0;
+                limit = (int) Math.min(capacity, (long) from + number - 1);
+                continue;
+            }
+
+            // No run in the current capacity, the container must grow
+            var oldCapacity = capacity;
+            if(!grow((int) Math.min(maxBlocks, (long) oldCapacity + number)) || capacity == oldCapacity)
+                return -1;
+            position = Math.max(0, oldCapacity - number + 1);
+            limit = capacity;
+        }
+    }
+
+    /**
+     * Request for a run of consecutive blocks, found by a next-fit search.
+     * @return Address of the first block of the run or empty optional if there is no such run.
+     */
+    public Optional<Integer> allocateContiguous(int number) {
+        if(number <= 0)
+            throw new IllegalArgumentException("Number of blocks must be positive");
+
+        if(!reserve(number)) {
+            return Optional.empty();
+        }
+
+        var start = claimRun(contiguousCursor, number, 1);
+        if(start >= 0)
+            return Optional.of(start);
+
+        occupiedCount.addAndGet(-number);
+        return Optional.empty();
+    }
+
+    /**
+     * Request for a given number of large blocks, found by a next-fit search.
+     * @return List of the first blocks of the large blocks or empty optional if there is not enough space.
+     */
+    public Optional<ArrayList<Integer>> allocateLargeBlocks(int number) {
+        var span = largeBlockSpan;
+        if((long) number * span > maxBlocks || !reserve(number * span)) {
+            return Optional.empty();
+        }
+
+        var result = new ArrayList<Integer>(number);
+        while(result.size() < number) {
+            var start = claimRun(largeCursor, span, span);
+            if(start < 0)
+                break;
+            result.add(start);
+        }
+
+        if(result.size() == number)
+            return Optional.of(result);
+
+        for(var block : result) {
+            resetRun(block, block + span);
+        }
+        occupiedCount.addAndGet(-number * span);
+        return Optional.empty();
+    }
 }
@@ -0,0 +1,507 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Frequently read blocks of the base file kept off-heap, in front of it as a FileChannel.
+ * Blocks read PROMOTE_READS times are promoted, large reads don't count. Reads and writes go to the base file
+ * only for runs of blocks that aren't resident. Writes to resident blocks are written back on demotion, force
+ * and close.
+ */
+public class BlockMemoryTier extends BlockPositionalChannel {
+    private static final int PROMOTE_READS = 2;
+    // Requests of more blocks are streaming I/O
+    private static final int MAX_PROMOTING_REQUEST_BLOCKS = 8;
+    private static final int VICTIM_SAMPLES = 8;
+    private static final int LOCK_STRIPES = 64;
+
+    private final FileChannel disk;
+    private final int blockSize;
+    private final int slotCount;
+    private final ByteBuffer slab;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+    // Guarded by this
+    private final HashMap<Long, Integer> resident = new HashMap<>();
+    private final long[] slotBlocks;
+    private final boolean[] dirty;
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private final HashMap<Long, Integer> readCounts = new HashMap<>();
+    private final int maxReadCounts;
+    private int clockHand = 0;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong promotions = new AtomicLong();
+    private final AtomicLong demotions = new AtomicLong();
+    private final AtomicLong writeBacks = new AtomicLong();
+
+    /**
+     * @param size bytes of memory for the tier, rounded down to whole blocks. A direct buffer is limited to 2 GB.
+     */
+    BlockMemoryTier(@NotNull FileChannel disk, int blockSize, long size) {
+        this.disk = disk;
+        this.blockSize = blockSize;
+        this.slotCount = (int) Math.min(size / blockSize, Integer.MAX_VALUE / blockSize - 1);
+        if(slotCount < 1)
+            throw new IllegalArgumentException("Memory tier must hold at least one block");
+
+        // Slots aligned like blocks in the base file, so a base file opened for direct I/O takes them as they are
+        var alignment = Integer.lowestOneBit(blockSize);
+        this.slab = ByteBuffer.allocateDirect(slotCount * blockSize + alignment).alignedSlice(alignment)
+                .limit(slotCount * blockSize).slice();
+        this.slotBlocks = new long[slotCount];
+        this.dirty = new boolean[slotCount];
+        for(int i = 0; i < slotCount; i++) {
+            freeSlots.add(i);
+        }
+        this.maxReadCounts = 4 * slotCount + 1024;
+        for(int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public int getCapacityBlocks() {
+        return slotCount;
+    }
+
+    public synchronized int getResidentBlocks() {
+        return resident.size();
+    }
+
+    /**
+     * Block reads served by the memory tier.
+     */
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    /**
+     * Block reads that went to the base file.
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Fraction of block reads served by the memory tier, 0 before the first read.
+     */
+    public double getMemoryHitRatio() {
+        var memory = memoryHits.get();
+        var total = memory + diskHits.get();
+        return total == 0 ? 0 : (double) memory / total;
+    }
+
+    /**
+     * Fraction of block reads served by the base file, 0 before the first read.
+     */
+    public double getDiskHitRatio() {
+        var disk = diskHits.get();
+        var total = memoryHits.get() + disk;
+        return total == 0 ? 0 : (double) disk / total;
+    }
+
+    public long getPromotions() {
+        return promotions.get();
+    }
+
+    public long getDemotions() {
+        return demotions.get();
+    }
+
+    /**
+     * Dirty blocks written to the base file, on demotion, force or close.
+     */
+    public long getWriteBacks() {
+        return writeBacks.get();
+    }
+
+    private ReentrantLock lockOf(long block) {
+        return locks[(int) (block % LOCK_STRIPES)];
+    }
+
+    /**
+     * Locks the stripes of all blocks of the request, always in the same order.
+     */
+    private boolean[] lockRange(long first, long last) {
+        var held = new boolean[LOCK_STRIPES];
+        var count = Math.min(LOCK_STRIPES, last - first + 1);
+        for(long block = first; block < first + count; block++) {
+            held[(int) (block % LOCK_STRIPES)] = true;
+        }
+        for(int i = 0; i < LOCK_STRIPES; i++) {
+            if(held[i])
+                locks[i].lock();
+        }
+
+        return held;
+    }
+
+    private void unlockRange(boolean[] held) {
+        for(int i = LOCK_STRIPES - 1; i >= 0; i--) {
+            if(held[i])
+                locks[i].unlock();
+        }
+    }
+
+    private ByteBuffer slot(int slot) {
+        var buffer = slab.duplicate();
+        buffer.position(slot * blockSize);
+        buffer.limit((slot + 1) * blockSize);
+        return buffer.slice();
+    }
+
+    private synchronized boolean isResidentSlot(int slot) {
+        var owner = resident.get(slotBlocks[slot]);
+        return owner != null && owner == slot;
+    }
+
+    private synchronized int slotOf(long block) {
+        var slot = resident.get(block);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * Counts a read of the block.
+     * @return whether the block should be promoted.
+     */
+    private synchronized boolean countRead(long block) {
+        var reads = readCounts.merge(block, 1, Integer::sum);
+        if(readCounts.size() > maxReadCounts)
+            age();
+
+        return !resident.containsKey(block) && reads >= PROMOTE_READS;
+    }
+
+    private void age() {
+        readCounts.replaceAll((block, reads) -> reads / 2);
+        readCounts.values().removeIf(reads -> reads == 0);
+    }
+
+    /**
+     * Takes a free slot or the slot of a colder block, the victim's stripe is only tried so promotions can't deadlock.
+     * @return the slot, or -1 if there is none.
+     */
+    private int takeSlot(long block, long first, long last) throws IOException {
+        int victim;
+        ReentrantLock victimLock;
+        synchronized(this) {
+            if(!freeSlots.isEmpty())
+                return freeSlots.poll();
+
+            var reads = readCounts.getOrDefault(block, 0);
+            victim = -1;
+            var victimReads = reads;
+            for(int i = 0; i < VICTIM_SAMPLES; i++) {
+                var slot = clockHand;
+                clockHand = (clockHand + 1) % slotCount;
+
+                // A slot being filled by another promotion isn't resident yet
+                var candidate = slotBlocks[slot];
+                if(!isResidentSlot(slot) || (candidate >= first && candidate <= last))
+                    continue;
+                var candidateReads = readCounts.getOrDefault(candidate, 0);
+                if(candidateReads < victimReads) {
+                    victim = slot;
+                    victimReads = candidateReads;
+                }
+            }
+            if(victim < 0)
+                return -1;
+
+            victimLock = lockOf(slotBlocks[victim]);
+            if(!victimLock.tryLock())
+                return -1;
+            resident.remove(slotBlocks[victim]);
+        }
+
+        try {
+            if(isDirty(victim))
+                writeBack(victim);
+        } finally {
+            victimLock.unlock();
+        }
+        demotions.incrementAndGet();
+
+        return victim;
+    }
+
+    /**
+     * Reads the block into a slot, only blocks entirely inside the base file are promoted.
+     */
+    private void promote(long block, long first, long last) throws IOException {
+        if((block + 1) * blockSize > disk.size())
+            return;
+
+        var slot = takeSlot(block, first, last);
+        if(slot < 0)
+            return;
+
+        var buffer = slot(slot);
+        try {
+            while(buffer.hasRemaining()) {
+                if(disk.read(buffer, block * blockSize + buffer.position()) < 0)
+                    break;
+            }
+        } catch (IOException e) {
+            synchronized(this) {
+                freeSlots.add(slot);
+            }
+            throw e;
+        }
+
+        synchronized(this) {
+            slotBlocks[slot] = block;
+            dirty[slot] = false;
+            resident.put(block, slot);
+        }
+        promotions.incrementAndGet();
+    }
+
+    /**
+     * Writes the slot to the base file. The stripe of its block must be held.
+     */
+    private void writeBack(int slot) throws IOException {
+        var buffer = slot(slot);
+        var position = slotBlocks[slot] * blockSize;
+        while(buffer.hasRemaining()) {
+            position += disk.write(buffer, position);
+        }
+        synchronized(this) {
+            dirty[slot] = false;
+        }
+        writeBacks.incrementAndGet();
+    }
+
+    private synchronized boolean isDirty(int slot) {
+        return dirty[slot];
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if(position < 0)
+            throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+        if(!dst.hasRemaining())
+            return 0;
+
+        var length = dst.remaining();
+        var first = position / blockSize;
+        var last = (position + length - 1) / blockSize;
+        var held = lockRange(first, last);
+        try {
+            if(last - first < MAX_PROMOTING_REQUEST_BLOCKS) {
+                for(long block = first; block <= last; block++) {
+                    if(countRead(block))
+                        promote(block, first, last);
+                }
+            }
+
+            // Runs of blocks that aren't resident come from the base file in one read each. Resident blocks are
+            // inside the base file, so only the last run may end early, at the end of the base file.
+            var read = length;
+            var runStart = -1L;
+            for(long block = first; block <= last + 1; block++) {
+                var slot = block <= last ? slotOf(block) : -1;
+                var inRun = block <= last && slot < 0;
+                if(inRun && runStart < 0)
+                    runStart = block;
+                if(!inRun && runStart >= 0) {
+                    diskHits.addAndGet(block - runStart);
+                    var from = Math.max(position, runStart * blockSize);
+                    var to = Math.min(position + length, block * blockSize);
+                    var fromDisk = readFromDisk(dst, position, from, to);
+                    if(fromDisk < to - from) {
+                        read = (int) (from - position) + fromDisk;
+                        break;
+                    }
+                    runStart = -1;
+                }
+
+                if(slot >= 0) {
+                    var from = Math.max(position, block * blockSize);
+                    var to = Math.min(position + length, (block + 1) * blockSize);
+                    var source = slot(slot);
+                    source.position((int) (from - block * blockSize));
+                    source.limit((int) (to - block * blockSize));
+                    var target = dst.duplicate();
+                    target.position(dst.position() + (int) (from - position));
+                    target.put(source);
+                    memoryHits.incrementAndGet();
+                }
+            }
+            if(read == 0)
+                return -1;
+
+            dst.position(dst.position() + read);
+            return read;
+        } finally {
+            unlockRange(held);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        if(position < 0)
+            throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+        if(!src.hasRemaining())
+            return 0;
+
+        var length = src.remaining();
+        var first = position / blockSize;
+        var last = (position + length - 1) / blockSize;
+        var held = lockRange(first, last);
+        try {
+            // Runs of blocks that aren't resident go to the base file in one write each
+            var runStart = -1L;
+            for(long block = first; block <= last + 1; block++) {
+                var slot = block <= last ? slotOf(block) : -1;
+                var inRun = block <= last && slot < 0;
+                if(inRun && runStart < 0)
+                    runStart = block;
+                if(!inRun && runStart >= 0) {
+                    writeToDisk(src, position, runStart * blockSize, block * blockSize);
+                    runStart = -1;
+                }
+
+                if(slot >= 0) {
+                    var from = Math.max(position, block * blockSize);
+                    var to = Math.min(position + length, (block + 1) * blockSize);
+                    var part = src.duplicate();
+                    part.position(src.position() + (int) (from - position));
+                    part.limit(src.position() + (int) (to - position));
+                    var target = slot(slot);
+                    target.position((int) (from - block * blockSize));
+                    target.put(part);
+                    synchronized(this) {
+                        dirty[slot] = true;
+                    }
+                }
+            }
+
+            src.position(src.position() + length);
+            return length;
+        } finally {
+            unlockRange(held);
+        }
+    }
+
+    /**
+     * Reads the part of the request between from and to, positions in the base file.
+     * @return bytes read, fewer than requested at the end of the base file.
+     */
+    private int readFromDisk(ByteBuffer dst, long position, long from, long to) throws IOException {
+        var part = dst.duplicate();
+        part.position(dst.position() + (int) (from - position));
+        part.limit(dst.position() + (int) (to - position));
+        var start = part.position();
+        while(part.hasRemaining()) {
+            if(disk.read(part, from + part.position() - start) < 0)
+                break;
+        }
+
+        return part.position() - start;
+    }
+
+    /**
+     * Writes the part of the request between from and to, positions in the base file.
+     */
+    private void writeToDisk(ByteBuffer src, long position, long from, long to) throws IOException {
+        from = Math.max(from, position);
+        to = Math.min(to, position + src.remaining());
+        var part = src.duplicate();
+        part.position(src.position() + (int) (from - position));
+        part.limit(src.position() + (int) (to - position));
+        while(part.hasRemaining()) {
+            from += disk.write(part, from);
+        }
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return disk.size();
+    }
+
+    /**
+     * Drops resident blocks past the new end, their content is gone with the end of the base file.
+     */
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        if(size < 0)
+            throw new IllegalArgumentException("Negative size");
+        ensureOpen();
+
+        var held = lockRange(0, LOCK_STRIPES - 1);
+        try {
+            synchronized(this) {
+                var iterator = resident.entrySet().iterator();
+                while(iterator.hasNext()) {
+                    var entry = iterator.next();
+                    if((entry.getKey() + 1) * blockSize > size) {
+                        dirty[entry.getValue()] = false;
+                        freeSlots.add(entry.getValue());
+                        iterator.remove();
+                    }
+                }
+            }
+            disk.truncate(size);
+        } finally {
+            unlockRange(held);
+        }
+        truncatePosition(size);
+
+        return this;
+    }
+
+    /**
+     * Writes all dirty blocks back before the base file is forced.
+     */
+    @Override
+    public void force(boolean metaData) throws IOException {
+        ensureOpen();
+
+        writeBackAll();
+        disk.force(metaData);
+    }
+
+    private void writeBackAll() throws IOException {
+        var held = lockRange(0, LOCK_STRIPES - 1);
+        try {
+            for(int slot = 0; slot < slotCount; slot++) {
+                if(isDirty(slot))
+                    writeBack(slot);
+            }
+        } finally {
+            unlockRange(held);
+        }
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        try {
+            writeBackAll();
+        } finally {
+            disk.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "Memory tier: %d of %d blocks resident, hit ratio %.4f, disk hit ratio %.4f, " +
+                        "promotions: %d, demotions: %d, write-backs: %d",
+                getResidentBlocks(), slotCount, getMemoryHitRatio(), getDiskHitRatio(),
+                getPromotions(), getDemotions(), getWriteBacks()
+        );
+    }
+}
@@ -0,0 +1,146 @@
+package ofs.blockimpl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * FileChannel made of positional reads and writes, for layers between the container and its base files.
+ * The container itself uses only positional I/O, size, truncate and force, the rest is built on top of them.
+ * Such a channel can't be mapped or locked.
+ */
+abstract class BlockPositionalChannel extends FileChannel {
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private long position = 0;
+
+    void ensureOpen() throws IOException {
+        if(!isOpen())
+            throw new ClosedChannelException();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        var read = read(dst, position);
+        if(read > 0)
+            position += read;
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        var total = 0L;
+        for(int i = offset; i < offset + length; i++) {
+            if(!dsts[i].hasRemaining())
+                continue;
+
+            var read = read(dsts[i]);
+            if(read < 0)
+                return total == 0 ? -1 : total;
+            total += read;
+            if(dsts[i].hasRemaining())
+                break;
+        }
+
+        return total;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        var written = write(src, position);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        var total = 0L;
+        for(int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+        }
+
+        return total;
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) throws IOException {
+        if(newPosition < 0)
+            throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * Moves the position back to the new end, to be called by truncate.
+     */
+    synchronized void truncatePosition(long size) {
+        position = Math.min(position, size);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        var buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(count, 1)));
+        var total = 0L;
+        while(total < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - total));
+            var read = read(buffer, position + total);
+            if(read <= 0)
+                break;
+
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            total += read;
+        }
+
+        return total;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        var buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(count, 1)));
+        var total = 0L;
+        while(total < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - total));
+            var read = src.read(buffer);
+            if(read <= 0)
+                break;
+
+            buffer.flip();
+            total += write(buffer, position + total);
+        }
+
+        return total;
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't be mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't be locked");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't be locked");
+    }
+}
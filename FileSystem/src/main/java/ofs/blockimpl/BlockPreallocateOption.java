@@ -0,0 +1,49 @@
+package ofs.blockimpl;
+
+import java.nio.file.OpenOption;
+import java.util.Objects;
+
+/**
+ * Open option, that makes the file own blocks for the given number of bytes before the channel is returned.
+ * The blocks are taken as one contiguous run if there is one and aren't zero-filled, the file size doesn't change.
+ * Writes inside the preallocated range then need no allocation and no rewrite of the block list.
+ *
+ * <pre>
+ * Files.newByteChannel(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, BlockPreallocateOption.bytes(size))
+ * </pre>
+ */
+public final class BlockPreallocateOption implements OpenOption {
+    private final long byteCount;
+
+    private BlockPreallocateOption(long byteCount) {
+        this.byteCount = byteCount;
+    }
+
+    public static BlockPreallocateOption bytes(long byteCount) {
+        if(byteCount < 0)
+            throw new IllegalArgumentException("Preallocated size must not be negative");
+
+        return new BlockPreallocateOption(byteCount);
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return byteCount == ((BlockPreallocateOption) o).byteCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(byteCount);
+    }
+
+    @Override
+    public String toString() {
+        return "PREALLOCATE(" + byteCount + ")";
+    }
+}
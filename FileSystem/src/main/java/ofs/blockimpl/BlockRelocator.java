@@ -0,0 +1,250 @@
+package ofs.blockimpl;
+
+import ofs.tree.OFSTree;
+import ofs.tree.OFSTreeNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Moves blocks of a mounted container to other places. The owner of every block is found by a walk of the indexed
+ * part of the tree, a move copies the content and changes the reference in memory. commit then writes all changed heads and
+ * directories in one journal transaction and only afterwards frees the old blocks, so a crash leaves either
+ * the old or the new layout. All changes of the container must be stopped from the walk until commit.
+ * Blocks pinned by snapshots or shared by several files are never moved, the index knows only one owner.
+ */
+class BlockRelocator {
+    private final FileChannel channel;
+    private final BlockManager blockManager;
+    private final BlockFileSerializer serializer;
+
+    private final Map<Integer, Owner> owners = new HashMap<>();
+    private final LinkedHashSet<OFSTreeNode<BlockFileHead>> changedHeads = new LinkedHashSet<>();
+    private final LinkedHashSet<OFSTreeNode<BlockFileHead>> changedDirectories = new LinkedHashSet<>();
+    private final ArrayList<int[]> oldRuns = new ArrayList<>();
+    private int nextFreeCandidate = 0;
+
+    /**
+     * A reference to a block: an entry of the address list or of the block list of a head.
+     */
+    private static class Owner {
+        final OFSTreeNode<BlockFileHead> node;
+        final OFSTreeNode<BlockFileHead> parent;
+        final boolean isHeadBlock;
+        final int index;
+        final int span;
+
+        Owner(OFSTreeNode<BlockFileHead> node, OFSTreeNode<BlockFileHead> parent, boolean isHeadBlock, int index, int span) {
+            this.node = node;
+            this.parent = parent;
+            this.isHeadBlock = isHeadBlock;
+            this.index = index;
+            this.span = span;
+        }
+
+        int getStart() {
+            var head = node.getFile();
+            return isHeadBlock ? head.getAddress(index) : head.getBlocks().get(index);
+        }
+    }
+
+    BlockRelocator(@NotNull FileChannel channel, @NotNull BlockManager blockManager,
+                   @NotNull BlockFileSerializer serializer) {
+        this.channel = channel;
+        this.blockManager = blockManager;
+        this.serializer = serializer;
+    }
+
+    BlockRelocator(@NotNull FileChannel channel, @NotNull BlockManager blockManager,
+                   @NotNull BlockFileSerializer serializer, @NotNull OFSTree<BlockFileHead> tree) {
+        this(channel, blockManager, serializer);
+
+        index(tree.getRoot(), null);
+    }
+
+    /**
+     * Finds owners of the blocks of the node and all of its descendants. Parent is null for the root.
+     */
+    void index(@NotNull OFSTreeNode<BlockFileHead> node, OFSTreeNode<BlockFileHead> parent) {
+        var head = node.getFile();
+        var address = head.getFullAddress();
+        for(int i = 0; i < address.size(); i++) {
+            owners.put(address.get(i), new Owner(node, parent, true, i, 1));
+        }
+
+        var span = head.isLargeBlocks() ? blockManager.getLargeBlockSpan() : 1;
+        var blocks = head.getBlocks();
+        for(int i = 0; i < blocks.size(); i++) {
+            if(blocks.get(i) == BlockFileHead.HOLE)
+                continue;
+
+            var owner = new Owner(node, parent, false, i, span);
+            for(int j = 0; j < span; j++) {
+                owners.put(blocks.get(i) + j, owner);
+            }
+        }
+
+        if(node.isDirectory()) {
+            for(var child : node.getAllChildren()) {
+                index(child, node);
+            }
+        }
+    }
+
+    /**
+     * Whether the block belongs to a head, as a head block or a part of the content.
+     */
+    boolean isOwned(int block) {
+        return owners.containsKey(block);
+    }
+
+    /**
+     * First block of the run the owned block is in, the block itself unless it is in a large block.
+     */
+    int getRunStart(int block) {
+        return owners.get(block).getStart();
+    }
+
+    int getRunLength(int block) {
+        return owners.get(block).span;
+    }
+
+    /**
+     * Moves the run starting with start to the lowest free place, if that place is before it.
+     * @return false if the run stays where it is.
+     */
+    boolean moveDown(int start) throws IOException {
+        var owner = owners.get(start);
+        if(owner == null || isImmovable(start, owner.span))
+            return false;
+
+        var destination = owner.span == 1
+                ? lowestFreeBlock()
+                : blockManager.allocateLargeBlocks(1).map(l -> l.get(0)).orElse(-1);
+        if(destination < 0)
+            return false;
+        if(destination >= start) {
+            blockManager.freeBlocks(destination, owner.span);
+            return false;
+        }
+
+        move(start, destination);
+        return true;
+    }
+
+    /**
+     * Moves the owned run starting with start to destination, whose blocks must be already occupied by the caller.
+     */
+    void move(int start, int destination) throws IOException {
+        var owner = owners.get(start);
+        var head = owner.node.getFile();
+
+        var lock = head.getLock().writeLock();
+        lock.lock();
+        try {
+            copy(start, destination, owner.span);
+            if(owner.isHeadBlock) {
+                head.getFullAddress().set(owner.index, destination);
+                // Directories refer to their children by the first head block
+                if(owner.index == 0 && owner.parent != null)
+                    changedDirectories.add(owner.parent);
+            } else {
+                head.getBlocks().set(owner.index, destination);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        for(int i = 0; i < owner.span; i++) {
+            owners.remove(start + i);
+            owners.put(destination + i, owner);
+        }
+        changedHeads.add(owner.node);
+        oldRuns.add(new int[] {start, owner.span});
+    }
+
+    private boolean isImmovable(int start, int span) {
+        for(int i = 0; i < span; i++) {
+            if(blockManager.isPinned(start + i) || blockManager.isShared(start + i))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Occupies the lowest free block. Nothing else allocates meanwhile, so the search continues where it stopped.
+     * @return the block or -1 if there is none.
+     */
+    private int lowestFreeBlock() {
+        while(nextFreeCandidate < blockManager.getCapacity()) {
+            var candidate = nextFreeCandidate++;
+            if(!blockManager.isOccupied(candidate) && blockManager.occupyBlock(candidate))
+                return candidate;
+        }
+
+        return -1;
+    }
+
+    private void copy(int from, int to, int count) throws IOException {
+        var blockSize = blockManager.getBlockSize();
+        var buffer = ByteBuffer.allocate(blockSize);
+        for(int i = 0; i < count; i++) {
+            buffer.clear();
+            var position = (long) blockSize * (from + i);
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer, position + buffer.position()) < 0) {
+                    // Never written, reads as zeros
+                    Arrays.fill(buffer.array(), buffer.position(), buffer.limit(), (byte) 0);
+                    break;
+                }
+            }
+            buffer.clear();
+
+            position = (long) blockSize * (to + i);
+            while(buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Writes the changed heads and directories atomically and frees the blocks they no longer use.
+     * @return number of moved runs.
+     */
+    int commit() throws IOException {
+        serializer.beginTransaction();
+        try {
+            for(var node : changedHeads) {
+                if(node.isDirectory()) {
+                    serializer.serializeDirectory(node);
+                } else {
+                    serializer.serializeFileHead(node.getFile());
+                }
+            }
+            for(var dir : changedDirectories) {
+                serializer.serializeDirectory(dir);
+            }
+        } finally {
+            serializer.commitTransaction();
+        }
+
+        for(var run : oldRuns) {
+            blockManager.freeBlocks(run[0], run[1]);
+        }
+
+        var moved = oldRuns.size();
+        changedHeads.clear();
+        changedDirectories.clear();
+        oldRuns.clear();
+
+        return moved;
+    }
+}
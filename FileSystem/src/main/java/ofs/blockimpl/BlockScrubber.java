@@ -0,0 +1,194 @@
+package ofs.blockimpl;
+
+import ofs.tree.OFSTree;
+import ofs.tree.OFSTreeNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the content of all files with its checksums, chunk by chunk under the read lock of the file.
+ * Damaged blocks are only reported.
+ */
+public class BlockScrubber {
+    private static final int CHUNK_BLOCKS = 64;
+
+    /**
+     * Result of a run. Files created during the run and files written without checksums aren't checked.
+     */
+    public static class Report {
+        private int filesChecked = 0;
+        private long blocksChecked = 0;
+        private long damagedBlocks = 0;
+        private final SortedSet<Path> damagedFiles = new TreeSet<>();
+        private boolean cancelled = false;
+
+        public int getFilesChecked() {
+            return filesChecked;
+        }
+
+        public long getBlocksChecked() {
+            return blocksChecked;
+        }
+
+        public long getDamagedBlocks() {
+            return damagedBlocks;
+        }
+
+        /**
+         * Paths of files with damaged blocks, as they were when the run started.
+         */
+        public SortedSet<Path> getDamagedFiles() {
+            return damagedFiles;
+        }
+
+        /**
+         * Whether the run was stopped before all files were checked, e.g. by close.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isClean() {
+            return damagedBlocks == 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Files checked: %d, blocks checked: %d, damaged blocks: %d, damaged files: %s%s",
+                    filesChecked, blocksChecked, damagedBlocks, damagedFiles, cancelled ? ", cancelled" : ""
+            );
+        }
+    }
+
+    private static class Candidate {
+        final OFSTreeNode<BlockFileHead> node;
+        final OFSTreeNode<BlockFileHead> parent;
+        final Path path;
+
+        Candidate(OFSTreeNode<BlockFileHead> node, OFSTreeNode<BlockFileHead> parent, Path path) {
+            this.node = node;
+            this.parent = parent;
+            this.path = path;
+        }
+    }
+
+    private final BlockManager blockManager;
+    private final BlockFileSerializer serializer;
+    private final OFSTree<BlockFileHead> tree;
+    private final long maxBytesPerSecond;
+    private final Report report = new Report();
+
+    // Never interrupted to stop: an interrupt during I/O would close the channel of the container
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    private long startNanos;
+    private long bytesChecked = 0;
+
+    BlockScrubber(@NotNull BlockManager blockManager, @NotNull BlockFileSerializer serializer,
+                  @NotNull OFSTree<BlockFileHead> tree, long maxBytesPerSecond) {
+        if(maxBytesPerSecond <= 0)
+            throw new IllegalArgumentException("Scrubbing rate must be positive");
+
+        this.blockManager = blockManager;
+        this.serializer = serializer;
+        this.tree = tree;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Stops the run after the current chunk.
+     */
+    void cancel() {
+        cancelled.countDown();
+    }
+
+    private boolean isCancelled() {
+        return cancelled.getCount() == 0;
+    }
+
+    Report run() throws IOException, InterruptedException {
+        startNanos = System.nanoTime();
+
+        // Lists of children are copied on write, so the walk needs no lock
+        var candidates = new ArrayList<Candidate>();
+        collectCandidates(tree.getRoot(), Path.of(""), candidates);
+
+        for(var candidate : candidates) {
+            if(isCancelled())
+                break;
+            if(check(candidate))
+                report.filesChecked++;
+        }
+
+        report.blocksChecked = bytesChecked / blockManager.getBlockSize();
+        report.cancelled = isCancelled();
+
+        return report;
+    }
+
+    private void collectCandidates(OFSTreeNode<BlockFileHead> dir, Path path, List<Candidate> candidates) {
+        for(var child : dir.getAllChildren()) {
+            var childPath = path.resolve(child.getFile().getName());
+            if(child.isDirectory()) {
+                collectCandidates(child, childPath, candidates);
+            } else if(child.getFile().hasChecksums()) {
+                candidates.add(new Candidate(child, dir, childPath));
+            }
+        }
+    }
+
+    /**
+     * @return false if the file wasn't checked completely.
+     */
+    private boolean check(Candidate candidate) throws IOException, InterruptedException {
+        var head = candidate.node.getFile();
+        for(int from = 0; !isCancelled(); from += CHUNK_BLOCKS) {
+            var chunkBytes = 0L;
+            var lock = head.getLock().readLock();
+            lock.lock();
+            try {
+                // A deleted file may have its blocks reused already
+                if(!candidate.parent.getAllChildren().contains(candidate.node))
+                    return false;
+
+                var to = Math.min(from + CHUNK_BLOCKS, serializer.unitCount(head));
+                if(from >= to)
+                    return true;
+
+                var damaged = new BitSet();
+                chunkBytes = (long) serializer.findDamaged(head, from, to, damaged) * blockManager.getBlockSize();
+                if(!damaged.isEmpty()) {
+                    report.damagedBlocks += damaged.cardinality();
+                    report.damagedFiles.add(candidate.path);
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            throttle(chunkBytes);
+        }
+
+        return false;
+    }
+
+    /**
+     * Waits until the bytes checked so far fit into the rate or the run is cancelled.
+     */
+    private void throttle(long chunkBytes) throws InterruptedException {
+        bytesChecked += chunkBytes;
+
+        var dueNanos = (long) (bytesChecked * 1e9 / maxBytesPerSecond);
+        var aheadNanos = dueNanos - (System.nanoTime() - startNanos);
+        if(aheadNanos > 0)
+            cancelled.await(aheadNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,213 @@
+package ofs.blockimpl;
+
+import ofs.tree.OFSTree;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Frees whole segments for the BlockLog by moving the live blocks of at most half live segments, emptiest first,
+ * into the log. Segments with blocks of large files or shared blocks are left alone.
+ */
+public class BlockSegmentCleaner {
+    /**
+     * Result of a run.
+     */
+    public static class Report {
+        private int segmentsCleaned = 0;
+        private long blocksMoved = 0;
+        private boolean cancelled = false;
+
+        public int getSegmentsCleaned() {
+            return segmentsCleaned;
+        }
+
+        public long getBlocksMoved() {
+            return blocksMoved;
+        }
+
+        /**
+         * Whether the run was stopped before all segments were visited, e.g. by close.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "Segments cleaned: %d, blocks moved: %d%s",
+                    segmentsCleaned, blocksMoved, cancelled ? ", cancelled" : ""
+            );
+        }
+    }
+
+    private static class Candidate {
+        final int start;
+        final int live;
+
+        Candidate(int start, int live) {
+            this.start = start;
+            this.live = live;
+        }
+    }
+
+    private final FileChannel channel;
+    private final BlockManager blockManager;
+    private final BlockFileSerializer serializer;
+    private final OFSTree<BlockFileHead> tree;
+    private final BlockLog log;
+    private final int firstBlock;
+    private final ReentrantReadWriteLock.WriteLock exclusiveLock;
+    private final long maxBytesPerSecond;
+    private final Report report = new Report();
+
+    // Never interrupted to stop: an interrupt during I/O would close the channel of the container
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    private long startNanos;
+    private long bytesMoved = 0;
+
+    /**
+     * @param firstBlock the first block that may belong to files, segments start at multiples of the segment size
+     *                   from it.
+     */
+    BlockSegmentCleaner(@NotNull FileChannel channel, @NotNull BlockManager blockManager,
+                        @NotNull BlockFileSerializer serializer, @NotNull OFSTree<BlockFileHead> tree,
+                        @NotNull BlockLog log, int firstBlock,
+                        @NotNull ReentrantReadWriteLock.WriteLock exclusiveLock, long maxBytesPerSecond) {
+        if(maxBytesPerSecond <= 0)
+            throw new IllegalArgumentException("Cleaning rate must be positive");
+
+        this.channel = channel;
+        this.blockManager = blockManager;
+        this.serializer = serializer;
+        this.tree = tree;
+        this.log = log;
+        this.firstBlock = firstBlock;
+        this.exclusiveLock = exclusiveLock;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * Stops the run after the current segment. Already cleaned segments stay clean.
+     */
+    void cancel() {
+        cancelled.countDown();
+    }
+
+    private boolean isCancelled() {
+        return cancelled.getCount() == 0;
+    }
+
+    Report run() throws IOException, InterruptedException {
+        startNanos = System.nanoTime();
+
+        var candidates = new ArrayList<Candidate>();
+        exclusiveLock.lock();
+        try {
+            // Blocks of the active segment are occupied without an owner, the segment would never qualify
+            log.release();
+            var relocator = new BlockRelocator(channel, blockManager, serializer, tree);
+            var segmentBlocks = log.getSegmentBlocks();
+            for(int start = firstBlock; start + segmentBlocks <= blockManager.getCapacity(); start += segmentBlocks) {
+                var live = countMovable(relocator, start);
+                if(live > 0 && live <= segmentBlocks / 2)
+                    candidates.add(new Candidate(start, live));
+            }
+        } finally {
+            exclusiveLock.unlock();
+        }
+        candidates.sort(Comparator.comparingInt(c -> c.live));
+
+        for(var candidate : candidates) {
+            if(isCancelled())
+                break;
+            if(clean(candidate))
+                report.segmentsCleaned++;
+        }
+
+        report.blocksMoved = bytesMoved / blockManager.getBlockSize();
+        report.cancelled = isCancelled();
+
+        return report;
+    }
+
+    /**
+     * @return number of occupied blocks in the segment, or -1 if one of them can't be moved.
+     */
+    private int countMovable(BlockRelocator relocator, int start) {
+        var live = 0;
+        for(int block = start; block < start + log.getSegmentBlocks(); block++) {
+            if(!blockManager.isOccupied(block))
+                continue;
+            if(!relocator.isOwned(block) || relocator.getRunLength(block) != 1
+                    || blockManager.isPinned(block) || blockManager.isShared(block))
+                return -1;
+            live++;
+        }
+
+        return live;
+    }
+
+    /**
+     * Moves the live blocks of the segment into the log.
+     * @return false if the segment wasn't emptied.
+     */
+    private boolean clean(Candidate candidate) throws IOException, InterruptedException {
+        var chunkBytes = 0L;
+        exclusiveLock.lock();
+        try {
+            var relocator = new BlockRelocator(channel, blockManager, serializer, tree);
+            var segmentBlocks = log.getSegmentBlocks();
+            var live = countMovable(relocator, candidate.start);
+            if(live <= 0 || live > segmentBlocks / 2)
+                return false;
+
+            // The log must not hand out free blocks of the segment itself, they are held until the segment is empty
+            var held = new ArrayList<Integer>();
+            for(int block = candidate.start; block < candidate.start + segmentBlocks; block++) {
+                if(!blockManager.isOccupied(block) && blockManager.occupyBlock(block))
+                    held.add(block);
+            }
+            try {
+                var destinations = log.allocate(live);
+                if(destinations.isEmpty())
+                    return false;
+
+                var next = 0;
+                for(int block = candidate.start; block < candidate.start + segmentBlocks; block++) {
+                    if(!relocator.isOwned(block))
+                        continue;
+                    relocator.move(block, destinations.get().get(next++));
+                    chunkBytes += blockManager.getBlockSize();
+                }
+                relocator.commit();
+            } finally {
+                held.forEach(blockManager::freeBlock);
+            }
+        } finally {
+            exclusiveLock.unlock();
+        }
+
+        throttle(chunkBytes);
+        return true;
+    }
+
+    /**
+     * Waits until the bytes moved so far fit into the rate or the run is cancelled.
+     */
+    private void throttle(long chunkBytes) throws InterruptedException {
+        bytesMoved += chunkBytes;
+
+        var dueNanos = (long) (bytesMoved * 1e9 / maxBytesPerSecond);
+        var aheadNanos = dueNanos - (System.nanoTime() - startNanos);
+        if(aheadNanos > 0)
+            cancelled.await(aheadNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,176 @@
+package ofs.blockimpl;
+
+import ofs.controller.OFSController;
+import ofs.tree.OFSTree;
+import ofs.tree.OFSTreeNode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only point-in-time view of a BlockFileController. The tree consists of frozen copies of file heads,
+ * and the snapshot holds an epoch in the BlockManager, which pins all blocks allocated before it, so the live
+ * file system copies them before changing and postpones freeing them until the snapshot is closed. Readers of
+ * a snapshot never wait for writers.
+ */
+public class BlockSnapshotController implements OFSController {
+    private final OFSTree<BlockFileHead> fileTree;
+    private final BlockFileSerializer fileSerializer;
+    private final BlockManager blockManager;
+    private final long epoch;
+    private volatile boolean isOpen = true;
+
+    BlockSnapshotController(@NotNull OFSTree<BlockFileHead> fileTree, @NotNull BlockFileSerializer fileSerializer,
+                            @NotNull BlockManager blockManager, long epoch) {
+        this.fileTree = fileTree;
+        this.fileSerializer = fileSerializer;
+        this.blockManager = blockManager;
+        this.epoch = epoch;
+    }
+
+    private OFSTreeNode<BlockFileHead> getExistingNode(@NotNull Path path) throws IOException {
+        ensureIsOpen();
+
+        var node = fileTree.getNode(path);
+        if(node == null)
+            throw new NoSuchFileException(path.toString());
+
+        return node;
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        return newFileChannel(path, options, attrs);
+    }
+
+    @Override
+    public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+        for(var option : options) {
+            if(option != StandardOpenOption.READ)
+                throw new ReadOnlyFileSystemException();
+        }
+
+        var node = getExistingNode(path);
+        if(node.isDirectory()) {
+            throw new IllegalArgumentException("Can't create byte channel from directory");
+        }
+
+        return new BlockFileByteChannel(node.getFile(), fileSerializer, null);
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        var dirNode = getExistingNode(dir);
+        if(!dirNode.isDirectory()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+
+        return new BlockDirectoryStream(dir, dirNode, filter);
+    }
+
+    @Override
+    public boolean exists(Path path) throws IOException {
+        ensureIsOpen();
+
+        return fileTree.exists(path);
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        if(!isOpen())
+            return null;
+
+        if (type == null)
+            throw new NullPointerException();
+
+        var node = fileTree.getNode(path);
+        if (type == BasicFileAttributeView.class && node != null)
+            return (V) new BlockFileAttributeView(node.getFile());
+
+        return null;
+    }
+
+    @Override
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        if (type == null)
+            throw new NullPointerException();
+
+        var node = getExistingNode(path);
+        if (type == BasicFileAttributes.class)
+            return (A) new BlockFileAttributes(node.getFile());
+
+        return null;
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        return new BlockFileAttributes(getExistingNode(path).getFile()).toMap();
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public OFSController snapshot() throws IOException {
+        ensureIsOpen();
+
+        // Frozen heads never change, so the new snapshot can share them and the epoch
+        blockManager.retainSnapshot(epoch);
+        return new BlockSnapshotController(fileTree, fileSerializer, blockManager, epoch);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return isOpen && fileSerializer.isOpen();
+    }
+
+    @Override
+    public synchronized void close() {
+        if(!isOpen)
+            return;
+
+        isOpen = false;
+        blockManager.endSnapshot(epoch);
+    }
+
+    private void ensureIsOpen() throws IOException {
+        if(!isOpen())
+            throw new ClosedFileSystemException();
+    }
+}
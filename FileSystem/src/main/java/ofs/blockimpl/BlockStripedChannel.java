@@ -0,0 +1,339 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Base file made of several member files, usually on different disks, striped like RAID-0: the container is cut
+ * into stripes of stripeBytes, stripe s is stored in member s % members at offset s / members * stripeBytes.
+ * Everything above sees a single FileChannel, so the layout of the container doesn't change.
+ *
+ * A read or write spanning stripes of several members is split into one task per member, all members are accessed
+ * in parallel. Within a member its stripes of one request are adjacent, so every member still sees sequential I/O.
+ * Parts of members that were never written read as zeros, the container ends where its furthest member ends.
+ * Member order and stripe width must stay the same for the life of the container, the superblock records both.
+ */
+class BlockStripedChannel extends BlockPositionalChannel {
+    private final List<FileChannel> members;
+    private final int stripeBytes;
+    private final ExecutorService executor;
+
+    private static class Piece {
+        final int member;
+        final long memberPosition;
+        final int offset;
+        final int length;
+
+        Piece(int member, long memberPosition, int offset, int length) {
+            this.member = member;
+            this.memberPosition = memberPosition;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    @FunctionalInterface
+    private interface PieceIO {
+        /**
+         * @return number of bytes transferred, less than the piece if the member ends before it.
+         */
+        int apply(Piece piece) throws IOException;
+    }
+
+    private BlockStripedChannel(@NotNull List<FileChannel> members, int stripeBytes) {
+        this.members = members;
+        this.stripeBytes = stripeBytes;
+        this.executor = Executors.newFixedThreadPool(members.size(), r -> {
+            var thread = new Thread(r, "ofs-stripe-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the members with the given options. A single file is opened as it is, without striping.
+     */
+    static FileChannel open(@NotNull List<Path> files, int stripeBytes,
+                            @NotNull Set<? extends OpenOption> options) throws IOException {
+        return open(files, stripeBytes, options, false);
+    }
+
+    /**
+     * @param direct whether the members are opened for direct I/O, see BlockDirectChannel.
+     */
+    static FileChannel open(@NotNull List<Path> files, int stripeBytes,
+                            @NotNull Set<? extends OpenOption> options, boolean direct) throws IOException {
+        if(files.isEmpty())
+            throw new IllegalArgumentException("At least one base file is needed");
+        if(files.size() == 1)
+            return openMember(files.get(0), options, direct);
+
+        var members = new ArrayList<FileChannel>();
+        try {
+            for(var file : files) {
+                members.add(openMember(file, options, direct));
+            }
+        } catch (IOException e) {
+            for(var member : members) {
+                member.close();
+            }
+            throw e;
+        }
+
+        return new BlockStripedChannel(members, stripeBytes);
+    }
+
+    private static FileChannel openMember(Path file, Set<? extends OpenOption> options, boolean direct) throws IOException {
+        return direct ? BlockDirectChannel.open(file, options) : FileChannel.open(file, options);
+    }
+
+    int getMemberCount() {
+        return members.size();
+    }
+
+    int getStripeBytes() {
+        return stripeBytes;
+    }
+
+    private List<Piece> split(long position, int length) {
+        var pieces = new ArrayList<Piece>();
+        var end = position + length;
+        for(long p = position; p < end; ) {
+            var stripe = p / stripeBytes;
+            var inStripe = (int) (p % stripeBytes);
+            var pieceLength = (int) Math.min(stripeBytes - inStripe, end - p);
+            var member = (int) (stripe % members.size());
+            var memberPosition = stripe / members.size() * stripeBytes + inStripe;
+
+            pieces.add(new Piece(member, memberPosition, (int) (p - position), pieceLength));
+            p += pieceLength;
+        }
+
+        return pieces;
+    }
+
+    /**
+     * Applies io to all pieces, the pieces of every member in order and the members in parallel.
+     * @return bytes transferred per piece.
+     */
+    private int[] run(List<Piece> pieces, PieceIO io) throws IOException {
+        var transferred = new int[pieces.size()];
+        var byMember = new ArrayList<List<Integer>>();
+        for(int i = 0; i < members.size(); i++) {
+            byMember.add(new ArrayList<>());
+        }
+        for(int i = 0; i < pieces.size(); i++) {
+            byMember.get(pieces.get(i).member).add(i);
+        }
+
+        var tasks = new ArrayList<Future<?>>();
+        List<Integer> own = null;
+        for(var indexes : byMember) {
+            if(indexes.isEmpty())
+                continue;
+            if(own == null) {
+                own = indexes;
+                continue;
+            }
+            tasks.add(executor.submit(() -> {
+                for(var i : indexes) {
+                    transferred[i] = io.apply(pieces.get(i));
+                }
+                return null;
+            }));
+        }
+
+        // The caller takes one member itself, a request within a stripe needs no other thread
+        IOException failure = null;
+        try {
+            for(var i : own) {
+                transferred[i] = io.apply(pieces.get(i));
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        // Buffers of the request are used by the tasks until they end, so the wait isn't interruptible
+        var interrupted = false;
+        for(var task : tasks) {
+            while(true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if(failure == null)
+                        failure = e.getCause() instanceof IOException
+                                ? (IOException) e.getCause()
+                                : new IOException(e.getCause());
+                    break;
+                }
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        if(failure != null)
+            throw failure;
+
+        return transferred;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, Piece piece) {
+        var part = buffer.duplicate();
+        part.position(buffer.position() + piece.offset);
+        part.limit(buffer.position() + piece.offset + piece.length);
+        return part;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if(position < 0)
+            throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+        if(!dst.hasRemaining())
+            return 0;
+
+        var pieces = split(position, dst.remaining());
+        var transferred = run(pieces, piece -> {
+            var part = slice(dst, piece);
+            var channel = members.get(piece.member);
+            var done = 0;
+            while(done < piece.length) {
+                var read = channel.read(part, piece.memberPosition + done);
+                if(read < 0)
+                    break;
+                done += read;
+            }
+            return done;
+        });
+
+        var length = dst.remaining();
+        var shortPiece = false;
+        for(int i = 0; i < pieces.size(); i++) {
+            shortPiece |= transferred[i] < pieces.get(i).length;
+        }
+        if(shortPiece) {
+            var size = size();
+            if(position >= size)
+                return -1;
+            length = (int) Math.min(length, size - position);
+
+            // Other members go further, the missing part is a hole
+            for(int i = 0; i < pieces.size(); i++) {
+                var piece = pieces.get(i);
+                for(int j = piece.offset + transferred[i]; j < piece.offset + piece.length && j < length; j++) {
+                    dst.put(dst.position() + j, (byte) 0);
+                }
+            }
+        }
+
+        dst.position(dst.position() + length);
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        if(position < 0)
+            throw new IllegalArgumentException("Negative position");
+        ensureOpen();
+        if(!src.hasRemaining())
+            return 0;
+
+        var length = src.remaining();
+        run(split(position, length), piece -> {
+            var part = slice(src, piece);
+            var channel = members.get(piece.member);
+            var memberPosition = piece.memberPosition;
+            while(part.hasRemaining()) {
+                memberPosition += channel.write(part, memberPosition);
+            }
+            return piece.length;
+        });
+
+        src.position(src.position() + length);
+        return length;
+    }
+
+    /**
+     * End of the furthest member, translated to a position in the container.
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+
+        var size = 0L;
+        for(int i = 0; i < members.size(); i++) {
+            var memberSize = members.get(i).size();
+            if(memberSize == 0)
+                continue;
+
+            var lastStripe = (memberSize - 1) / stripeBytes;
+            var end = (lastStripe * members.size() + i) * stripeBytes + (memberSize - lastStripe * stripeBytes);
+            size = Math.max(size, end);
+        }
+
+        return size;
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        if(size < 0)
+            throw new IllegalArgumentException("Negative size");
+        ensureOpen();
+
+        var round = (long) stripeBytes * members.size();
+        for(int i = 0; i < members.size(); i++) {
+            var inLastRound = Math.max(0, Math.min(stripeBytes, size % round - (long) i * stripeBytes));
+            var memberSize = size / round * stripeBytes + inLastRound;
+            if(members.get(i).size() > memberSize)
+                members.get(i).truncate(memberSize);
+        }
+        truncatePosition(size);
+
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        ensureOpen();
+
+        var all = new ArrayList<Piece>();
+        for(int i = 0; i < members.size(); i++) {
+            all.add(new Piece(i, 0, 0, 0));
+        }
+        run(all, piece -> {
+            members.get(piece.member).force(metaData);
+            return 0;
+        });
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        executor.shutdown();
+
+        IOException failure = null;
+        for(var member : members) {
+            try {
+                member.close();
+            } catch (IOException e) {
+                if(failure == null)
+                    failure = e;
+            }
+        }
+        if(failure != null)
+            throw failure;
+    }
+}
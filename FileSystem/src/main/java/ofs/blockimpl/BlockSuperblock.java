@@ -0,0 +1,180 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * First block of a container, always at offset 0, so it can be read before the block size is known. It holds
+ * the block size and the large block size of the container and how it is striped over its base files. Every mount increments the epoch and marks the container dirty before anything
+ * is changed, a clean close writes a metadata checkpoint and marks the container clean again, pointing to it.
+ * The superblock is protected by its own checksum, a damaged one is read as a dirty superblock.
+ */
+class BlockSuperblock {
+    private static final int MAGIC = 0x4f465353; // OFSS
+    private static final int VERSION = 4;
+    // Version 3 had no striping, it is read as a container in a single base file
+    private static final int UNSTRIPED_VERSION = 3;
+    private static final int UNSTRIPED_CONTENT_SIZE = 4 + 4 + 4 + 4 + 8 + 1 + 4 + 4 + 8; // magic, version, block sizes, epoch, clean, checkpoint block, length, checksum
+    private static final int CONTENT_SIZE = UNSTRIPED_CONTENT_SIZE + 4 + 4; // stripe width, base file count
+    private static final int NO_CHECKPOINT = -1;
+
+    private int blockSize;
+    private int largeBlockSize;
+    private long epoch = 0;
+    private boolean clean = false;
+    private int checkpointBlock = NO_CHECKPOINT;
+    private int checkpointLength = 0;
+    private long checkpointChecksum = 0;
+    private int stripeBytes;
+    private int baseFileCount;
+
+    BlockSuperblock(int blockSize, int largeBlockSize, int stripeBytes, int baseFileCount) {
+        this.blockSize = blockSize;
+        this.largeBlockSize = largeBlockSize;
+        this.stripeBytes = stripeBytes;
+        this.baseFileCount = baseFileCount;
+    }
+
+    /**
+     * Reads the superblock. A damaged superblock is returned as a dirty one with unknown block size.
+     * @throws IOException if the superblock is intact, but its block sizes aren't supported.
+     */
+    static BlockSuperblock read(@NotNull FileChannel channel) throws IOException {
+        var result = new BlockSuperblock(0, 0, 0, 1);
+
+        var buffer = ByteBuffer.allocate(CONTENT_SIZE + 8);
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, buffer.position()) < 0)
+                return result;
+        }
+        buffer.flip();
+
+        var version = buffer.getInt(4);
+        var contentSize = version == UNSTRIPED_VERSION ? UNSTRIPED_CONTENT_SIZE : CONTENT_SIZE;
+        var content = buffer.duplicate();
+        content.limit(contentSize);
+        var crc = new CRC32();
+        crc.update(content);
+        if(buffer.getLong(contentSize) != crc.getValue())
+            return result;
+
+        if(buffer.getInt() != MAGIC || (version != VERSION && version != UNSTRIPED_VERSION))
+            return result;
+        buffer.getInt(); // Version
+
+        var blockSize = buffer.getInt();
+        var largeBlockSize = buffer.getInt();
+        try {
+            BlockFileConfig.checkBlockSize(blockSize);
+            BlockFileConfig.checkLargeBlockSize(blockSize, largeBlockSize);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Container has unsupported block sizes", e);
+        }
+
+        result.blockSize = blockSize;
+        result.largeBlockSize = largeBlockSize;
+        result.epoch = buffer.getLong();
+        result.clean = buffer.get() == 1;
+        result.checkpointBlock = buffer.getInt();
+        result.checkpointLength = buffer.getInt();
+        result.checkpointChecksum = buffer.getLong();
+        if(version != UNSTRIPED_VERSION) {
+            result.stripeBytes = buffer.getInt();
+            result.baseFileCount = buffer.getInt();
+        }
+
+        return result;
+    }
+
+    void write(@NotNull FileChannel channel) throws IOException {
+        var buffer = ByteBuffer.allocate(CONTENT_SIZE + 8);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(blockSize);
+        buffer.putInt(largeBlockSize);
+        buffer.putLong(epoch);
+        buffer.put((byte) (clean ? 1 : 0));
+        buffer.putInt(checkpointBlock);
+        buffer.putInt(checkpointLength);
+        buffer.putLong(checkpointChecksum);
+        buffer.putInt(stripeBytes);
+        buffer.putInt(baseFileCount);
+
+        var crc = new CRC32();
+        crc.update(buffer.array(), 0, CONTENT_SIZE);
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        while(buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+    }
+
+    /**
+     * Starts a new epoch. The checkpoint of the previous one is no longer valid.
+     */
+    void markDirty() {
+        epoch++;
+        clean = false;
+        checkpointBlock = NO_CHECKPOINT;
+        checkpointLength = 0;
+        checkpointChecksum = 0;
+    }
+
+    void markClean(int checkpointBlock, int checkpointLength, long checkpointChecksum) {
+        this.clean = true;
+        this.checkpointBlock = checkpointBlock;
+        this.checkpointLength = checkpointLength;
+        this.checkpointChecksum = checkpointChecksum;
+    }
+
+    /**
+     * Whether the superblock was read intact, so its block size is known.
+     */
+    boolean isValid() {
+        return blockSize != 0;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getLargeBlockSize() {
+        return largeBlockSize;
+    }
+
+    /**
+     * Width of a stripe in bytes, meaningful only if there are several base files.
+     */
+    int getStripeBytes() {
+        return stripeBytes;
+    }
+
+    int getBaseFileCount() {
+        return baseFileCount;
+    }
+
+    long getEpoch() {
+        return epoch;
+    }
+
+    boolean hasCheckpoint() {
+        return clean && checkpointBlock != NO_CHECKPOINT;
+    }
+
+    int getCheckpointBlock() {
+        return checkpointBlock;
+    }
+
+    int getCheckpointLength() {
+        return checkpointLength;
+    }
+
+    long getCheckpointChecksum() {
+        return checkpointChecksum;
+    }
+}
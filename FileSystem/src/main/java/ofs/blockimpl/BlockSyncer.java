@@ -0,0 +1,139 @@
+package ofs.blockimpl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forces the base file according to the durability setting. Concurrent sync requests are coalesced: a request
+ * is satisfied by any force that started after it was made, so a group of waiting threads needs a single force.
+ */
+public class BlockSyncer {
+    private final FileChannel channel;
+    private final BlockFileConfig.Durability durability;
+    private final ScheduledExecutorService periodicSync;
+
+    private long requested = 0;
+    private long completed = 0;
+    private boolean syncing = false;
+    private volatile boolean dirty = false;
+
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+
+    public BlockSyncer(@NotNull FileChannel channel, @NotNull BlockFileConfig config) {
+        this.channel = channel;
+        this.durability = config.getDurability();
+
+        if(durability == BlockFileConfig.Durability.PERIODIC) {
+            var interval = config.getSyncInterval().toNanos();
+            this.periodicSync = Executors.newSingleThreadScheduledExecutor(r -> {
+                var thread = new Thread(r, "ofs-periodic-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            periodicSync.scheduleWithFixedDelay(this::syncIfDirty, interval, interval, TimeUnit.NANOSECONDS);
+        } else {
+            this.periodicSync = null;
+        }
+    }
+
+    public BlockFileConfig.Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Number of forces made so far.
+     */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+
+    /**
+     * Total time spent in forces so far.
+     */
+    public long getSyncNanos() {
+        return syncNanos.get();
+    }
+
+    /**
+     * Forces everything written before the call.
+     */
+    public void sync() throws IOException {
+        long ticket;
+        synchronized (this) {
+            ticket = ++requested;
+            while(syncing && completed < ticket) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for sync", e);
+                }
+            }
+
+            if(completed >= ticket)
+                return;
+
+            syncing = true;
+            ticket = requested;
+        }
+
+        try {
+            dirty = false;
+            var start = System.nanoTime();
+            channel.force(false);
+            syncNanos.addAndGet(System.nanoTime() - start);
+            syncCount.incrementAndGet();
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                completed = Math.max(completed, ticket);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Called after something was changed in the base file.
+     */
+    public void changed() throws IOException {
+        dirty = true;
+        if(durability == BlockFileConfig.Durability.PER_OPERATION)
+            sync();
+    }
+
+    /**
+     * Called when everything written before must reach the disk before anything written after, e.g. before
+     * the journal is emptied. Does nothing when durability is NONE.
+     */
+    public void barrier() throws IOException {
+        if(durability != BlockFileConfig.Durability.NONE)
+            sync();
+    }
+
+    private void syncIfDirty() {
+        if(!dirty || !channel.isOpen())
+            return;
+
+        try {
+            sync();
+        } catch (IOException ignored) {
+            // Will be retried at the next period
+            dirty = true;
+        }
+    }
+
+    public void close() throws IOException {
+        if(periodicSync != null)
+            periodicSync.shutdownNow();
+
+        if(durability != BlockFileConfig.Durability.NONE && channel.isOpen())
+            sync();
+    }
+}
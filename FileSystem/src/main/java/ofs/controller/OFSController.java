@@ -1,6 +1,7 @@
 package ofs.controller;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -12,10 +13,20 @@ import java.util.Set;
 public interface OFSController {
     boolean isOpen();
 
+    boolean isReadOnly();
+
+    /**
+     * Creates a read-only view of the file system as it is at the moment. Later changes aren't visible in it.
+     * The view must be closed to release the space held by it.
+     */
+    OFSController snapshot() throws IOException;
+
     void close() throws IOException;
 
     SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException;
 
+    FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException;
+
     DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException;
 
     boolean exists(Path path) throws IOException;
@@ -6,6 +6,10 @@ import org.jetbrains.annotations.NotNull;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Path;
 
+/**
+ * Lookups never lock: children of every node are kept in copy-on-write lists, so a traversal always sees
+ * a consistent list of each directory. Callers are expected to serialize mutations of a directory themselves.
+ */
 public class OFSTree <H extends OFSFileHead> {
     private final OFSTreeNode<H> root;
 
@@ -111,7 +115,7 @@ public class OFSTree <H extends OFSFileHead> {
                 if(child.isDirectory() && child.getAllChildren().size() > 0)
                     throw new DirectoryNotEmptyException(path.toString());
 
-                parent.getAllChildren().remove(child);
+                parent.removeChild(child);
                 return child.getFile();
             }
         }
@@ -3,17 +3,17 @@ package ofs.tree;
 import ofs.controller.OFSFileHead;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 
 public class OFSTreeNode <H extends OFSFileHead> {
     private final H file;
-    private final ArrayList<OFSTreeNode<H>> children;
+    private final CopyOnWriteArrayList<OFSTreeNode<H>> children;
 
     public OFSTreeNode(@NotNull H file) {
         this.file = file;
-        this.children = file.isDirectory() ? new ArrayList<>() : null;
+        this.children = file.isDirectory() ? new CopyOnWriteArrayList<>() : null;
     }
 
     public boolean isDirectory() {
@@ -40,7 +40,7 @@ public class OFSTreeNode <H extends OFSFileHead> {
         return children.stream().filter(OFSTreeNode::isDirectory).collect(Collectors.toList());
     }
 
-    public boolean addChild(@NotNull OFSTreeNode<H> newChild) {
+    public synchronized boolean addChild(@NotNull OFSTreeNode<H> newChild) {
         if(children == null)
             throw new IllegalArgumentException("Can't add children to a plain file");
 
@@ -53,4 +53,11 @@ public class OFSTreeNode <H extends OFSFileHead> {
         children.add(newChild);
         return true;
     }
+
+    public synchronized boolean removeChild(@NotNull OFSTreeNode<H> child) {
+        if(children == null)
+            throw new IllegalArgumentException("Can't remove children of a plain file");
+
+        return children.remove(child);
+    }
 }
@@ -0,0 +1,179 @@
+package ofs;
+
+import ofs.blockimpl.BlockFileChecker;
+import ofs.blockimpl.BlockFileController;
+import ofs.blockimpl.BlockFileHead;
+import ofs.blockimpl.BlockFileSerializer;
+import ofs.blockimpl.BlockManager;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+public class BlockFileCheckerTest {
+    private static Path createContainer() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var controller = new BlockFileController(base, false);
+        controller.createDirectory(Path.of("dir"));
+        writeFile(controller, Path.of("a"), (byte) 1);
+        writeFile(controller, Path.of("b"), (byte) 2);
+        writeFile(controller, Path.of("dir", "c"), (byte) 3);
+        controller.close();
+
+        return base;
+    }
+
+    private static void writeFile(BlockFileController controller, Path path, byte value) throws IOException {
+        try(var bc = controller.newByteChannel(path, Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            var content = ByteBuffer.allocate(10000);
+            while(content.hasRemaining())
+                content.put(value);
+            content.flip();
+            bc.write(content);
+        }
+    }
+
+    private static byte readFirstByte(BlockFileController controller, Path path) throws IOException {
+        try(var bc = controller.newByteChannel(path, Set.of(StandardOpenOption.READ))) {
+            var content = ByteBuffer.allocate(1);
+            bc.read(content);
+            return content.get(0);
+        }
+    }
+
+    /**
+     * Changes a head of a root child on disk, bypassing the controller.
+     */
+    private static void corruptHead(Path base, String name, HeadChange change) throws IOException {
+        try(var channel = FileChannel.open(base, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var serializer = new BlockFileSerializer(channel, new BlockManager(4096, 1024 * 1024 * 1024));
+            var root = serializer.deserializeFileHead(1);
+
+            var list = ByteBuffer.allocate((int) root.getByteCount());
+            serializer.readAt(list, root, 0);
+            list.flip();
+
+            var heads = new HashMap<String, BlockFileHead>();
+            var count = list.getInt();
+            for(int i = 0; i < count; i++) {
+                var head = serializer.deserializeFileHead(list.getInt());
+                heads.put(head.getName(), head);
+            }
+
+            var head = heads.get(name);
+            change.apply(head, heads);
+            serializer.serializeFileHead(head);
+        }
+    }
+
+    private interface HeadChange {
+        void apply(BlockFileHead head, Map<String, BlockFileHead> siblings);
+    }
+
+    @Test
+    public void findsNothingInConsistentContainer() throws IOException {
+        var report = BlockFileChecker.check(createContainer(), false, 4);
+
+        Assert.assertTrue(report.toString(), report.isClean());
+        Assert.assertEquals(5, report.getHeadCount());
+    }
+
+    @Test
+    public void findsAndRepairsDoubleAllocatedBlocks() throws IOException {
+        var base = createContainer();
+        var shared = new int[1];
+        corruptHead(base, "b", (head, siblings) -> {
+            shared[0] = siblings.get("a").getBlocks().get(0);
+            head.getBlocks().set(0, shared[0]);
+        });
+
+        var report = BlockFileChecker.check(base, false, 4);
+        Assert.assertEquals(Set.of(shared[0]), report.getDoubleAllocated());
+
+        Assert.assertTrue(BlockFileChecker.check(base, true, 4).isRepaired());
+        Assert.assertTrue(BlockFileChecker.check(base, false, 4).isClean());
+
+        var controller = new BlockFileController(base, true);
+        writeFile(controller, Path.of("a"), (byte) 7);
+        Assert.assertEquals(7, readFirstByte(controller, Path.of("a")));
+        // b got a copy of the block of a, which doesn't match the checksum of the content of b
+        Assert.assertThrows(IOException.class, () -> readFirstByte(controller, Path.of("b")));
+    }
+
+    @Test
+    public void findsAndRepairsDanglingBlocks() throws IOException {
+        var base = createContainer();
+        corruptHead(base, "b", (head, siblings) -> head.getBlocks().set(1, Integer.MAX_VALUE));
+
+        var report = BlockFileChecker.check(base, false, 4);
+        Assert.assertEquals(Set.of(Integer.MAX_VALUE), report.getDangling());
+
+        BlockFileChecker.check(base, true, 4);
+        Assert.assertTrue(BlockFileChecker.check(base, false, 4).isClean());
+
+        var controller = new BlockFileController(base, true);
+        Assert.assertEquals(4096, controller.readAttributes(Path.of("b"), BasicFileAttributes.class).size());
+        Assert.assertEquals(2, readFirstByte(controller, Path.of("b")));
+    }
+
+    @Test
+    public void findsLeakedBlocksAgainstCheckpointAndFreesThemOnNextMount() throws IOException {
+        var base = createContainer();
+        var leaked = new int[1];
+        corruptHead(base, "a", (head, siblings) -> {
+            leaked[0] = head.getBlocks().get(1);
+            head.getBlocks().set(1, BlockFileHead.HOLE);
+        });
+
+        var report = BlockFileChecker.check(base, true, 4);
+        Assert.assertEquals(Set.of(leaked[0]), report.getLeaked());
+        Assert.assertTrue(report.isRepaired());
+
+        var controller = new BlockFileController(base, true);
+        Assert.assertTrue(controller.fsck(false).isClean());
+        controller.close();
+        Assert.assertTrue(BlockFileChecker.check(base, false, 4).isClean());
+    }
+
+    @Test
+    public void checksJournaledChangesWithoutWritingThem() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var crashed = new BlockFileController(base, false);
+        writeFile(crashed, Path.of("a"), (byte) 1);
+        var sizeBefore = Files.size(base);
+        // crashed is never closed, the head of a exists only in the journal
+
+        var report = BlockFileChecker.check(base, false, 4);
+        Assert.assertTrue(report.toString(), report.isClean());
+        Assert.assertEquals(2, report.getHeadCount());
+        Assert.assertEquals(sizeBefore, Files.size(base));
+    }
+
+    @Test
+    public void findsAndFreesLeakedBlocksOfMountedContainer() throws IOException {
+        var base = createContainer();
+        var leaked = new int[1];
+        // The checkpointed bitmap still has the block, but no head refers to it
+        corruptHead(base, "b", (head, siblings) -> {
+            leaked[0] = head.getBlocks().get(2);
+            head.getBlocks().set(2, BlockFileHead.HOLE);
+        });
+        Assert.assertEquals(Set.of(leaked[0]), BlockFileChecker.check(base, false, 4).getLeaked());
+
+        var controller = new BlockFileController(base, true);
+        var report = controller.fsck(true);
+        Assert.assertEquals(Set.of(leaked[0]), report.getLeaked());
+        Assert.assertTrue(report.isRepaired());
+
+        Assert.assertTrue(controller.fsck(false).isClean());
+    }
+}
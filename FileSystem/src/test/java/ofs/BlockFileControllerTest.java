@@ -1,6 +1,10 @@
 package ofs;
 
+import ofs.blockimpl.BlockCompressionOption;
+import ofs.blockimpl.BlockFileChecker;
+import ofs.blockimpl.BlockFileConfig;
 import ofs.blockimpl.BlockFileController;
+import ofs.blockimpl.BlockPreallocateOption;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -8,10 +12,22 @@ import org.junit.Test;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class BlockFileControllerTest {
     private BlockFileController controller;
@@ -125,6 +141,8 @@ public class BlockFileControllerTest {
     public void doesNotWriteTooLargeFiles() throws IOException {
         byte magicNumber = 7;
         var file = Path.of("file");
+        var config = new BlockFileConfig().setMaxSize(16 * 1024 * 1024).setGrowthChunk(4 * 1024 * 1024);
+        var controller = new BlockFileController(Files.createTempFile("test", "test"), false, config);
         var bc = controller.newByteChannel(file, Set.of(StandardOpenOption.CREATE));
 
         var megabyte = 1024 * 1024;
@@ -134,13 +152,702 @@ public class BlockFileControllerTest {
             buffer.put(magicNumber);
         }
 
-        for(int i = 0; i < 2048; i++) {
+        for(int i = 0; i < 32; i++) {
             buffer.flip();
             bc.write(buffer);
         }
         bc.close();
     }
 
+    @Test
+    public void keepsPositionsPastTwoGigabytes() throws IOException {
+        var fiveGigabytes = 5L * 1024 * 1024 * 1024;
+        try(var bc = controller.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE))) {
+            bc.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+
+            bc.position(fiveGigabytes);
+            Assert.assertEquals(fiveGigabytes, bc.position());
+            Assert.assertEquals(-1, bc.read(ByteBuffer.allocate(1)));
+            Assert.assertEquals(3, bc.size());
+        }
+    }
+
+    @Test
+    public void growsContainerInChunks() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var config = new BlockFileConfig().setGrowthChunk(2 * 1024 * 1024);
+        var small = new BlockFileController(base, false, config);
+
+        var megabyte = ByteBuffer.allocate(1024 * 1024);
+        try(var bc = small.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE))) {
+            for(int i = 0; i < 8; i++) {
+                megabyte.clear();
+                bc.write(megabyte);
+            }
+        }
+        small.close();
+
+        var remounted = new BlockFileController(base, true, config);
+        Assert.assertEquals(8 * 1024 * 1024, remounted.readAttributes(Path.of("file"), BasicFileAttributes.class).size());
+        Assert.assertTrue(remounted.fsck(false).isClean());
+    }
+
+    @Test
+    public void keepsBlockSizeOfContainer() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var large = new BlockFileController(base, false, new BlockFileConfig().setBlockSize(64 * 1024));
+        writeSomething(large, "file");
+        large.close();
+
+        var remounted = new BlockFileController(base, true);
+        Assert.assertEquals(64 * 1024, remounted.getBlockSize());
+        Assert.assertTrue(remounted.exists(Path.of("file")));
+        Assert.assertTrue(remounted.fsck(false).isClean());
+        remounted.close();
+
+        Assert.assertThrows(IllegalArgumentException.class,
+                () -> new BlockFileController(base, true, new BlockFileConfig().setBlockSize(4096)));
+    }
+
+    @Test
+    public void keepsLargeFilesAcrossRemount() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var config = new BlockFileConfig().setLargeBlockSize(64 * 1024).setLargeFileThreshold(128 * 1024);
+        var controller = new BlockFileController(base, false, config);
+
+        var content = new byte[1024 * 1024 + 123];
+        new Random(7).nextBytes(content);
+        try(var bc = controller.newByteChannel(Path.of("large"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(content));
+        }
+        writeSomething(controller, "small");
+        Assert.assertTrue(controller.fsck(false).isClean());
+        controller.close();
+
+        for(var fromCheckpoint : List.of(true, false)) {
+            var remounted = new BlockFileController(base, true);
+            Assert.assertEquals(fromCheckpoint, remounted.isMountedFromCheckpoint());
+
+            var read = ByteBuffer.allocate(content.length);
+            try(var bc = remounted.newByteChannel(Path.of("large"), Set.of(StandardOpenOption.READ))) {
+                while(read.hasRemaining() && bc.read(read) >= 0);
+            }
+            Assert.assertEquals(ByteBuffer.wrap(content), read.flip());
+            Assert.assertTrue(remounted.fsck(false).isClean());
+            // Not closed, so the next mount has no checkpoint and reads the heads
+        }
+    }
+
+    @Test
+    public void allocatesOnlyWrittenPartsOfSparseFiles() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var sparse = new BlockFileController(base, false);
+
+        var position = 500L * 1024 * 1024;
+        try(var bc = sparse.newByteChannel(Path.of("sparse"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.position(position);
+            bc.write(ByteBuffer.wrap(new byte[] {42}));
+        }
+        Assert.assertTrue(Files.size(base) < 16 * 1024 * 1024);
+        sparse.close();
+
+        var remounted = new BlockFileController(base, true);
+        Assert.assertEquals(position + 1, remounted.readAttributes(Path.of("sparse"), BasicFileAttributes.class).size());
+        try(var bc = remounted.newByteChannel(Path.of("sparse"), Set.of(StandardOpenOption.READ))) {
+            var read = ByteBuffer.allocate(2);
+            bc.position(position - 1);
+            bc.read(read);
+            Assert.assertEquals(ByteBuffer.wrap(new byte[] {0, 42}), read.flip());
+        }
+        Assert.assertTrue(remounted.fsck(false).isClean());
+    }
+
+    @Test
+    public void preallocatesWithOpenOption() throws IOException {
+        // Leaves garbage in blocks, that may be preallocated later
+        var garbage = new byte[64 * 1024];
+        Arrays.fill(garbage, (byte) 1);
+        try(var bc = controller.newByteChannel(Path.of("garbage"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(garbage));
+        }
+        controller.delete(Path.of("garbage"));
+
+        var path = Path.of("segment");
+        var options = Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE, BlockPreallocateOption.bytes(1024 * 1024));
+        try(var bc = controller.newByteChannel(path, options)) {
+            Assert.assertEquals(0, bc.size());
+            bc.position(5000);
+            bc.write(ByteBuffer.wrap(new byte[] {42}));
+        }
+
+        try(var bc = controller.newByteChannel(path, Set.of(StandardOpenOption.READ))) {
+            var read = ByteBuffer.allocate(5001);
+            while(read.hasRemaining() && bc.read(read) >= 0);
+            var expected = new byte[5001];
+            expected[5000] = 42;
+            Assert.assertEquals(ByteBuffer.wrap(expected), read.flip());
+        }
+        Assert.assertTrue(controller.fsck(false).isClean());
+    }
+
+    @Test
+    public void shrinksContainerAfterDeletes() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+        container.createDirectory(Path.of("dir"));
+
+        var content = new byte[100 * 1024];
+        new Random(3).nextBytes(content);
+        for(int i = 0; i < 20; i++) {
+            var path = i % 2 == 0 ? Path.of("file" + i) : Path.of("dir", "file" + i);
+            try(var bc = container.newByteChannel(path, Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+                bc.write(ByteBuffer.wrap(content));
+            }
+        }
+        for(int i = 0; i < 16; i++) {
+            container.delete(i % 2 == 0 ? Path.of("file" + i) : Path.of("dir", "file" + i));
+        }
+
+        var sizeBefore = Files.size(base);
+        var reclaimed = container.shrink();
+        Assert.assertTrue(reclaimed > 1024 * 1024);
+        Assert.assertEquals(sizeBefore - reclaimed, Files.size(base));
+        Assert.assertTrue(container.fsck(false).isClean());
+
+        writeSomething(container, "new");
+        container.close();
+
+        var remounted = new BlockFileController(base, true);
+        for(var path : List.of(Path.of("file16"), Path.of("dir", "file17"), Path.of("file18"), Path.of("dir", "file19"))) {
+            var read = ByteBuffer.allocate(content.length);
+            try(var bc = remounted.newByteChannel(path, Set.of(StandardOpenOption.READ))) {
+                while(read.hasRemaining() && bc.read(read) >= 0);
+            }
+            Assert.assertEquals(ByteBuffer.wrap(content), read.flip());
+        }
+        Assert.assertTrue(remounted.exists(Path.of("new")));
+        Assert.assertTrue(remounted.fsck(false).isClean());
+    }
+
+    @Test
+    public void defragmentsInterleavedFiles() throws Exception {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+
+        var random = new Random(4);
+        var contents = List.of(new byte[40 * 4096], new byte[40 * 4096]);
+        var paths = List.of(Path.of("a"), Path.of("b"));
+        try(var a = container.newByteChannel(paths.get(0), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+            var b = container.newByteChannel(paths.get(1), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            random.nextBytes(contents.get(0));
+            random.nextBytes(contents.get(1));
+            for(int i = 0; i < 40; i++) {
+                a.write(ByteBuffer.wrap(contents.get(0), i * 4096, 4096));
+                b.write(ByteBuffer.wrap(contents.get(1), i * 4096, 4096));
+            }
+        }
+
+        var report = container.defragment(Long.MAX_VALUE).get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(report.toString(), report.getScoreBefore() > 0.5);
+        Assert.assertEquals(report.toString(), 0, report.getScoreAfter(), 0);
+        Assert.assertEquals(2, report.getFilesDefragmented());
+        Assert.assertTrue(container.fsck(false).isClean());
+        container.close();
+
+        var remounted = new BlockFileController(base, true);
+        for(int i = 0; i < 2; i++) {
+            var read = ByteBuffer.allocate(contents.get(i).length);
+            try(var bc = remounted.newByteChannel(paths.get(i), Set.of(StandardOpenOption.READ))) {
+                while(read.hasRemaining() && bc.read(read) >= 0);
+            }
+            Assert.assertEquals(ByteBuffer.wrap(contents.get(i)), read.flip());
+        }
+        Assert.assertTrue(remounted.fsck(false).isClean());
+    }
+
+    @Test
+    public void stopsDefragmentationOnClose() throws Exception {
+        var container = new BlockFileController(Files.createTempFile("test", "test"), false);
+        try(var a = container.newByteChannel(Path.of("a"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+            var b = container.newByteChannel(Path.of("b"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            for(int i = 0; i < 200; i++) {
+                a.write(ByteBuffer.allocate(4096));
+                b.write(ByteBuffer.allocate(4096));
+            }
+        }
+
+        // 64 blocks per second, the run would take several seconds
+        var report = container.defragment(64 * 4096);
+        container.close();
+        Assert.assertTrue(report.get(1, TimeUnit.SECONDS).isCancelled());
+    }
+
+    @Test
+    public void copiesBySharingBlocks() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+
+        var content = new byte[256 * 1024];
+        new Random(5).nextBytes(content);
+        try(var bc = container.newByteChannel(Path.of("source"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(content));
+        }
+        var sizeBefore = Files.size(base);
+        container.copy(Path.of("source"), Path.of("copy"));
+        Assert.assertTrue(Files.size(base) - sizeBefore < content.length);
+
+        try(var bc = container.newByteChannel(Path.of("copy"), Set.of(StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        }
+        var changed = content.clone();
+        changed[0] = 1; changed[1] = 2; changed[2] = 3;
+        Assert.assertTrue(container.fsck(false).isClean());
+        container.close();
+
+        // Remounted from the checkpoint and then from the heads, shared blocks must keep their references
+        for(var checkpoint : List.of(true, false)) {
+            var remounted = new BlockFileController(base, true);
+            Assert.assertEquals(checkpoint, remounted.isMountedFromCheckpoint());
+            for(var path : List.of(Path.of("source"), Path.of("copy"))) {
+                var read = ByteBuffer.allocate(content.length);
+                try(var bc = remounted.newByteChannel(path, Set.of(StandardOpenOption.READ))) {
+                    while(read.hasRemaining() && bc.read(read) >= 0);
+                }
+                // The second time the source is a copy of the changed copy
+                var expected = path.equals(Path.of("source")) && checkpoint ? content : changed;
+                Assert.assertEquals(ByteBuffer.wrap(expected), read.flip());
+            }
+            Assert.assertTrue(remounted.fsck(false).isClean());
+
+            // Content of the source stays occupied by the copy
+            remounted.delete(Path.of("source"));
+            var read = ByteBuffer.allocate(content.length);
+            try(var bc = remounted.newByteChannel(Path.of("copy"), Set.of(StandardOpenOption.READ))) {
+                while(read.hasRemaining() && bc.read(read) >= 0);
+            }
+            Assert.assertEquals(ByteBuffer.wrap(changed), read.flip());
+            remounted.copy(Path.of("copy"), Path.of("source"));
+            // Leaves the journal with records, so the next mount reads the heads
+            if(!checkpoint)
+                remounted.close();
+        }
+    }
+
+    @Test
+    public void deduplicatesIdenticalBlocks() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var config = new BlockFileConfig().setDedupIndexEntries(1024);
+        var container = new BlockFileController(base, false, config);
+
+        var content = new byte[64 * 4096];
+        new Random(6).nextBytes(content);
+        for(var name : List.of("a", "b")) {
+            try(var bc = container.newByteChannel(Path.of(name), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+                bc.write(ByteBuffer.wrap(content));
+            }
+        }
+        var deduplicator = container.getDeduplicator();
+        Assert.assertEquals(64, deduplicator.getHitCount());
+        Assert.assertEquals(64, deduplicator.getMissCount());
+        Assert.assertEquals(content.length, deduplicator.getSavedBytes());
+
+        // Blocks stay shared after the index is dropped, a write to one file copies the written block
+        Assert.assertTrue(container.fsck(false).isClean());
+        try(var bc = container.newByteChannel(Path.of("b"), Set.of(StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        }
+        container.delete(Path.of("a"));
+        container.close();
+
+        var remounted = new BlockFileController(base, true, config);
+        var read = ByteBuffer.allocate(content.length);
+        try(var bc = remounted.newByteChannel(Path.of("b"), Set.of(StandardOpenOption.READ))) {
+            while(read.hasRemaining() && bc.read(read) >= 0);
+        }
+        content[0] = 1; content[1] = 2; content[2] = 3;
+        Assert.assertEquals(ByteBuffer.wrap(content), read.flip());
+        Assert.assertEquals(0, remounted.getDeduplicator().getIndexSize());
+    }
+
+    @Test
+    public void boundsDeduplicationIndex() throws IOException {
+        var config = new BlockFileConfig().setDedupIndexEntries(4);
+        var container = new BlockFileController(Files.createTempFile("test", "test"), false, config);
+
+        var content = new byte[16 * 4096];
+        new Random(7).nextBytes(content);
+        try(var bc = container.newByteChannel(Path.of("a"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(content));
+        }
+        Assert.assertEquals(4, container.getDeduplicator().getIndexSize());
+        Assert.assertEquals(16, container.getDeduplicator().getMissCount());
+        Assert.assertTrue(container.fsck(false).isClean());
+    }
+
+    @Test
+    public void compressesFilesOfCompressedDirectory() throws IOException {
+        var text = new StringBuilder();
+        for(int i = 0; text.length() < 1024 * 1024; i++) {
+            text.append("{\"line\": ").append(i).append(", \"level\": \"INFO\", \"message\": \"request served\"}\n");
+        }
+        var content = Arrays.copyOf(text.toString().getBytes(), 1024 * 1024);
+        var noise = new byte[100 * 1000];
+        new Random(8).nextBytes(noise);
+
+        var sizes = new ArrayList<Long>();
+        var base = Path.of("");
+        for(var compressed : List.of(false, true)) {
+            base = Files.createTempFile("test", "test");
+            var container = new BlockFileController(base, false);
+            if(compressed) {
+                container.createDirectory(Path.of("logs"), BlockCompressionOption.COMPRESS);
+            } else {
+                container.createDirectory(Path.of("logs"));
+            }
+            var sizeBefore = Files.size(base);
+            try(var bc = container.newByteChannel(Path.of("logs", "log"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+                for(int i = 0; i < content.length; i += 8192) {
+                    bc.write(ByteBuffer.wrap(content, i, 8192));
+                }
+            }
+            sizes.add(Files.size(base) - sizeBefore);
+            container.close();
+        }
+        // Both containers have the same overhead, the compressed file saves most of its megabyte
+        Assert.assertTrue(sizes.toString(), sizes.get(0) - sizes.get(1) > 900 * 1024);
+
+        var container = new BlockFileController(base, true);
+        // Overwrites the middle of a chunk and appends data that doesn't compress
+        try(var bc = container.newByteChannel(Path.of("logs", "log"), Set.of(StandardOpenOption.WRITE))) {
+            bc.position(100_000).write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            bc.position(content.length).write(ByteBuffer.wrap(noise));
+        }
+        System.arraycopy(new byte[] {1, 2, 3}, 0, content, 100_000, 3);
+        var expected = Arrays.copyOf(content, content.length + noise.length);
+        System.arraycopy(noise, 0, expected, content.length, noise.length);
+        Assert.assertTrue(container.fsck(false).isClean());
+
+        // Read from the journaled heads
+        var remounted = new BlockFileController(base, true);
+        var read = ByteBuffer.allocate(expected.length);
+        try(var bc = remounted.newByteChannel(Path.of("logs", "log"), Set.of(StandardOpenOption.READ))) {
+            while(read.hasRemaining() && bc.read(read) >= 0);
+
+            var piece = ByteBuffer.allocate(10);
+            bc.position(99_998).read(piece);
+            Assert.assertEquals(ByteBuffer.wrap(expected, 99_998, 10), piece.flip());
+        }
+        Assert.assertEquals(ByteBuffer.wrap(expected), read.flip());
+        Assert.assertTrue(remounted.fsck(false).isClean());
+
+        // New files of the directory are compressed, others aren't
+        writeSomething(remounted, "logs/new");
+        writeSomething(remounted, "plain");
+        remounted.close();
+        Assert.assertTrue(BlockFileChecker.check(base, false, 2).isClean());
+    }
+
+    @Test
+    public void findsDamagedBlocksByChecksums() throws Exception {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+        container.createDirectory(Path.of("dir"));
+
+        var random = new Random(9);
+        var content = new byte[16 * 4096];
+        for(var path : List.of(Path.of("intact"), Path.of("dir", "damaged"))) {
+            random.nextBytes(content);
+            try(var bc = container.newByteChannel(path, Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+                bc.write(ByteBuffer.wrap(content));
+                // A partial overwrite keeps the checksum of its block right
+                bc.position(5 * 4096 + 100).write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            }
+        }
+        container.close();
+
+        // Flips a bit in the fifth block of the damaged file, bypassing the container
+        var image = Files.readAllBytes(base);
+        var needle = Arrays.copyOfRange(content, 4 * 4096, 4 * 4096 + 64);
+        var found = -1;
+        for(int i = 0; i + needle.length <= image.length && found < 0; i += 4096) {
+            if(Arrays.equals(image, i, i + needle.length, needle, 0, needle.length))
+                found = i;
+        }
+        Assert.assertTrue(found > 0);
+        try(var channel = FileChannel.open(base, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) (image[found + 10] ^ 4)}), found + 10);
+        }
+
+        var remounted = new BlockFileController(base, true);
+        try(var bc = remounted.newByteChannel(Path.of("dir", "damaged"), Set.of(StandardOpenOption.READ))) {
+            Assert.assertEquals(4096, bc.read(ByteBuffer.allocate(4096)));
+            Assert.assertThrows(IOException.class, () -> bc.position(4 * 4096 + 4000).read(ByteBuffer.allocate(10)));
+            Assert.assertEquals(10, bc.position(5 * 4096 + 99).read(ByteBuffer.allocate(10)));
+        }
+
+        var report = remounted.scrub(Long.MAX_VALUE).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(report.toString(), 2, report.getFilesChecked());
+        Assert.assertEquals(32, report.getBlocksChecked());
+        Assert.assertEquals(1, report.getDamagedBlocks());
+        Assert.assertEquals(Set.of(Path.of("dir", "damaged")), report.getDamagedFiles());
+        remounted.close();
+
+        // Without verification the damaged content is returned as it is
+        var unverified = new BlockFileController(base, true, new BlockFileConfig().setVerifyChecksums(false));
+        try(var bc = unverified.newByteChannel(Path.of("dir", "damaged"), Set.of(StandardOpenOption.READ))) {
+            var read = ByteBuffer.allocate(1);
+            bc.position(4 * 4096 + 10).read(read);
+            Assert.assertEquals(content[4 * 4096 + 10] ^ 4, read.get(0));
+        }
+    }
+
+    @Test
+    public void stopsScrubbingOnClose() throws Exception {
+        var container = new BlockFileController(Files.createTempFile("test", "test"), false);
+        try(var bc = container.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.allocate(400 * 4096));
+        }
+
+        // 64 blocks per second, the run would take several seconds
+        var report = container.scrub(64 * 4096);
+        container.close();
+        Assert.assertTrue(report.get(1, TimeUnit.SECONDS).isCancelled());
+    }
+
+    @Test
+    public void writesLogStructured() throws Exception {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false, new BlockFileConfig().setLogStructured(true));
+
+        var random = new Random(11);
+        var content = new byte[96 * 4096];
+        var length = 64 * 4096;
+        random.nextBytes(content);
+        Arrays.fill(content, length, content.length, (byte) 0);
+        try(var bc = container.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(content, 0, length));
+            for(int i = 0; i < 300; i++) {
+                // Partial and whole blocks, some of them past the end
+                var position = random.nextInt(80 * 4096);
+                var part = new byte[1 + random.nextInt(3 * 4096)];
+                random.nextBytes(part);
+                bc.position(position).write(ByteBuffer.wrap(part));
+                System.arraycopy(part, 0, content, position, part.length);
+                length = Math.max(length, position + part.length);
+            }
+        }
+
+        var expected = ByteBuffer.wrap(content, 0, length);
+        Assert.assertTrue(container.fsck(false).isClean());
+        container.close();
+
+        // Mounted without the log, the content is read the usual way
+        var remounted = new BlockFileController(base, true);
+        var read = ByteBuffer.allocate(length + 1);
+        try(var bc = remounted.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.READ))) {
+            while(read.hasRemaining() && bc.read(read) >= 0);
+        }
+        Assert.assertEquals(expected, read.flip());
+        Assert.assertTrue(remounted.fsck(false).isClean());
+    }
+
+    @Test
+    public void cleansSparseSegments() throws Exception {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false, new BlockFileConfig().setLogStructured(true));
+
+        var random = new Random(12);
+        var content = new byte[512 * 4096];
+        random.nextBytes(content);
+        try(var bc = container.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(content));
+            // Rewritten blocks move to new segments, the first ones keep every fourth block
+            for(int i = 0; i < 512; i++) {
+                if(i % 4 != 0)
+                    bc.position(i * 4096L).write(ByteBuffer.wrap(content, i * 4096, 4096));
+            }
+        }
+
+        var report = container.cleanSegments(Long.MAX_VALUE).get(10, TimeUnit.SECONDS);
+        Assert.assertTrue(report.toString(), report.getSegmentsCleaned() >= 1);
+        Assert.assertTrue(report.toString(), report.getBlocksMoved() >= 64);
+        Assert.assertFalse(report.isCancelled());
+        Assert.assertTrue(container.fsck(false).isClean());
+        container.close();
+
+        var remounted = new BlockFileController(base, true);
+        var read = ByteBuffer.allocate(content.length);
+        try(var bc = remounted.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.READ))) {
+            while(read.hasRemaining() && bc.read(read) >= 0);
+        }
+        Assert.assertEquals(ByteBuffer.wrap(content), read.flip());
+        Assert.assertTrue(remounted.fsck(false).isClean());
+    }
+
+    @Test
+    public void stripesContainerOverSeveralBaseFiles() throws Exception {
+        var bases = List.of(
+                Files.createTempFile("test", "test"), Files.createTempFile("test", "test"), Files.createTempFile("test", "test")
+        );
+        var config = new BlockFileConfig().setStripeWidth(64 * 1024);
+        var container = new BlockFileController(bases, false, config);
+
+        var random = new Random(13);
+        var large = new byte[6 * 1024 * 1024];
+        var small = new byte[10000];
+        random.nextBytes(large);
+        random.nextBytes(small);
+        try(var bc = container.newByteChannel(Path.of("large"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(large));
+        }
+        try(var bc = container.newByteChannel(Path.of("small"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(small));
+        }
+        container.close();
+
+        // Every base file holds a third of the content
+        for(var base : bases) {
+            Assert.assertTrue(base + " is too small", Files.size(base) > 2 * 1024 * 1024);
+        }
+        Assert.assertTrue(BlockFileChecker.check(bases, false, 2).isClean());
+        Assert.assertThrows(IllegalArgumentException.class,
+                () -> new BlockFileController(bases.subList(0, 2), true, new BlockFileConfig()));
+
+        // The stripe width comes from the superblock
+        var remounted = new BlockFileController(bases, true, new BlockFileConfig());
+        Assert.assertTrue(remounted.isMountedFromCheckpoint());
+        for(var entry : Map.of("large", large, "small", small).entrySet()) {
+            var read = ByteBuffer.allocate(entry.getValue().length + 1);
+            try(var bc = remounted.newByteChannel(Path.of(entry.getKey()), Set.of(StandardOpenOption.READ))) {
+                while(read.hasRemaining() && bc.read(read) >= 0);
+            }
+            Assert.assertEquals(ByteBuffer.wrap(entry.getValue()), read.flip());
+        }
+        Assert.assertTrue(remounted.fsck(false).isClean());
+        remounted.close();
+    }
+
+    @Test
+    public void keepsHotBlocksInMemoryTier() throws Exception {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false, new BlockFileConfig().setMemoryTierSize(64 * 4096));
+        var tier = container.getMemoryTier().orElseThrow();
+
+        var random = new Random(14);
+        var hot = new byte[16 * 4096];
+        random.nextBytes(hot);
+        try(var bc = container.newByteChannel(Path.of("hot"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(hot));
+        }
+
+        // The tier outlives the channels reading the file
+        for(int round = 0; round < 5; round++) {
+            try(var bc = container.newByteChannel(Path.of("hot"), Set.of(StandardOpenOption.READ))) {
+                for(int i = 0; i < 16; i++) {
+                    var read = ByteBuffer.allocate(4096);
+                    bc.position(i * 4096L).read(read);
+                    Assert.assertEquals(ByteBuffer.wrap(hot, i * 4096, 4096), read.flip());
+                }
+            }
+        }
+        Assert.assertTrue(tier.toString(), tier.getPromotions() >= 16);
+        Assert.assertTrue(tier.toString(), tier.getMemoryHitRatio() > 0.5);
+        Assert.assertEquals(1, tier.getMemoryHitRatio() + tier.getDiskHitRatio(), 1e-9);
+
+        // Writes to resident blocks stay in memory until they are written back
+        random.nextBytes(hot);
+        try(var bc = container.newByteChannel(Path.of("hot"), Set.of(StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(hot));
+        }
+        Assert.assertTrue(container.fsck(false).isClean());
+        container.close();
+        Assert.assertTrue(tier.toString(), tier.getWriteBacks() >= 16);
+
+        var remounted = new BlockFileController(base, true);
+        var read = ByteBuffer.allocate(hot.length + 1);
+        try(var bc = remounted.newByteChannel(Path.of("hot"), Set.of(StandardOpenOption.READ))) {
+            while(read.hasRemaining() && bc.read(read) >= 0);
+        }
+        Assert.assertEquals(ByteBuffer.wrap(hot), read.flip());
+        Assert.assertTrue(remounted.getMemoryTier().isEmpty());
+        Assert.assertTrue(remounted.fsck(false).isClean());
+    }
+
+    @Test
+    public void readsPartiallyResidentRangesFromMemoryTierAndDisk() throws Exception {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false, new BlockFileConfig().setMemoryTierSize(64 * 4096));
+        var tier = container.getMemoryTier().orElseThrow();
+        var path = Path.of("half");
+
+        var random = new Random(16);
+        var content = new byte[16 * 4096];
+        random.nextBytes(content);
+        try(var bc = container.newByteChannel(path, Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(content));
+        }
+
+        // Every other block becomes resident and then dirty, so only the tier has its content
+        try(var bc = container.newByteChannel(path, Set.of(StandardOpenOption.READ, StandardOpenOption.WRITE))) {
+            for(int round = 0; round < 3; round++) {
+                for(int i = 0; i < 16; i += 2) {
+                    bc.position(i * 4096L).read(ByteBuffer.allocate(4096));
+                }
+            }
+            for(int i = 0; i < 16; i += 2) {
+                Arrays.fill(content, i * 4096, (i + 1) * 4096, (byte) i);
+                bc.position(i * 4096L).write(ByteBuffer.wrap(content, i * 4096, 4096));
+            }
+        }
+        Assert.assertEquals(8, tier.getResidentBlocks());
+
+        var memoryHits = tier.getMemoryHits();
+        var read = ByteBuffer.allocate(content.length + 1);
+        try(var bc = container.newByteChannel(path, Set.of(StandardOpenOption.READ))) {
+            while(read.hasRemaining() && bc.read(read) >= 0);
+        }
+        Assert.assertEquals(ByteBuffer.wrap(content), read.flip());
+        Assert.assertEquals(tier.toString(), memoryHits + 8, tier.getMemoryHits());
+
+        Assert.assertTrue(container.fsck(false).isClean());
+        container.close();
+    }
+
+    @Test
+    public void worksWithDirectIo() throws Exception {
+        var base = Files.createTempFile("test", "test");
+        var config = new BlockFileConfig().setDirectIo(true).setMemoryTierSize(32 * 4096);
+        var container = new BlockFileController(base, false, config);
+
+        var random = new Random(15);
+        var content = new byte[100000];
+        random.nextBytes(content);
+        try(var bc = container.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            // Writes of odd sizes at odd positions
+            for(int position = 0; position < content.length; position += 777) {
+                bc.position(position).write(ByteBuffer.wrap(content, position, Math.min(777, content.length - position)));
+            }
+        }
+        Assert.assertTrue(container.fsck(false).isClean());
+        container.close();
+
+        for(var remountConfig : List.of(new BlockFileConfig().setDirectIo(true), new BlockFileConfig())) {
+            var remounted = new BlockFileController(base, true, remountConfig);
+            var read = ByteBuffer.allocate(content.length + 1);
+            try(var bc = remounted.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.READ))) {
+                while(read.hasRemaining() && bc.read(read) >= 0);
+            }
+            Assert.assertEquals(ByteBuffer.wrap(content), read.flip());
+            Assert.assertTrue(remounted.fsck(false).isClean());
+            remounted.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesUnsupportedBlockSize() {
+        new BlockFileConfig().setBlockSize(3000);
+    }
+
     @Test
     public void deletesExistingFile() throws IOException {
         var path = Path.of("plain_file");
@@ -151,6 +858,27 @@ public class BlockFileControllerTest {
         Assert.assertFalse(controller.exists(path));
     }
 
+    @Test
+    public void freesHeadsOfDeletedFiles() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+        container.createDirectory(Path.of("dir"));
+        writeSomething(container, "dir/small");
+        try(var bc = container.newByteChannel(Path.of("large"), Set.of(StandardOpenOption.CREATE))) {
+            bc.write(ByteBuffer.allocate(3 * 1024 * 1024)); // Long enough to need several head blocks
+        }
+
+        container.delete(Path.of("large"));
+        container.delete(Path.of("dir", "small"));
+        container.delete(Path.of("dir"));
+        Assert.assertTrue(container.fsck(false).isClean());
+        container.close();
+
+        var remounted = new BlockFileController(base, true);
+        Assert.assertTrue(remounted.fsck(false).isClean());
+        remounted.close();
+    }
+
     @Test
     public void createsNewDirectory() throws IOException {
         var path = Path.of("dir");
@@ -266,6 +994,39 @@ public class BlockFileControllerTest {
         inputStream.close();
     }
 
+    @Test
+    public void replacesTargetsOfMoveAndCopy() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+        container.createDirectory(Path.of("dir"));
+        for(var name : List.of("a", "b", "dir/c")) {
+            try(var bc = container.newByteChannel(Path.of(name), Set.of(StandardOpenOption.CREATE))) {
+                bc.write(ByteBuffer.wrap(name.getBytes()));
+            }
+        }
+
+        Assert.assertThrows(FileAlreadyExistsException.class, () -> container.copy(Path.of("a"), Path.of("b")));
+        container.copy(Path.of("a"), Path.of("b"), StandardCopyOption.REPLACE_EXISTING);
+        container.copy(Path.of("a"), Path.of("a"), StandardCopyOption.REPLACE_EXISTING);
+        container.move(Path.of("dir", "c"), Path.of("a"), StandardCopyOption.REPLACE_EXISTING);
+        writeSomething(container, "dir/d");
+        Assert.assertThrows(DirectoryNotEmptyException.class,
+                () -> container.move(Path.of("a"), Path.of("dir"), StandardCopyOption.REPLACE_EXISTING));
+        Assert.assertTrue(container.fsck(false).isClean());
+
+        // Journaled, so the remount sees both replacements
+        var remounted = new BlockFileController(base, true);
+        Assert.assertFalse(remounted.exists(Path.of("dir", "c")));
+        for(var entry : Map.of("a", "dir/c", "b", "a").entrySet()) {
+            var read = ByteBuffer.allocate(10);
+            try(var bc = remounted.newByteChannel(Path.of(entry.getKey()), Set.of(StandardOpenOption.READ))) {
+                bc.read(read);
+            }
+            Assert.assertEquals(ByteBuffer.wrap(entry.getValue().getBytes()), read.flip());
+        }
+        remounted.close();
+    }
+
     @Test
     public void canTraverseByteChannels() throws IOException {
         var file = Path.of("file");
@@ -302,6 +1063,37 @@ public class BlockFileControllerTest {
         Assert.assertTrue(controller.exists(target));
     }
 
+    @Test
+    public void movesDirectoriesWithTheirContentInPlace() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+        container.createDirectory(Path.of("dir"));
+        container.createDirectory(Path.of("src"));
+        writeSomething(container, "src/file");
+        var open = container.newByteChannel(Path.of("src", "file"), Set.of(StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        var sizeBefore = Files.size(base);
+
+        var target = Path.of("dir", "a much longer name of the target directory");
+        container.move(Path.of("src"), target);
+        container.move(target.resolve("file"), target.resolve("moved"));
+        open.write(ByteBuffer.wrap(new byte[] {7}));
+        open.close();
+
+        Assert.assertEquals(sizeBefore, Files.size(base));
+        Assert.assertTrue(container.fsck(false).isClean());
+
+        // Journaled, so the remount reads the moved heads
+        var remounted = new BlockFileController(base, true);
+        Assert.assertFalse(remounted.isMountedFromCheckpoint());
+        var moved = target.resolve("moved");
+        Assert.assertFalse(remounted.exists(Path.of("src")));
+        Assert.assertEquals(4, remounted.readAttributes(moved, BasicFileAttributes.class).size());
+        Assert.assertTrue(remounted.fsck(false).isClean());
+
+        Assert.assertThrows(IOException.class, () -> remounted.move(Path.of("dir"), Path.of("dir", "inside")));
+        Assert.assertThrows(FileAlreadyExistsException.class, () -> remounted.move(moved, moved.getParent()));
+    }
+
     @Test
     public void providesCorrectDirectoryStream() throws IOException {
         Set<Integer> created = new HashSet<>();
@@ -321,4 +1113,440 @@ public class BlockFileControllerTest {
 
         Assert.assertTrue(created.isEmpty()); // Ensure we seen all dirs we have created
     }
+
+    @Test
+    public void writesAndReadsFilesConcurrently() throws Exception {
+        var threads = 8;
+        var filesPerThread = 20;
+        var fileSize = 10 * 1024;
+        controller.createDirectory(Path.of("dir"));
+
+        var pool = Executors.newFixedThreadPool(threads);
+        var tasks = new ArrayList<Callable<Void>>();
+        for(int t = 0; t < threads; t++) {
+            var thread = t;
+            tasks.add(() -> {
+                for(int i = 0; i < filesPerThread; i++) {
+                    var file = Path.of("dir", thread + "_" + i);
+                    var content = new byte[fileSize];
+                    Arrays.fill(content, (byte) (thread * filesPerThread + i));
+
+                    try(var bc = controller.newByteChannel(file, Set.of(StandardOpenOption.CREATE_NEW))) {
+                        bc.write(ByteBuffer.wrap(content));
+                    }
+
+                    var read = ByteBuffer.allocate(fileSize);
+                    try(var bc = controller.newByteChannel(file, Set.of(StandardOpenOption.READ))) {
+                        bc.read(read);
+                    }
+                    Assert.assertArrayEquals(content, read.array());
+                }
+                return null;
+            });
+        }
+
+        for(Future<Void> f : pool.invokeAll(tasks)) {
+            f.get();
+        }
+        pool.shutdown();
+
+        for(int t = 0; t < threads; t++) {
+            for(int i = 0; i < filesPerThread; i++) {
+                Assert.assertTrue(controller.exists(Path.of("dir", t + "_" + i)));
+            }
+        }
+    }
+
+    @Test
+    public void createsFilesInDirectoriesDeletedConcurrently() throws Exception {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+        var dir = Path.of("dir");
+        var rounds = 500;
+
+        // Creators race with deleters of the directory and of its files, a creator may see a directory that is
+        // replaced by another one before the creator locks it
+        var pool = Executors.newFixedThreadPool(8);
+        var tasks = new ArrayList<Callable<Void>>();
+        for(int t = 0; t < 2; t++) {
+            tasks.add(() -> {
+                for(int i = 0; i < rounds; i++) {
+                    try {
+                        container.createDirectory(dir);
+                    } catch (FileAlreadyExistsException | NoSuchFileException ignored) {}
+                    try {
+                        container.delete(dir);
+                    } catch (NoSuchFileException | DirectoryNotEmptyException ignored) {}
+                }
+                return null;
+            });
+        }
+        for(int t = 0; t < 3; t++) {
+            var thread = t;
+            tasks.add(() -> {
+                for(int i = 0; i < rounds; i++) {
+                    try {
+                        container.newByteChannel(dir.resolve(thread + "_" + i % 4), Set.of(StandardOpenOption.CREATE)).close();
+                    } catch (NoSuchFileException ignored) {}
+                }
+                return null;
+            });
+            tasks.add(() -> {
+                for(int i = 0; i < rounds; i++) {
+                    try {
+                        container.delete(dir.resolve(thread + "_" + i % 4));
+                    } catch (NoSuchFileException ignored) {}
+                }
+                return null;
+            });
+        }
+
+        for(Future<Void> f : pool.invokeAll(tasks)) {
+            f.get();
+        }
+        pool.shutdown();
+
+        var children = new HashSet<Path>();
+        if(container.exists(dir)) {
+            try(var stream = container.newDirectoryStream(dir, p -> true)) {
+                stream.forEach(children::add);
+            }
+        }
+        Assert.assertTrue(container.fsck(false).isClean());
+        container.close();
+
+        var remounted = new BlockFileController(base, true);
+        Assert.assertTrue(remounted.fsck(false).isClean());
+        for(var child : children) {
+            Assert.assertTrue(child.toString(), remounted.exists(child));
+        }
+        remounted.close();
+    }
+
+    @Test
+    public void sharesLocksAndExcludesOverlappingExclusiveLocks() throws IOException {
+        var file = Path.of("file");
+        var first = controller.newFileChannel(file, Set.of(StandardOpenOption.CREATE));
+        var second = controller.newFileChannel(file, Set.of(StandardOpenOption.READ));
+
+        var shared = first.lock(0, 100, true);
+        Assert.assertNotNull(second.tryLock(50, 100, true));
+        Assert.assertNull(second.tryLock(90, 10, false));
+        Assert.assertNotNull(second.tryLock(200, 10, false));
+
+        shared.release();
+        Assert.assertFalse(shared.isValid());
+        Assert.assertNotNull(first.tryLock(0, 50, false));
+    }
+
+    @Test
+    public void findsConflictsAfterLongestLockIsReleased() throws IOException {
+        var file = Path.of("file");
+        var first = controller.newFileChannel(file, Set.of(StandardOpenOption.CREATE));
+        var second = controller.newFileChannel(file, Set.of(StandardOpenOption.READ));
+
+        var whole = first.lock();
+        Assert.assertNull(second.tryLock(Long.MAX_VALUE - 2000, 1000, true)); // Overlaps the lock of the whole file
+        whole.release();
+
+        Assert.assertNotNull(first.tryLock(1000, 1000, false));
+        Assert.assertNull(second.tryLock(1500, 10, false));
+        Assert.assertNotNull(second.tryLock(2000, 10, false));
+    }
+
+    @Test(expected = OverlappingFileLockException.class)
+    public void refusesOverlappingLocksOfTheSameChannel() throws IOException {
+        var bc = controller.newFileChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE));
+
+        bc.lock(0, 100, true);
+        bc.lock(10, 10, true);
+    }
+
+    @Test
+    public void waitsForExclusiveLockUntilReleased() throws Exception {
+        var file = Path.of("file");
+        var first = controller.newFileChannel(file, Set.of(StandardOpenOption.CREATE));
+        var second = controller.newFileChannel(file, Set.of(StandardOpenOption.READ));
+
+        first.lock();
+
+        var pool = Executors.newSingleThreadExecutor();
+        var waiting = pool.submit(() -> second.lock());
+        Thread.sleep(100);
+        Assert.assertFalse(waiting.isDone());
+
+        first.close();
+        Assert.assertTrue(waiting.get(5, TimeUnit.SECONDS).isValid());
+        pool.shutdown();
+    }
+
+    @Test
+    public void recoversNamespaceFromJournalAfterCrash() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var crashed = new BlockFileController(base, false);
+        crashed.createDirectory(Path.of("dir"));
+        try(var bc = crashed.newByteChannel(Path.of("dir", "file"), Set.of(StandardOpenOption.CREATE))) {
+            bc.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        }
+        // crashed is never closed, so nothing was checkpointed
+
+        var recovered = new BlockFileController(base, true);
+        Assert.assertFalse(recovered.isMountedFromCheckpoint());
+        Assert.assertTrue(recovered.exists(Path.of("dir", "file")));
+
+        var content = ByteBuffer.allocate(3);
+        try(var bc = recovered.newByteChannel(Path.of("dir", "file"), Set.of(StandardOpenOption.READ))) {
+            bc.read(content);
+        }
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, content.array());
+    }
+
+    @Test
+    public void keepsHeadsSpanningSeveralBlocksAcrossAppends() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var config = new BlockFileConfig().setLargeBlockSize(64 * 1024).setLargeFileThreshold(128 * 1024);
+        var crashed = new BlockFileController(base, false, config);
+
+        // Either file needs several head blocks: every small block takes 2 entries, every large one 17
+        var piece = new byte[4096];
+        var random = new Random(11);
+        var pieces = Map.of("small", 2500, "large", 3000);
+        for(var file : pieces.entrySet()) {
+            try(var bc = crashed.newByteChannel(Path.of(file.getKey()), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+                for(int i = 0; i < file.getValue(); i++) {
+                    random.nextBytes(piece);
+                    bc.write(ByteBuffer.wrap(piece));
+                }
+                bc.truncate(bc.size() - 300 * 1024);
+            }
+        }
+        // crashed is never closed, so heads are read from the base file
+
+        var recovered = new BlockFileController(base, true);
+        random = new Random(11);
+        for(var file : pieces.entrySet()) {
+            var size = (long) file.getValue() * piece.length - 300 * 1024;
+            try(var bc = recovered.newByteChannel(Path.of(file.getKey()), Set.of(StandardOpenOption.READ))) {
+                Assert.assertEquals(size, bc.size());
+                var read = ByteBuffer.allocate(piece.length);
+                for(long position = 0; position < size; position += piece.length) {
+                    random.nextBytes(piece);
+                    read.clear();
+                    while(read.hasRemaining() && bc.read(read) >= 0);
+                    Assert.assertEquals(ByteBuffer.wrap(piece), read.flip());
+                }
+            }
+            for(int i = (int) (size / piece.length); i < file.getValue(); i++) {
+                random.nextBytes(piece);
+            }
+        }
+        Assert.assertTrue(recovered.fsck(false).isClean());
+    }
+
+    @Test
+    public void journalsTruncation() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var content = new byte[10000];
+        new Random(3).nextBytes(content);
+        for(var crash : List.of(false, true)) {
+            var container = new BlockFileController(base, false);
+            try(var bc = container.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+                bc.write(ByteBuffer.wrap(content));
+                bc.truncate(100);
+                Assert.assertEquals(100, bc.size());
+            }
+            Assert.assertEquals(100, container.readAttributes(Path.of("file"), BasicFileAttributes.class).size());
+            if(!crash)
+                container.close();
+
+            var remounted = new BlockFileController(base, true);
+            Assert.assertEquals(!crash, remounted.isMountedFromCheckpoint());
+            var read = ByteBuffer.allocate(content.length);
+            try(var bc = remounted.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.READ))) {
+                Assert.assertEquals(100, bc.read(read));
+            }
+            Assert.assertEquals(ByteBuffer.wrap(content, 0, 100), read.flip());
+            Assert.assertTrue(remounted.fsck(false).isClean());
+            remounted.close();
+        }
+    }
+
+    @Test
+    public void writesPastTheEndOfATruncatedFile() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+        try(var bc = container.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.position(100000).write(ByteBuffer.wrap(new byte[] {1}));
+            bc.truncate(50000);
+            bc.position(50010).write(ByteBuffer.wrap(new byte[] {2}));
+        }
+        container.close();
+
+        var remounted = new BlockFileController(base, true);
+        var read = ByteBuffer.allocate(50011);
+        try(var bc = remounted.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.READ))) {
+            while(read.hasRemaining() && bc.read(read) >= 0);
+        }
+        var expected = new byte[50011];
+        expected[50010] = 2;
+        Assert.assertEquals(ByteBuffer.wrap(expected), read.flip());
+        Assert.assertTrue(remounted.fsck(false).isClean());
+        remounted.close();
+    }
+
+    @Test
+    public void givesBackBlocksOfFailedWrites() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var container = new BlockFileController(base, false);
+        var content = new byte[5000];
+        new Random(4).nextBytes(content);
+        try(var bc = container.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+            bc.write(ByteBuffer.wrap(content));
+        }
+        container.close();
+
+        // Damages the second block, the write past the end has to read it to zero the rest of it
+        var image = Files.readAllBytes(base);
+        var needle = Arrays.copyOfRange(content, 4096, 4096 + 64);
+        var found = -1;
+        for(int i = 0; i + needle.length <= image.length && found < 0; i += 4096) {
+            if(Arrays.equals(image, i, i + needle.length, needle, 0, needle.length))
+                found = i;
+        }
+        Assert.assertTrue(found > 0);
+        try(var channel = FileChannel.open(base, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) (image[found] ^ 4)}), found);
+        }
+
+        var remounted = new BlockFileController(base, true);
+        try(var bc = remounted.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.WRITE))) {
+            Assert.assertThrows(IOException.class, () -> bc.position(20000).write(ByteBuffer.wrap(new byte[] {1})));
+        }
+        Assert.assertEquals(5000, remounted.readAttributes(Path.of("file"), BasicFileAttributes.class).size());
+        Assert.assertTrue(remounted.fsck(false).isClean());
+        remounted.close();
+
+        // Journaled, the head on disk is the one from before the write
+        var again = new BlockFileController(base, true);
+        Assert.assertEquals(5000, again.readAttributes(Path.of("file"), BasicFileAttributes.class).size());
+        Assert.assertTrue(again.fsck(false).isClean());
+        again.close();
+    }
+
+    @Test
+    public void doesNotReuseBlocksOfRemountedFiles() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var first = new BlockFileController(base, false);
+        try(var bc = first.newByteChannel(Path.of("old"), Set.of(StandardOpenOption.CREATE))) {
+            bc.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        }
+        first.close();
+
+        var second = new BlockFileController(base, true);
+        for(int i = 0; i < 10; i++) {
+            try(var bc = second.newByteChannel(Path.of("new" + i), Set.of(StandardOpenOption.CREATE))) {
+                bc.write(ByteBuffer.wrap(new byte[] { 9, 9, 9 }));
+            }
+        }
+
+        var content = ByteBuffer.allocate(3);
+        try(var bc = second.newByteChannel(Path.of("old"), Set.of(StandardOpenOption.READ))) {
+            bc.read(content);
+        }
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, content.array());
+    }
+
+    private static BlockFileController controllerWith(BlockFileConfig.Durability durability) throws IOException {
+        var config = new BlockFileConfig().setDurability(durability).setSyncInterval(Duration.ofMillis(10));
+        return new BlockFileController(Files.createTempFile("test", "test"), false, config);
+    }
+
+    private static void writeSomething(BlockFileController controller, String name) throws IOException {
+        try(var bc = controller.newByteChannel(Path.of(name), Set.of(StandardOpenOption.CREATE))) {
+            bc.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        }
+    }
+
+    @Test
+    public void syncsOnlyOnCloseByDefault() throws IOException {
+        Assert.assertEquals(BlockFileConfig.Durability.ON_CLOSE, controller.getSyncer().getDurability());
+    }
+
+    @Test
+    public void syncsEveryOperationWithPerOperationDurability() throws IOException {
+        var perOperation = controllerWith(BlockFileConfig.Durability.PER_OPERATION);
+        var before = perOperation.getSyncer().getSyncCount();
+        writeSomething(perOperation, "file");
+        Assert.assertTrue(perOperation.getSyncer().getSyncCount() > before);
+
+        // Changes of nothing commit empty transactions, they sync nothing
+        try(var bc = perOperation.newByteChannel(Path.of("file"), Set.of(StandardOpenOption.WRITE))) {
+            before = perOperation.getSyncer().getSyncCount();
+            bc.write(ByteBuffer.allocate(0));
+            bc.truncate(100);
+        }
+        Assert.assertEquals(before, perOperation.getSyncer().getSyncCount());
+    }
+
+    @Test
+    public void syncsOnlyOnCloseWithOnCloseDurability() throws IOException {
+        var onClose = controllerWith(BlockFileConfig.Durability.ON_CLOSE);
+        var before = onClose.getSyncer().getSyncCount();
+        writeSomething(onClose, "file");
+        Assert.assertEquals(before, onClose.getSyncer().getSyncCount());
+
+        onClose.close();
+        Assert.assertTrue(onClose.getSyncer().getSyncCount() > before);
+    }
+
+    @Test
+    public void syncsOnlyWhenForcedWithNoDurability() throws IOException {
+        var none = controllerWith(BlockFileConfig.Durability.NONE);
+        writeSomething(none, "file");
+        Assert.assertEquals(0, none.getSyncer().getSyncCount());
+
+        try(var fc = none.newFileChannel(Path.of("file"), Set.of(StandardOpenOption.WRITE))) {
+            fc.force(true);
+        }
+        Assert.assertEquals(1, none.getSyncer().getSyncCount());
+
+        none.close();
+        Assert.assertEquals(1, none.getSyncer().getSyncCount());
+    }
+
+    @Test
+    public void syncsPeriodicallyAfterChanges() throws Exception {
+        var periodic = controllerWith(BlockFileConfig.Durability.PERIODIC);
+        var before = periodic.getSyncer().getSyncCount();
+        writeSomething(periodic, "file");
+
+        var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(periodic.getSyncer().getSyncCount() == before && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertTrue(periodic.getSyncer().getSyncCount() > before);
+        periodic.close();
+    }
+
+    @Test
+    public void remountsCleanlyClosedContainerFromCheckpoint() throws IOException {
+        var base = Files.createTempFile("test", "test");
+        var first = new BlockFileController(base, false);
+        first.createDirectory(Path.of("dir"));
+        writeSomething(first, "file");
+        first.close();
+
+        var second = new BlockFileController(base, true);
+        Assert.assertTrue(second.isMountedFromCheckpoint());
+        Assert.assertTrue(second.exists(Path.of("dir")));
+        Assert.assertEquals(3, second.readAttributes(Path.of("file"), BasicFileAttributes.class).size());
+        Assert.assertTrue(second.fsck(false).isClean());
+        writeSomething(second, "other");
+        // Crash: the checkpoint of the second mount is never written
+
+        var third = new BlockFileController(base, true);
+        Assert.assertFalse(third.isMountedFromCheckpoint());
+        Assert.assertTrue(third.exists(Path.of("other")));
+        Assert.assertTrue(third.exists(Path.of("file")));
+    }
 }
@@ -7,14 +7,18 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 public class BlockFileSerializerTest {
     @Test
     public void canSerializeAndDeserialize() throws IOException {
         var temp = Files.createTempFile("test_serialize", null);
-        var bc = Files.newByteChannel(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var bc = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
         var bm = new BlockManager(1024, 4096);
 
         var serializer = new BlockFileSerializer(bc, bm);
@@ -29,4 +33,132 @@ public class BlockFileSerializerTest {
 
         Assert.assertEquals(head, deserialized);
     }
+
+    @Test
+    public void canSerializeAndDeserializeMultiBlockHead() throws IOException {
+        var temp = Files.createTempFile("test_serialize", null);
+        var bc = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var bm = new BlockManager(1024, 1024 * 1024);
+
+        var serializer = new BlockFileSerializer(bc, bm);
+        var headBlock = bm.allocateBlock().get();
+        BlockFileHead head = new BlockFileHead("test", false, headBlock);
+        for(int i = 0; i < 1000; i++) {
+            head.expand(1000 + i);
+        }
+        head.setByteCount(1000 * 1024);
+
+        serializer.serializeFileHead(head);
+        var deserialized = serializer.deserializeFileHead(headBlock);
+
+        Assert.assertTrue(head.getFullAddress().size() > 2);
+        Assert.assertEquals(head, deserialized);
+    }
+
+    @Test
+    public void doesNotMoveBaseChannelPosition() throws IOException {
+        var temp = Files.createTempFile("test_serialize", null);
+        var bc = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var bm = new BlockManager(1024, 1024 * 1024);
+
+        var serializer = new BlockFileSerializer(bc, bm);
+        BlockFileHead head = new BlockFileHead("test", false, bm.allocateBlock().get());
+
+        var data = ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5});
+        serializer.writeAt(data, head, 2000);
+
+        var read = ByteBuffer.allocate(5);
+        serializer.readAt(read, head, 2000);
+
+        Assert.assertEquals(0, bc.position());
+        Assert.assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5}), read.flip());
+    }
+
+    @Test
+    public void movesGrowingFileToLargeBlocks() throws IOException {
+        var temp = Files.createTempFile("test_serialize", null);
+        var bc = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var bm = new BlockManager(4096, 64 * 1024, 64 * 1024 * 1024, 64 * 1024 * 1024);
+
+        var serializer = new BlockFileSerializer(bc, bm);
+        serializer.setLargeFileThreshold(100 * 1024);
+        BlockFileHead head = new BlockFileHead("test", false, bm.allocateBlock().get());
+
+        var data = new byte[300 * 1024];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        serializer.writeAt(ByteBuffer.wrap(data, 0, 50 * 1024), head, 0);
+        Assert.assertFalse(head.isLargeBlocks());
+        Assert.assertEquals(13, head.getBlocks().size());
+
+        serializer.writeAt(ByteBuffer.wrap(data, 50 * 1024, 250 * 1024), head, 50 * 1024);
+        Assert.assertTrue(head.isLargeBlocks());
+        Assert.assertEquals(5, head.getBlocks().size());
+        Assert.assertEquals(1 + 5 * 16, bm.getOccupiedCount());
+
+        var read = ByteBuffer.allocate(data.length);
+        serializer.readAt(read, head, 0);
+        Assert.assertEquals(ByteBuffer.wrap(data), read.flip());
+        Assert.assertEquals(head, serializer.deserializeFileHead(head.getAddress(0)));
+    }
+
+    @Test
+    public void leavesUnwrittenRangesAsHoles() throws IOException {
+        var temp = Files.createTempFile("test_serialize", null);
+        var bc = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var bm = new BlockManager(4096, 1024L * 1024 * 1024);
+
+        var serializer = new BlockFileSerializer(bc, bm);
+        // Leaves garbage in the blocks the sparse file gets later
+        BlockFileHead garbage = new BlockFileHead("garbage", false, bm.allocateBlock().get());
+        var ones = new byte[64 * 1024];
+        Arrays.fill(ones, (byte) 1);
+        serializer.writeAt(ByteBuffer.wrap(ones), garbage, 0);
+        serializer.truncate(garbage, 0, 0);
+
+        BlockFileHead head = new BlockFileHead("sparse", false, bm.allocateBlock().get());
+        var position = 100L * 1024 * 1024 + 10;
+        serializer.writeAt(ByteBuffer.wrap(new byte[] {1, 2, 3}), head, position);
+
+        Assert.assertEquals(position + 3, head.getByteCount());
+        Assert.assertEquals(1, head.getBlocks().stream().filter(b -> b != BlockFileHead.HOLE).count());
+        Assert.assertEquals(BlockFileHead.HOLE, (int) head.getBlocks().get(0));
+
+        var read = ByteBuffer.allocate(20);
+        serializer.readAt(read, head, position - 10);
+        Assert.assertEquals(ByteBuffer.wrap(new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3}), read.flip());
+
+        var hole = ByteBuffer.allocate(8192);
+        serializer.readAt(hole, head, 4096);
+        Assert.assertEquals(ByteBuffer.allocate(8192), hole.flip());
+        Assert.assertEquals(head, serializer.deserializeFileHead(head.getAddress(0)));
+    }
+
+    @Test
+    public void writesIntoPreallocatedBlocksWithoutChangingThem() throws IOException {
+        var temp = Files.createTempFile("test_serialize", null);
+        var bc = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var bm = new BlockManager(4096, 1024L * 1024 * 1024);
+
+        var serializer = new BlockFileSerializer(bc, bm);
+        BlockFileHead head = new BlockFileHead("segment", false, bm.allocateBlock().get());
+        serializer.preallocate(head, 64 * 1024);
+
+        Assert.assertEquals(0, head.getByteCount());
+        var blocks = new ArrayList<>(head.getBlocks());
+        Assert.assertEquals(16, blocks.size());
+        for(int i = 1; i < blocks.size(); i++) {
+            Assert.assertEquals(blocks.get(0) + i, (int) blocks.get(i));
+        }
+
+        var occupied = bm.getOccupiedCount();
+        serializer.writeAt(ByteBuffer.wrap(new byte[10000]), head, 0);
+        serializer.writeAt(ByteBuffer.wrap(new byte[] {7}), head, 20000);
+
+        Assert.assertEquals(blocks, head.getBlocks());
+        Assert.assertEquals(occupied, bm.getOccupiedCount());
+        Assert.assertEquals(20001, head.getByteCount());
+        Assert.assertEquals(head, serializer.deserializeFileHead(head.getAddress(0)));
+    }
 }
@@ -0,0 +1,187 @@
+package ofs;
+
+import ofs.blockimpl.BlockFileConfig;
+import ofs.blockimpl.BlockJournal;
+import ofs.blockimpl.BlockManager;
+import ofs.blockimpl.BlockSyncer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class BlockJournalTest {
+    private static final int BLOCK_SIZE = 1024;
+    private static final int JOURNAL_BLOCK = 1;
+    private static final int JOURNAL_BLOCK_COUNT = 64;
+
+    private static BlockManager newBlockManager() {
+        var bm = new BlockManager(BLOCK_SIZE, 1024 * 1024);
+        for(int i = 0; i < JOURNAL_BLOCK + JOURNAL_BLOCK_COUNT; i++) {
+            bm.occupyBlock(i);
+        }
+
+        return bm;
+    }
+
+    private static BlockJournal.Transaction transaction(int block, byte value) {
+        var t = new BlockJournal.Transaction();
+        var image = ByteBuffer.allocate(BLOCK_SIZE);
+        while(image.hasRemaining())
+            image.put(value);
+        image.clear();
+        t.put(block, image);
+
+        return t;
+    }
+
+    private static BlockJournal.Transaction largeTransaction(int firstBlock, int count, byte value) {
+        var t = new BlockJournal.Transaction();
+        for(int i = 0; i < count; i++) {
+            var image = ByteBuffer.allocate(BLOCK_SIZE);
+            while(image.hasRemaining())
+                image.put(value);
+            image.clear();
+            t.put(firstBlock + i, image);
+        }
+
+        return t;
+    }
+
+    private static byte readBlock(FileChannel channel, int block) throws IOException {
+        var buffer = ByteBuffer.allocate(1);
+        var read = channel.read(buffer, (long) block * BLOCK_SIZE);
+        return read <= 0 ? 0 : buffer.get(0);
+    }
+
+    @Test
+    public void writesHomeLocationsLazilyAndReplaysAfterCrash() throws Exception {
+        var temp = Files.createTempFile("test_journal", null);
+        var channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var bm = newBlockManager();
+        var journal = BlockJournal.create(channel, bm, new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+
+        journal.commit(transaction(100, (byte) 7));
+        journal.commit(transaction(101, (byte) 8));
+        Assert.assertEquals(0, readBlock(channel, 100));
+
+        // Crash: the journal is never closed, a new one recovers from the same file
+        BlockJournal.recover(channel, newBlockManager(), new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+        Assert.assertEquals(7, readBlock(channel, 100));
+        Assert.assertEquals(8, readBlock(channel, 101));
+    }
+
+    @Test
+    public void ignoresTornRecords() throws Exception {
+        var temp = Files.createTempFile("test_journal", null);
+        var channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var journal = BlockJournal.create(channel, newBlockManager(), new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+
+        journal.commit(transaction(100, (byte) 7));
+        journal.commit(transaction(101, (byte) 8));
+
+        // Damage the image of the second record: descriptor at journal block 3, image at 4
+        channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), (long) (JOURNAL_BLOCK + 4) * BLOCK_SIZE);
+
+        BlockJournal.recover(channel, newBlockManager(), new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+        Assert.assertEquals(7, readBlock(channel, 100));
+        Assert.assertEquals(0, readBlock(channel, 101));
+    }
+
+    @Test
+    public void commitsConcurrentTransactionsAndCheckpointsWhenFull() throws Exception {
+        var temp = Files.createTempFile("test_journal", null);
+        var channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var bm = newBlockManager();
+        var journal = BlockJournal.create(channel, bm, new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+
+        var threads = 8;
+        var commitsPerThread = 50; // Much more than the journal can keep, so it is checkpointed on the way
+        var pool = Executors.newFixedThreadPool(threads);
+        var tasks = new ArrayList<Callable<Void>>();
+        for(int t = 0; t < threads; t++) {
+            var thread = t;
+            tasks.add(() -> {
+                for(int i = 0; i < commitsPerThread; i++) {
+                    journal.commit(transaction(100 + thread * commitsPerThread + i, (byte) (i + 1)));
+                }
+                return null;
+            });
+        }
+        for(Future<Void> f : pool.invokeAll(tasks)) {
+            f.get();
+        }
+        pool.shutdown();
+
+        BlockJournal.recover(channel, newBlockManager(), new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+        for(int t = 0; t < threads; t++) {
+            for(int i = 0; i < commitsPerThread; i++) {
+                Assert.assertEquals(i + 1, readBlock(channel, 100 + t * commitsPerThread + i));
+            }
+        }
+    }
+
+    @Test
+    public void chainsRecordsOfLargeTransactions() throws Exception {
+        var temp = Files.createTempFile("test_journal", null);
+        var channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var journal = BlockJournal.create(channel, newBlockManager(), new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+
+        // At most 15 blocks fit into a record of this journal, so the transaction takes records of 15, 15 and 10
+        journal.commit(largeTransaction(100, 40, (byte) 7));
+        Assert.assertEquals(0, readBlock(channel, 100));
+
+        BlockJournal.recover(channel, newBlockManager(), new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+        for(int i = 0; i < 40; i++) {
+            Assert.assertEquals(7, readBlock(channel, 100 + i));
+        }
+    }
+
+    @Test
+    public void dropsChainsWithoutTheirLastRecord() throws Exception {
+        var temp = Files.createTempFile("test_journal", null);
+        var channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var journal = BlockJournal.create(channel, newBlockManager(), new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+
+        journal.commit(transaction(99, (byte) 5));
+        journal.commit(largeTransaction(100, 40, (byte) 7));
+
+        // Damage an image of the last record of the chain: its descriptor is at journal block 35
+        channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), (long) (JOURNAL_BLOCK + 40) * BLOCK_SIZE);
+
+        BlockJournal.recover(channel, newBlockManager(), new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+        Assert.assertEquals(5, readBlock(channel, 99));
+        for(int i = 0; i < 40; i++) {
+            Assert.assertEquals(0, readBlock(channel, 100 + i));
+        }
+    }
+
+    @Test
+    public void spillsTransactionsLargerThanTheJournal() throws Exception {
+        var temp = Files.createTempFile("test_journal", null);
+        var channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        var bm = newBlockManager();
+        for(int i = 100; i < 300; i++) {
+            bm.occupyBlock(i);
+        }
+        var occupied = bm.getOccupiedCount();
+        var journal = BlockJournal.create(channel, bm, new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+
+        journal.commit(largeTransaction(100, 200, (byte) 7));
+        journal.commit(transaction(99, (byte) 5));
+        Assert.assertEquals(occupied, bm.getOccupiedCount());
+
+        BlockJournal.recover(channel, newBlockManager(), new BlockSyncer(channel, new BlockFileConfig()), JOURNAL_BLOCK, JOURNAL_BLOCK_COUNT);
+        Assert.assertEquals(5, readBlock(channel, 99));
+        for(int i = 0; i < 200; i++) {
+            Assert.assertEquals(7, readBlock(channel, 100 + i));
+        }
+    }
+}
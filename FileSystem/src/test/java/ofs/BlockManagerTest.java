@@ -4,8 +4,14 @@ import ofs.blockimpl.BlockManager;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class BlockManagerTest {
     @Test
@@ -98,4 +104,228 @@ public class BlockManagerTest {
 
         Assert.assertTrue(mgr.allocateBlock().isEmpty());
     }
+
+    @Test
+    public void allocatesDistinctBlocksConcurrently() throws Exception {
+        var threads = 8;
+        var blocksPerThread = 1000;
+        var blockSize = 10;
+        var mgr = new BlockManager(blockSize, blockSize * threads * blocksPerThread);
+
+        var pool = Executors.newFixedThreadPool(threads);
+        var tasks = new ArrayList<Callable<List<Integer>>>();
+        for(int t = 0; t < threads; t++) {
+            tasks.add(() -> {
+                var result = new ArrayList<Integer>();
+                for(int i = 0; i < blocksPerThread / 2; i++) {
+                    result.add(mgr.allocateBlock().get());
+                }
+                result.addAll(mgr.allocateBlocks(blocksPerThread / 2).get());
+                return result;
+            });
+        }
+
+        var allocated = new HashSet<Integer>();
+        for(Future<List<Integer>> f : pool.invokeAll(tasks)) {
+            allocated.addAll(f.get());
+        }
+        pool.shutdown();
+
+        Assert.assertEquals(threads * blocksPerThread, allocated.size());
+        Assert.assertEquals(threads * blocksPerThread, mgr.getOccupiedCount());
+        Assert.assertTrue(mgr.allocateBlock().isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void occupiesBlocksWhileOthersAllocate() throws Exception {
+        var threads = 4;
+        var blocks = 4000;
+        var mgr = new BlockManager(10, 10 * blocks);
+
+        var pool = Executors.newFixedThreadPool(threads + 1);
+        var tasks = new ArrayList<Callable<Integer>>();
+        for(int t = 0; t < threads; t++) {
+            tasks.add(() -> {
+                var allocated = 0;
+                while(mgr.allocateBlock().isPresent())
+                    allocated++;
+                return allocated;
+            });
+        }
+        tasks.add(() -> {
+            var occupied = 0;
+            for(int block = 0; block < blocks; block += 3) {
+                if(mgr.occupyBlock(block))
+                    occupied++;
+            }
+            return occupied;
+        });
+
+        var taken = 0;
+        for(Future<Integer> f : pool.invokeAll(tasks)) {
+            taken += f.get();
+        }
+        pool.shutdown();
+
+        // Every block was taken exactly once and the count matches the bitmap
+        Assert.assertEquals(blocks, taken);
+        Assert.assertEquals(blocks, mgr.getOccupiedCount());
+        Assert.assertTrue(mgr.allocateBlock().isEmpty());
+    }
+
+    @Test
+    public void postponesFreeingPinnedBlocks() {
+        var blockSize = 10;
+        var mgr = new BlockManager(blockSize, blockSize * 10);
+
+        var block = mgr.allocateBlock().get();
+        var epoch = mgr.beginSnapshot();
+        mgr.retainSnapshot(epoch);
+        Assert.assertTrue(mgr.isPinned(block));
+
+        mgr.freeBlock(block);
+        Assert.assertTrue(mgr.isOccupied(block));
+        Assert.assertTrue(mgr.isFreePostponed(block));
+
+        mgr.endSnapshot(epoch);
+        Assert.assertTrue(mgr.isOccupied(block));
+
+        mgr.endSnapshot(epoch);
+        Assert.assertFalse(mgr.isOccupied(block));
+        Assert.assertEquals(0, mgr.getOccupiedCount());
+    }
+
+    @Test
+    public void pinsOnlyBlocksOlderThanNewestSnapshot() {
+        var mgr = new BlockManager(10, 1000);
+
+        var old = mgr.allocateBlock().get();
+        var first = mgr.beginSnapshot();
+        var between = mgr.allocateBlock().get();
+        Assert.assertTrue(mgr.isPinned(old));
+        Assert.assertFalse(mgr.isPinned(between));
+
+        var second = mgr.beginSnapshot();
+        var young = mgr.allocateLargeBlocks(1).get().get(0);
+        Assert.assertTrue(mgr.isPinned(between));
+        Assert.assertFalse(mgr.isPinned(young));
+
+        // The first snapshot can't see the block, so it doesn't keep it
+        mgr.endSnapshot(second);
+        Assert.assertFalse(mgr.isPinned(between));
+        mgr.freeBlock(between);
+        Assert.assertFalse(mgr.isOccupied(between));
+
+        mgr.endSnapshot(first);
+        Assert.assertFalse(mgr.isPinned(old));
+    }
+
+    @Test
+    public void growsInChunksUpToMaxSize() {
+        var mgr = new BlockManager(10, 1000, 300);
+        Assert.assertEquals(30, mgr.getCapacity());
+
+        Assert.assertTrue(mgr.allocateBlocks(40).isPresent());
+        Assert.assertEquals(60, mgr.getCapacity());
+
+        Assert.assertTrue(mgr.allocateBlocks(60).isPresent());
+        Assert.assertEquals(100, mgr.getCapacity());
+        Assert.assertTrue(mgr.allocateBlock().isEmpty());
+        Assert.assertEquals(100, mgr.getOccupiedCount());
+    }
+
+    @Test
+    public void growsToOccupiedBlocks() {
+        var mgr = new BlockManager(10, 100000, 100);
+        mgr.occupyBlock(5000);
+
+        Assert.assertTrue(mgr.getCapacity() > 5000);
+        Assert.assertTrue(mgr.isOccupied(5000));
+        Assert.assertFalse(mgr.isOccupied(4999));
+    }
+
+    @Test
+    public void allocatesContiguousRunsOnlyWhereTheyFit() {
+        var mgr = new BlockManager(10, 100);
+        mgr.occupyBlock(2);
+        mgr.occupyBlock(6);
+
+        Assert.assertEquals(Optional.of(3), mgr.allocateContiguous(3));
+        Assert.assertEquals(Optional.of(7), mgr.allocateContiguous(3));
+        Assert.assertTrue(mgr.allocateContiguous(3).isEmpty());
+        Assert.assertEquals(8, mgr.getOccupiedCount());
+    }
+
+    @Test
+    public void continuesContiguousSearchAfterThePreviousRun() {
+        var mgr = new BlockManager(10, 100);
+
+        Assert.assertEquals(Optional.of(0), mgr.allocateContiguous(2));
+        Assert.assertEquals(Optional.of(2), mgr.allocateContiguous(2));
+        mgr.freeBlocks(0, 2);
+        // The freed run is before the cursor, the search goes on after the previous run
+        Assert.assertEquals(Optional.of(4), mgr.allocateContiguous(2));
+        Assert.assertEquals(Optional.of(6), mgr.allocateContiguous(4));
+        // Nothing is left after the cursor, the search wraps to the beginning
+        Assert.assertEquals(Optional.of(0), mgr.allocateContiguous(2));
+        Assert.assertTrue(mgr.allocateContiguous(1).isEmpty());
+    }
+
+    @Test
+    public void findsRunsAcrossOccupiedWords() {
+        var mgr = new BlockManager(10, 10 * 300);
+        for(int i = 0; i < 200; i++) {
+            if(i != 70)
+                mgr.occupyBlock(i);
+        }
+
+        Assert.assertEquals(Optional.of(200), mgr.allocateContiguous(2));
+        Assert.assertEquals(Optional.of(202), mgr.allocateContiguous(98));
+        Assert.assertEquals(Optional.of(70), mgr.allocateContiguous(1));
+        Assert.assertTrue(mgr.allocateContiguous(1).isEmpty());
+    }
+
+    @Test
+    public void allocatesAlignedLargeBlocks() {
+        var mgr = new BlockManager(10, 40, 10000, 10000);
+        Assert.assertEquals(4, mgr.getLargeBlockSpan());
+        mgr.occupyBlock(1);
+        mgr.occupyBlock(9);
+
+        var large = mgr.allocateLargeBlocks(2).get();
+        Assert.assertEquals(List.of(4, 12), large);
+        Assert.assertEquals(10, mgr.getOccupiedCount());
+
+        mgr.freeBlocks(4, 4);
+        Assert.assertEquals(6, mgr.getOccupiedCount());
+        Assert.assertFalse(mgr.isOccupied(7));
+    }
+
+    @Test
+    public void givesBackSpaceWhenLargeBlocksDoNotFit() {
+        var mgr = new BlockManager(10, 40, 120, 120);
+        mgr.occupyBlock(5);
+
+        Assert.assertTrue(mgr.allocateLargeBlocks(3).isEmpty());
+        Assert.assertEquals(1, mgr.getOccupiedCount());
+        Assert.assertFalse(mgr.isOccupied(8));
+        Assert.assertEquals(List.of(0, 8), mgr.allocateLargeBlocks(2).get());
+    }
+
+    @Test
+    public void shrinksOnlyOverFreeBlocks() {
+        var mgr = new BlockManager(10, 1000, 500);
+        mgr.occupyBlock(30);
+
+        Assert.assertFalse(mgr.shrink(20));
+        Assert.assertEquals(50, mgr.getCapacity());
+        Assert.assertTrue(mgr.shrink(31));
+        Assert.assertEquals(31, mgr.getCapacity());
+        Assert.assertFalse(mgr.isOccupied(40));
+
+        Assert.assertTrue(mgr.allocateBlocks(30).isPresent());
+        Assert.assertEquals(31, mgr.getCapacity());
+        Assert.assertTrue(mgr.allocateBlock().isPresent());
+        Assert.assertEquals(81, mgr.getCapacity());
+    }
 }
@@ -0,0 +1,146 @@
+package ofs;
+
+import ofs.blockimpl.BlockFileController;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Throughput of the controller with 1, 2, 4... threads up to twice the number of cores, to see how the per-file
+ * locks scale. Not a test, surefire doesn't pick it up. Run it with
+ *
+ *   mvn -B test-compile
+ *   java -cp target/classes:target/test-classes ofs.LockScalingBenchmark [seconds per run]
+ *
+ * Workloads: every thread reads its own file, every thread reads the same file, every thread rewrites its own file.
+ * Each run is repeated and the median is printed along with the speedup over one thread. Numbers only say something
+ * about scaling on a host with several cores.
+ */
+public class LockScalingBenchmark {
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int REPEATS = 5;
+
+    private interface Workload {
+        void run(BlockFileController controller, int thread, ByteBuffer buffer) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        var seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2;
+        var cores = Runtime.getRuntime().availableProcessors();
+        var maxThreads = Integer.highestOneBit(cores) * 2;
+        System.out.printf("cores: %d, java: %s, %s %s%n", cores, System.getProperty("java.version"),
+                System.getProperty("os.name"), System.getProperty("os.arch"));
+
+        var baseFile = Files.createTempFile("ofs-bench", ".ofs");
+        var controller = new BlockFileController(baseFile, false);
+        try {
+            var content = new byte[FILE_SIZE];
+            Arrays.fill(content, (byte) 42);
+            for(int i = 0; i < maxThreads; i++) {
+                try(var bc = controller.newByteChannel(file(i), Set.of(StandardOpenOption.CREATE_NEW))) {
+                    bc.write(ByteBuffer.wrap(content));
+                }
+            }
+
+            measure(controller, "read own file", seconds, maxThreads, (c, thread, buffer) -> read(c, file(thread), buffer));
+            measure(controller, "read shared file", seconds, maxThreads, (c, thread, buffer) -> read(c, file(0), buffer));
+            measure(controller, "write own file", seconds, maxThreads, (c, thread, buffer) -> write(c, file(thread), buffer));
+        } finally {
+            controller.close();
+            Files.deleteIfExists(baseFile);
+        }
+    }
+
+    private static Path file(int index) {
+        return Path.of("bench_" + index);
+    }
+
+    private static void read(BlockFileController controller, Path file, ByteBuffer buffer) throws IOException {
+        try(var bc = controller.newByteChannel(file, Set.of(StandardOpenOption.READ))) {
+            while(true) {
+                buffer.clear();
+                if(bc.read(buffer) < 0)
+                    break;
+            }
+        }
+    }
+
+    private static void write(BlockFileController controller, Path file, ByteBuffer buffer) throws IOException {
+        try(var bc = controller.newByteChannel(file, Set.of(StandardOpenOption.WRITE))) {
+            for(int written = 0; written < FILE_SIZE; written += CHUNK_SIZE) {
+                buffer.clear();
+                bc.write(buffer);
+            }
+        }
+    }
+
+    private static void measure(BlockFileController controller, String name, double seconds, int maxThreads,
+                                Workload workload) throws Exception {
+        System.out.printf("%n%s%n%8s %12s %8s%n", name, "threads", "MB/s", "speedup");
+
+        // Warm-up, so the first row isn't the one paying for JIT compilation
+        run(controller, 1, seconds, workload);
+
+        var single = 0.0;
+        for(int threads = 1; threads <= maxThreads; threads *= 2) {
+            var results = new double[REPEATS];
+            for(int i = 0; i < REPEATS; i++) {
+                results[i] = run(controller, threads, seconds, workload);
+            }
+            Arrays.sort(results);
+            var median = results[REPEATS / 2];
+            if(threads == 1)
+                single = median;
+
+            System.out.printf("%8d %12.1f %8.2f%n", threads, median, median / single);
+        }
+    }
+
+    /**
+     * @return MB/s of all threads together.
+     */
+    private static double run(BlockFileController controller, int threads, double seconds,
+                              Workload workload) throws Exception {
+        var pool = Executors.newFixedThreadPool(threads);
+        var start = new CyclicBarrier(threads + 1);
+        var deadline = new long[1];
+        var tasks = new ArrayList<Future<Long>>();
+        for(int t = 0; t < threads; t++) {
+            var thread = t;
+            tasks.add(pool.submit((Callable<Long>) () -> {
+                var buffer = ByteBuffer.allocate(CHUNK_SIZE);
+                var bytes = 0L;
+                start.await();
+                while(System.nanoTime() < deadline[0]) {
+                    workload.run(controller, thread, buffer);
+                    bytes += FILE_SIZE;
+                }
+                return bytes;
+            }));
+        }
+
+        var begin = System.nanoTime();
+        deadline[0] = begin + (long) (seconds * 1e9);
+        start.await();
+
+        var bytes = 0L;
+        for(var task : tasks) {
+            bytes += task.get();
+        }
+        var elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+
+        return bytes / 1e6 / (elapsed / 1e9);
+    }
+}
@@ -5,8 +5,10 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.file.*;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -39,6 +41,22 @@ public class OFSFileSystemProviderTest {
         Assert.assertTrue(Files.size(basePath) >= 10);
     }
 
+    @Test
+    public void createsOFSFileSystemStripedOverProvidedFiles() throws IOException {
+        var provider = new OFSFileSystemProvider();
+
+        var basePaths = List.of(Files.createTempFile("test", "test"), Files.createTempFile("test", "test"));
+        var fs = provider.newFileSystem(URI.create("ofs:]=$"), Map.of("basePath", basePaths, "stripeWidth", 4096));
+
+        var bc = provider.newByteChannel(fs.getPath("test"), Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+        bc.write(ByteBuffer.allocate(64 * 4096));
+        bc.close();
+        provider.close();
+
+        Assert.assertTrue(Files.size(basePaths.get(0)) >= 32 * 4096);
+        Assert.assertTrue(Files.size(basePaths.get(1)) >= 32 * 4096);
+    }
+
     /**
      * This test creates new fs in a baseFile, creates a file in this fs and writes into it. Then fs is closed and
      * a new fs using the same baseFile is created within a new provider.
@@ -162,4 +180,27 @@ public class OFSFileSystemProviderTest {
 
         Assert.assertEquals(p.getClass(), OFSPath.class);
     }
+
+    @Test
+    public void acceptsDurabilityInEnv() throws IOException {
+        var provider = new OFSFileSystemProvider();
+
+        var fs = provider.newFileSystem(URI.create("ofs:]=$"), Map.of("durability", "periodic", "syncInterval", 50));
+        Assert.assertTrue(fs.isOpen());
+        fs.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesUnknownDurability() throws IOException {
+        var provider = new OFSFileSystemProvider();
+
+        provider.newFileSystem(URI.create("ofs:]=$"), Map.of("durability", "sometimes"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesTooSmallBlockSize() throws IOException {
+        var provider = new OFSFileSystemProvider();
+
+        provider.newFileSystem(URI.create("ofs:]=$"), Map.of("blockSize", 1024));
+    }
 }
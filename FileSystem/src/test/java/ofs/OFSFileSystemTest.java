@@ -7,7 +7,10 @@ import org.junit.Test;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -77,4 +80,50 @@ public class OFSFileSystemTest {
 
         Assert.assertNull(root.getRoot());
     }
+
+    @Test
+    public void snapshotKeepsStateAtTheMomentOfCreation() throws IOException {
+        var provider = new OFSFileSystemProvider();
+        var fs = (OFSFileSystem) provider.newFileSystem(URI.create("ofs:]=$"), Map.of());
+
+        var big = new byte[10 * 1024];
+        Arrays.fill(big, (byte) 1);
+        Files.createDirectory(fs.getPath("dir"));
+        Files.write(fs.getPath("dir", "changed"), big);
+        Files.writeString(fs.getPath("dir", "deleted"), "deleted");
+
+        var snapshot = fs.snapshot();
+        Assert.assertTrue(snapshot.isReadOnly());
+        Assert.assertFalse(fs.isReadOnly());
+
+        Arrays.fill(big, (byte) 2);
+        Files.write(fs.getPath("dir", "changed"), big);
+        Files.delete(fs.getPath("dir", "deleted"));
+        Files.writeString(fs.getPath("dir", "created"), "created");
+        Files.writeString(fs.getPath("dir", "reused"), "x".repeat(20 * 1024));
+
+        var snapshotBig = Files.readAllBytes(snapshot.getPath("dir", "changed"));
+        Assert.assertEquals(big.length, snapshotBig.length);
+        for(var b : snapshotBig) {
+            Assert.assertEquals(1, b);
+        }
+        Assert.assertEquals("deleted", Files.readString(snapshot.getPath("dir", "deleted")));
+        Assert.assertFalse(Files.exists(snapshot.getPath("dir", "created")));
+
+        Assert.assertArrayEquals(big, Files.readAllBytes(fs.getPath("dir", "changed")));
+        Assert.assertFalse(Files.exists(fs.getPath("dir", "deleted")));
+
+        snapshot.close();
+        Assert.assertFalse(snapshot.isOpen());
+        Assert.assertTrue(fs.isOpen());
+    }
+
+    @Test(expected = ReadOnlyFileSystemException.class)
+    public void snapshotIsReadOnly() throws IOException {
+        var provider = new OFSFileSystemProvider();
+        var fs = (OFSFileSystem) provider.newFileSystem(URI.create("ofs:]=$"), Map.of());
+
+        var snapshot = fs.snapshot();
+        Files.createDirectory(snapshot.getPath("dir"));
+    }
 }